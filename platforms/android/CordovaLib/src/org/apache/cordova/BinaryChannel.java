@@ -0,0 +1,162 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Moves ArrayBuffers that are too big to go through the bridge as one Base64
+ * string.
+ *
+ * Native to JS, NativeToJsMessageQueue sends ArrayBuffer results bigger than
+ * CHUNK_SIZE in one of two ways:
+ *   - When fetching is enabled (the WebView client intercepts requests), the
+ *     bytes are kept here and the message only carries a URL. JS loads it with
+ *     an XHR as an ArrayBuffer, and IceCreamCordovaWebViewClient streams the
+ *     bytes to the WebView without ever turning them into a String.
+ *   - Otherwise the result is split into chunks of CHUNK_SIZE bytes, which are
+ *     Base64 encoded one at a time while they are flushed and put back
+ *     together by JS.
+ *
+ * JS to native, ArrayBuffer arguments bigger than CHUNK_SIZE are sent ahead of
+ * the exec() in chunks through ExposedJsApi.appendBinary(). The argument itself
+ * becomes a reference that CordovaArgs.getArrayBuffer() looks up here.
+ */
+public class BinaryChannel {
+    private static final String LOG_TAG = "BinaryChannel";
+
+    // This must match BINARY_CHUNK_SIZE in cordova-js/lib/android/exec.js.
+    // It is a multiple of 3, so the chunks are Base64 encoded without padding.
+    public static final int CHUNK_SIZE = 3 * 64 * 1024;
+
+    // The URL JS fetches results from. Intercepted before it reaches the file system.
+    public static final String URL_PREFIX = "file:///cordova-binary/";
+
+    private final AtomicInteger nextResultId = new AtomicInteger();
+
+    /**
+     * Results waiting for JS to fetch them, by URL.
+     */
+    private final ConcurrentHashMap<String, byte[]> results = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Arguments being sent by JS, by the id JS gave them.
+     */
+    private final ConcurrentHashMap<Integer, Upload> uploads = new ConcurrentHashMap<Integer, Upload>();
+
+    private volatile boolean fetchEnabled;
+
+    private static class Upload {
+        final byte[] data;
+        int received;
+        Upload(int length) {
+            data = new byte[length];
+        }
+    }
+
+    /**
+     * Whether the WebView client serves results from URL_PREFIX. Set by
+     * CordovaWebView when its client is an IceCreamCordovaWebViewClient.
+     */
+    public void setFetchEnabled(boolean value) {
+        fetchEnabled = value;
+    }
+
+    public boolean isFetchEnabled() {
+        return fetchEnabled;
+    }
+
+    /**
+     * Keeps the result until JS fetches it. Returns the URL to fetch it from.
+     */
+    public String addResult(byte[] data) {
+        String url = URL_PREFIX + nextResultId.incrementAndGet();
+        results.put(url, data);
+        return url;
+    }
+
+    /**
+     * Returns a stream of the result at the given URL and forgets it, or null
+     * if there is none. Each result can only be fetched once.
+     */
+    public InputStream openResult(String url) {
+        byte[] data = results.remove(url);
+        if (data == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Adds a Base64 encoded chunk of an argument sent by JS.
+     */
+    public void appendUpload(int id, int length, int offset, String chunk) {
+        Upload upload = uploads.get(id);
+        if (upload == null) {
+            Upload created = new Upload(length);
+            upload = uploads.putIfAbsent(id, created);
+            if (upload == null) {
+                upload = created;
+            }
+        }
+        byte[] bytes = Base64.decode(chunk, Base64.DEFAULT);
+        if (offset < 0 || offset + bytes.length > upload.data.length) {
+            Log.e(LOG_TAG, "Chunk out of range for binary argument " + id);
+            uploads.remove(id);
+            return;
+        }
+        synchronized (upload) {
+            System.arraycopy(bytes, 0, upload.data, offset, bytes.length);
+            upload.received += bytes.length;
+        }
+    }
+
+    /**
+     * Returns the complete argument JS sent with the given id and forgets it,
+     * or null if it is missing or incomplete.
+     */
+    public byte[] takeUpload(int id) {
+        Upload upload = uploads.remove(id);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            if (upload.received != upload.data.length) {
+                Log.e(LOG_TAG, "Binary argument " + id + " is incomplete: "
+                        + upload.received + " of " + upload.data.length + " bytes");
+                return null;
+            }
+        }
+        return upload.data;
+    }
+
+    /**
+     * Drops everything JS did not pick up, e.g. when the page is reloaded.
+     */
+    public void reset() {
+        results.clear();
+        uploads.clear();
+    }
+}
@@ -26,9 +26,15 @@ import android.util.Base64;
 
 public class CordovaArgs {
     private JSONArray baseArgs;
+    private BinaryChannel binaryChannel;
 
     public CordovaArgs(JSONArray args) {
+        this(args, null);
+    }
+
+    public CordovaArgs(JSONArray args, BinaryChannel binaryChannel) {
         this.baseArgs = args;
+        this.binaryChannel = binaryChannel;
     }
 
 
@@ -105,6 +111,15 @@ public class CordovaArgs {
 
     // The interesting custom helpers.
     public byte[] getArrayBuffer(int index) throws JSONException {
+        // Large ArrayBuffers were sent ahead in chunks, see BinaryChannel.
+        JSONObject reference = baseArgs.optJSONObject(index);
+        if (reference != null && reference.has("binaryId")) {
+            byte[] data = binaryChannel == null ? null : binaryChannel.takeUpload(reference.getInt("binaryId"));
+            if (data == null) {
+                throw new JSONException("Binary argument " + index + " was not received");
+            }
+            return data;
+        }
         String encoded = baseArgs.getString(index);
         return Base64.decode(encoded, Base64.DEFAULT);
     }
@@ -249,6 +249,17 @@ public class CordovaChromeClient extends WebChromeClient {
             result.confirm(r == null ? "" : r);
         }
 
+        // Chunk of a large ArrayBuffer argument
+        else if (reqOk && defaultValue != null && defaultValue.startsWith("gap_binary:")) {
+            try {
+                JSONArray array = new JSONArray(defaultValue.substring(11));
+                this.appView.exposedJsApi.appendBinary(array.getInt(0), array.getInt(1), array.getInt(2), message);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            result.confirm("");
+        }
+
         // Do NO-OP so older code doesn't display dialog
         else if (defaultValue != null && defaultValue.equals("gap_init:")) {
             result.confirm("OK");
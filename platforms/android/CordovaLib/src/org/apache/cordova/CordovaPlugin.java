@@ -80,7 +80,7 @@ public class CordovaPlugin {
      * @return                Whether the action was valid.
      */
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
-        CordovaArgs cordovaArgs = new CordovaArgs(args);
+        CordovaArgs cordovaArgs = new CordovaArgs(args, webView == null ? null : webView.getBinaryChannel());
         return execute(action, cordovaArgs, callbackContext);
     }
 
@@ -170,6 +170,18 @@ public class CordovaPlugin {
         return null;
     }
     
+    /**
+     * Whether to keep this plugin when the page is reloaded or navigates to a
+     * page of the same origin, instead of destroying it and creating it again.
+     * A kept plugin still gets onReset(), where it should forget the callbacks
+     * of the previous page.
+     *
+     * Returns false by default.
+     */
+    public boolean keepOnReload() {
+        return false;
+    }
+
     /**
      * Called when the WebView does a top-level navigation or refreshes.
      *
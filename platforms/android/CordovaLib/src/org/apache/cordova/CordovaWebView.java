@@ -340,6 +340,15 @@ public class CordovaWebView extends WebView {
 
         pluginManager = new PluginManager(this, this.cordova);
         jsMessageQueue = new NativeToJsMessageQueue(this, cordova);
+        // How long to collect native->JS messages before flushing them, -1 for one frame.
+        try {
+            jsMessageQueue.setFlushWindow(Integer.parseInt(this.getProperty("NativeToJsFlushWindow",
+                    String.valueOf(NativeToJsMessageQueue.FLUSH_ON_VSYNC))));
+        } catch (NumberFormatException e) {
+            Log.d(TAG, "Invalid NativeToJsFlushWindow preference");
+        }
+        // Large ArrayBuffer results can be fetched if the client intercepts requests.
+        jsMessageQueue.getBinaryChannel().setFetchEnabled(viewClient instanceof IceCreamCordovaWebViewClient);
         exposedJsApi = new ExposedJsApi(pluginManager, jsMessageQueue);
         resourceApi = new CordovaResourceApi(this.getContext(), pluginManager);
         exposeJsInterface();
@@ -379,6 +388,9 @@ public class CordovaWebView extends WebView {
     public void setWebViewClient(CordovaWebViewClient client) {
         this.viewClient = client;
         super.setWebViewClient(client);
+        if (jsMessageQueue != null) {
+            jsMessageQueue.getBinaryChannel().setFetchEnabled(client instanceof IceCreamCordovaWebViewClient);
+        }
     }
 
     /**
@@ -443,7 +455,7 @@ public class CordovaWebView extends WebView {
 
         if (recreatePlugins) {
             this.url = url;
-            this.pluginManager.init();
+            this.pluginManager.init(url);
         }
 
         // Create a timeout timer for loadUrl
@@ -659,6 +671,20 @@ public class CordovaWebView extends WebView {
         }
     }
 
+    /**
+     * Returns the queue of messages waiting to be sent to JS, e.g. for its statistics.
+     */
+    public NativeToJsMessageQueue getJsMessageQueue() {
+        return jsMessageQueue;
+    }
+
+    /**
+     * Returns the channel large ArrayBuffers are sent through.
+     */
+    public BinaryChannel getBinaryChannel() {
+        return jsMessageQueue.getBinaryChannel();
+    }
+
     /**
      * Get string property for activity.
      *
@@ -0,0 +1,98 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Where PluginManager runs a plugin's exec() calls, as declared by the
+ * plugin's <feature> in config.xml:
+ *
+ *   <param name="exec" value="serial" />              default for all actions
+ *   <param name="exec:exportData" value="parallel" /> for one action
+ *   <param name="exec-queue" value="16" />            most calls waiting per lane
+ *
+ * The modes are:
+ *   - inline:   on the thread that called exec(), like before. The default.
+ *   - serial:   one at a time, in order, on a background thread of the plugin.
+ *   - parallel: on CordovaInterface.getThreadPool().
+ *
+ * Calls that find their lane full are not run; JS gets an error with
+ * {"busy": true} instead.
+ */
+public final class ExecPolicy {
+    private static final String TAG = "ExecPolicy";
+
+    public static final int INLINE = 0;
+    public static final int SERIAL = 1;
+    public static final int PARALLEL = 2;
+
+    private static final String[] MODE_NAMES = { "inline", "serial", "parallel" };
+
+    public static final int DEFAULT_QUEUE_LIMIT = 32;
+
+    public static final ExecPolicy DEFAULT = new ExecPolicy(INLINE, new HashMap<String, Integer>(), DEFAULT_QUEUE_LIMIT);
+
+    private final int defaultMode;
+    private final Map<String, Integer> actionModes;
+    private final int queueLimit;
+
+    public ExecPolicy(int defaultMode, Map<String, Integer> actionModes, int queueLimit) {
+        this.defaultMode = defaultMode;
+        this.actionModes = Collections.unmodifiableMap(new HashMap<String, Integer>(actionModes));
+        this.queueLimit = queueLimit;
+    }
+
+    /**
+     * Returns INLINE, SERIAL or PARALLEL.
+     */
+    public int getMode(String action) {
+        Integer mode = actionModes.get(action);
+        return mode == null ? defaultMode : mode;
+    }
+
+    /**
+     * Returns how many calls a serial lane queues, or how many a parallel
+     * lane runs and queues together, before it reports busy.
+     */
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * Returns the mode for a config.xml value, INLINE if it is not known.
+     */
+    public static int parseMode(String value) {
+        for (int i = 0; i < MODE_NAMES.length; ++i) {
+            if (MODE_NAMES[i].equals(value)) {
+                return i;
+            }
+        }
+        Log.w(TAG, "Unknown exec mode: " + value);
+        return INLINE;
+    }
+
+    public static String getModeName(int mode) {
+        return MODE_NAMES[mode];
+    }
+}
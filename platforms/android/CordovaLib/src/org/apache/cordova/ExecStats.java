@@ -0,0 +1,106 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Latency histograms of one plugin action: how long calls waited in their
+ * lane, and how long execute() took.
+ */
+public class ExecStats {
+    // Upper bounds of the histogram buckets in milliseconds: under 1, 1-2, 2-4,
+    // ... 512-1024 and 1024 or more.
+    private static final int[] BUCKET_MILLIS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+
+    private final int mode;
+    private final int[] waitHistogram = new int[BUCKET_MILLIS.length + 1];
+    private final int[] runHistogram = new int[BUCKET_MILLIS.length + 1];
+    private long count;
+    private long rejected;
+    private long totalRunNanos;
+    private long maxRunNanos;
+    private boolean warned;
+
+    public ExecStats(int mode) {
+        this.mode = mode;
+    }
+
+    public synchronized void record(long waitNanos, long runNanos) {
+        count += 1;
+        totalRunNanos += runNanos;
+        if (runNanos > maxRunNanos) {
+            maxRunNanos = runNanos;
+        }
+        waitHistogram[getBucket(waitNanos)] += 1;
+        runHistogram[getBucket(runNanos)] += 1;
+    }
+
+    public synchronized void recordRejected() {
+        rejected += 1;
+    }
+
+    /**
+     * Returns true the first time it is called, so a slow action is only
+     * warned about once.
+     */
+    synchronized boolean shouldWarn() {
+        if (warned) {
+            return false;
+        }
+        warned = true;
+        return true;
+    }
+
+    public synchronized JSONObject toJSONObject() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("mode", ExecPolicy.getModeName(mode));
+        stats.put("count", count);
+        stats.put("rejected", rejected);
+        stats.put("averageMicros", count == 0 ? 0 : totalRunNanos / count / 1000);
+        stats.put("maxMicros", maxRunNanos / 1000);
+        JSONArray bucketMillis = new JSONArray();
+        for (int millis : BUCKET_MILLIS) {
+            bucketMillis.put(millis);
+        }
+        stats.put("bucketMillis", bucketMillis);
+        stats.put("wait", toJSONArray(waitHistogram));
+        stats.put("run", toJSONArray(runHistogram));
+        return stats;
+    }
+
+    private static JSONArray toJSONArray(int[] histogram) {
+        JSONArray array = new JSONArray();
+        for (int bucketCount : histogram) {
+            array.put(bucketCount);
+        }
+        return array;
+    }
+
+    private static int getBucket(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_MILLIS.length && millis >= BUCKET_MILLIS[bucket]) {
+            bucket += 1;
+        }
+        return bucket;
+    }
+}
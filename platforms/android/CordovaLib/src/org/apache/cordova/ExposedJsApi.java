@@ -73,4 +73,13 @@ import org.json.JSONException;
     public String retrieveJsMessages(boolean fromOnlineEvent) {
         return jsMessageQueue.popAndEncode(fromOnlineEvent);
     }
+
+    /**
+     * Receives a Base64 encoded chunk of a large ArrayBuffer argument. JS sends
+     * all chunks before the exec() that refers to it.
+     */
+    @JavascriptInterface
+    public void appendBinary(int id, int length, int offset, String chunk) {
+        jsMessageQueue.getBinaryChannel().appendUpload(id, length, offset, chunk);
+    }
 }
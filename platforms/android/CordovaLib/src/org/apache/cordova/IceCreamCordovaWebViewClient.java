@@ -20,6 +20,7 @@ package org.apache.cordova;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaResourceApi.OpenForReadResult;
@@ -47,6 +48,15 @@ public class IceCreamCordovaWebViewClient extends CordovaWebViewClient {
 
     @Override
     public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+        // Large ArrayBuffer results, fetched by exec.js.
+        if (url.startsWith(BinaryChannel.URL_PREFIX)) {
+            InputStream stream = appView.getBinaryChannel().openResult(url);
+            if (stream == null) {
+                LOG.w(TAG, "No binary result at: " + url);
+            }
+            // A null stream results in a 404.
+            return new WebResourceResponse("application/octet-stream", null, stream);
+        }
         try {
             // Check the against the whitelist and lock out access to the WebView directory
             // Changing this will cause problems for your application
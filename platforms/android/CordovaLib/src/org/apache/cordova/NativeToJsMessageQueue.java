@@ -20,17 +20,42 @@ package org.apache.cordova;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.util.Base64;
 import android.util.Log;
+import android.view.Choreographer;
 import android.webkit.WebView;
 
 /**
  * Holds the list of messages to be sent to the WebView.
+ *
+ * Messages are added without locking: producers swap themselves in as the
+ * tail of a singly linked list and then link the previous tail to them.
+ * Only taking messages out is serialized, on this object's monitor, so a
+ * plugin thread adding a result never waits for the UI thread to finish
+ * encoding a batch.
+ *
+ * The active bridge is not told about every message. The first message
+ * schedules a flush on the next frame (or after the flush window), and
+ * everything added until then goes to JS in that one flush. Results marked
+ * with PluginResult.setFlushImmediately() are flushed right away.
+ *
+ * ArrayBuffer results bigger than BinaryChannel.CHUNK_SIZE are not encoded
+ * as one message. They are either fetched by JS from the BinaryChannel, or
+ * queued as chunks, of which each flush carries at most one.
  */
 public class NativeToJsMessageQueue {
     private static final String LOG_TAG = "JsMessageQueue";
@@ -54,22 +79,80 @@ public class NativeToJsMessageQueue {
     // This currently only chops up on message boundaries. It may be useful
     // to allow it to break up messages.
     private static int MAX_PAYLOAD_SIZE = 50 * 1024 * 10240;
+
+    // The encode buffers are reused between flushes unless a large batch
+    // grew them beyond this many chars.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Flush window that collects messages until the next frame.
+     */
+    public static final int FLUSH_ON_VSYNC = -1;
+
+    // Used for FLUSH_ON_VSYNC when Choreographer is not available.
+    private static final int FRAME_MILLIS = 16;
+
+    // Buckets of the messages-per-flush histogram: 1, 2-3, 4-7, ... 64 and more.
+    private static final int[] FLUSH_SIZE_BUCKETS = { 1, 2, 4, 8, 16, 32, 64 };
     
     /**
      * The index into registeredListeners to treat as active. 
      */
-    private int activeListenerIndex;
+    private volatile int activeListenerIndex;
     
     /**
      * When true, the active listener is not fired upon enqueue. When set to false,
      * the active listener will be fired if the queue is non-empty. 
      */
-    private boolean paused;
+    private volatile boolean paused;
     
     /**
-     * The list of JavaScript statements to be sent to JavaScript.
+     * The list of JavaScript statements to be sent to JavaScript. head is a
+     * message that was already sent (or a placeholder); the messages to send
+     * follow it. Producers only touch tail, the consumer only touches head.
+     */
+    private JsMessage head = new JsMessage("");
+    private final AtomicReference<JsMessage> tail = new AtomicReference<JsMessage>(head);
+
+    /**
+     * How many milliseconds to collect messages before flushing them, 0 to
+     * flush every message, or FLUSH_ON_VSYNC.
      */
-    private final LinkedList<JsMessage> queue = new LinkedList<JsMessage>();
+    private volatile int flushWindowMillis = FLUSH_ON_VSYNC;
+
+    /**
+     * Set while a flush is scheduled, so only the first message of a burst schedules one.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile Handler handler;
+    private FrameFlusher frameFlusher;
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            // Messages added from now on need another flush.
+            flushScheduled.set(false);
+            if (!paused && !isEmpty()) {
+                notifyActiveListener();
+            }
+        }
+    };
+
+    // Only used while holding the lock.
+    private StringBuilder encodeBuffer = new StringBuilder();
+    private StringBuilder messageBuffer = new StringBuilder();
+
+    // Statistics.
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private long flushCount;
+    private long flushedMessageCount;
+    private long totalFlushLatencyNanos;
+    private long maxFlushLatencyNanos;
+    private final int[] flushSizeHistogram = new int[FLUSH_SIZE_BUCKETS.length];
+    private final AtomicLong bridgeNotificationCount = new AtomicLong();
+
+    private final BinaryChannel binaryChannel = new BinaryChannel();
 
     /**
      * The array of listeners that can be used to send messages to JS.
@@ -103,7 +186,7 @@ public class NativeToJsMessageQueue {
                     activeListenerIndex = value;
                     BridgeMode activeListener = registeredListeners[value];
                     activeListener.reset();
-                    if (!paused && !queue.isEmpty()) {
+                    if (!paused && !isEmpty()) {
                         activeListener.onNativeToJsMessageAvailable();
                     }
                 }
@@ -116,25 +199,76 @@ public class NativeToJsMessageQueue {
      */
     public void reset() {
         synchronized (this) {
-            queue.clear();
+            JsMessage message;
+            while ((message = poll()) != null) {
+                // Drop the message.
+                message.clearPayload();
+            }
             setBridgeMode(DEFAULT_BRIDGE_MODE);
             registeredListeners[activeListenerIndex].reset();
         }
+        binaryChannel.reset();
     }
 
-    private int calculatePackedMessageLength(JsMessage message) {
-        int messageLen = message.calculateEncodedLength();
-        String messageLenStr = String.valueOf(messageLen);
-        return messageLenStr.length() + messageLen + 1;        
+    /**
+     * Returns the channel large ArrayBuffers are sent through, in both directions.
+     */
+    public BinaryChannel getBinaryChannel() {
+        return binaryChannel;
     }
-    
-    private void packMessage(JsMessage message, StringBuilder sb) {
-        int len = message.calculateEncodedLength();
-        sb.append(len)
-          .append(' ');
-        message.encodeAsMessage(sb);
+
+    private boolean isEmpty() {
+        return queueDepth.get() == 0;
     }
-    
+
+    /**
+     * Returns the oldest message without removing it. Only call while holding the lock.
+     */
+    private JsMessage peek() {
+        return head.next;
+    }
+
+    /**
+     * Removes and returns the oldest message. Only call while holding the lock.
+     */
+    private JsMessage poll() {
+        JsMessage next = head.next;
+        if (next == null) {
+            // Empty, or a producer has swapped in a new tail but not linked it yet.
+            // It will notify the bridge once it has.
+            return null;
+        }
+        // The polled message becomes the new placeholder.
+        head = next;
+        queueDepth.decrementAndGet();
+        return next;
+    }
+
+    private void recordFlush(int numMessages, long oldestEnqueueTime) {
+        long latency = System.nanoTime() - oldestEnqueueTime;
+        flushCount += 1;
+        flushedMessageCount += numMessages;
+        totalFlushLatencyNanos += latency;
+        if (latency > maxFlushLatencyNanos) {
+            maxFlushLatencyNanos = latency;
+        }
+        int bucket = FLUSH_SIZE_BUCKETS.length - 1;
+        while (bucket > 0 && numMessages < FLUSH_SIZE_BUCKETS[bucket]) {
+            bucket -= 1;
+        }
+        flushSizeHistogram[bucket] += 1;
+    }
+
+    private String takeEncoded(StringBuilder sb) {
+        String ret = sb.toString();
+        sb.setLength(0);
+        if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE || messageBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            encodeBuffer = new StringBuilder();
+            messageBuffer = new StringBuilder();
+        }
+        return ret;
+    }
+
     /**
      * Combines and returns queued messages combined into a single string.
      * Combines as many messages as possible, while staying under MAX_PAYLOAD_SIZE.
@@ -143,32 +277,47 @@ public class NativeToJsMessageQueue {
     public String popAndEncode(boolean fromOnlineEvent) {
         synchronized (this) {
             registeredListeners[activeListenerIndex].notifyOfFlush(fromOnlineEvent);
-            if (queue.isEmpty()) {
+            JsMessage message = peek();
+            if (message == null) {
                 return null;
             }
-            int totalPayloadLen = 0;
-            int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = calculatePackedMessageLength(message);
-                if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
+            long oldestEnqueueTime = message.enqueueTime;
+            StringBuilder sb = encodeBuffer;
+            StringBuilder messageSb = messageBuffer;
+            // Messages added while encoding are left for the next flush.
+            int numMessagesToSend = queueDepth.get();
+            int numMessagesSent = 0;
+            boolean sentChunk = false;
+            // Each message is encoded once, into messageSb, which gives its length prefix.
+            while (message != null && numMessagesSent < numMessagesToSend) {
+                // One chunk of a large ArrayBuffer per flush.
+                if (sentChunk && message.isChunk()) {
                     break;
                 }
-                totalPayloadLen += messageSize;
-                numMessagesToSend += 1;
+                messageSb.setLength(0);
+                message.encodeAsMessage(messageSb);
+                int messageLen = messageSb.length();
+                // Leave room for the length prefix.
+                if (numMessagesSent > 0 && MAX_PAYLOAD_SIZE > 0
+                        && sb.length() + messageLen + 11 > MAX_PAYLOAD_SIZE) {
+                    break;
+                }
+                poll();
+                sb.append(messageLen)
+                  .append(' ')
+                  .append(messageSb);
+                numMessagesSent += 1;
+                sentChunk |= message.isChunk();
+                message.clearPayload();
+                message = peek();
             }
 
-            StringBuilder sb = new StringBuilder(totalPayloadLen);
-            for (int i = 0; i < numMessagesToSend; ++i) {
-                JsMessage message = queue.removeFirst();
-                packMessage(message, sb);
-            }
-            
-            if (!queue.isEmpty()) {
+            if (message != null) {
                 // Attach a char to indicate that there are more messages pending.
                 sb.append('*');
             }
-            String ret = sb.toString();
-            return ret;
+            recordFlush(numMessagesSent, oldestEnqueueTime);
+            return takeEncoded(sb);
         }
     }
     
@@ -177,45 +326,120 @@ public class NativeToJsMessageQueue {
      */
     private String popAndEncodeAsJs() {
         synchronized (this) {
-            int length = queue.size();
-            if (length == 0) {
+            JsMessage message = poll();
+            if (message == null) {
                 return null;
             }
-            int totalPayloadLen = 0;
-            int numMessagesToSend = 0;
-            for (JsMessage message : queue) {
-                int messageSize = message.calculateEncodedLength() + 50; // overestimate.
-                if (numMessagesToSend > 0 && totalPayloadLen + messageSize > MAX_PAYLOAD_SIZE && MAX_PAYLOAD_SIZE > 0) {
+            long oldestEnqueueTime = message.enqueueTime;
+            StringBuilder sb = encodeBuffer;
+            StringBuilder messageSb = messageBuffer;
+            // Messages added while encoding are left for the next flush.
+            int numMessagesToSend = queueDepth.get() + 1;
+            int numMessagesSent = 0;
+            boolean willSendAllMessages = true;
+            boolean sentChunk = false;
+            // Wrap each statement in a try/finally so that if one throws it does 
+            // not affect the next. The last one is only known after peeking at
+            // the next, so each statement is encoded into messageSb first.
+            while (message != null) {
+                messageSb.setLength(0);
+                message.encodeAsJsMessage(messageSb);
+                numMessagesSent += 1;
+                sentChunk |= message.isChunk();
+                message.clearPayload();
+                JsMessage next = numMessagesSent < numMessagesToSend ? peek() : null;
+                if (next == null) {
+                    sb.append(messageSb);
                     break;
                 }
-                totalPayloadLen += messageSize;
-                numMessagesToSend += 1;
-            }
-            boolean willSendAllMessages = numMessagesToSend == queue.size();
-            StringBuilder sb = new StringBuilder(totalPayloadLen + (willSendAllMessages ? 0 : 100));
-            // Wrap each statement in a try/finally so that if one throws it does 
-            // not affect the next.
-            for (int i = 0; i < numMessagesToSend; ++i) {
-                JsMessage message = queue.removeFirst();
-                if (willSendAllMessages && (i + 1 == numMessagesToSend)) {
-                    message.encodeAsJsMessage(sb);
-                } else {
-                    sb.append("try{");
-                    message.encodeAsJsMessage(sb);
-                    sb.append("}finally{");
+                sb.append("try{")
+                  .append(messageSb)
+                  .append("}finally{");
+                if ((MAX_PAYLOAD_SIZE > 0
+                        && sb.length() + next.calculateEncodedLength() + 50 > MAX_PAYLOAD_SIZE) // overestimate.
+                        || (sentChunk && next.isChunk())) {
+                    willSendAllMessages = false;
+                    break;
                 }
+                message = poll();
             }
             if (!willSendAllMessages) {
                 sb.append("window.setTimeout(function(){cordova.require('cordova/plugin/android/polling').pollOnce();},0);");
             }
-            for (int i = willSendAllMessages ? 1 : 0; i < numMessagesToSend; ++i) {
+            for (int i = willSendAllMessages ? 1 : 0; i < numMessagesSent; ++i) {
                 sb.append('}');
             }
-            String ret = sb.toString();
-            return ret;
+            recordFlush(numMessagesSent, oldestEnqueueTime);
+            return takeEncoded(sb);
         }
     }   
 
+    /**
+     * Returns how many messages are waiting to be sent.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the most messages that were waiting at once.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    public synchronized long getFlushedMessageCount() {
+        return flushedMessageCount;
+    }
+
+    /**
+     * Returns the average time from the oldest message in a flush being
+     * added until the flush, in microseconds.
+     */
+    public synchronized long getAverageFlushLatencyMicros() {
+        return flushCount == 0 ? 0 : totalFlushLatencyNanos / flushCount / 1000;
+    }
+
+    public synchronized long getMaxFlushLatencyMicros() {
+        return maxFlushLatencyNanos / 1000;
+    }
+
+    /**
+     * Returns how many flushes carried 1, 2-3, 4-7, 8-15, 16-31, 32-63 and
+     * 64 or more messages.
+     */
+    public synchronized int[] getFlushSizeHistogram() {
+        return flushSizeHistogram.clone();
+    }
+
+    /**
+     * Returns how many times the active bridge was told that messages are waiting.
+     */
+    public long getBridgeNotificationCount() {
+        return bridgeNotificationCount.get();
+    }
+
+    /**
+     * Sets how many milliseconds messages are collected before they are
+     * flushed to the bridge together. FLUSH_ON_VSYNC (the default) flushes on
+     * the next frame, 0 flushes every message on its own.
+     */
+    public void setFlushWindow(int millis) {
+        if (millis < FLUSH_ON_VSYNC) {
+            Log.d(LOG_TAG, "Invalid flush window: " + millis);
+        } else {
+            flushWindowMillis = millis;
+        }
+    }
+
     /**
      * Add a JavaScript statement to the list.
      */
@@ -238,6 +462,11 @@ public class NativeToJsMessageQueue {
         if (noResult && keepCallback) {
             return;
         }
+        byte[] binary = result.getMessageType() == PluginResult.MESSAGE_TYPE_ARRAYBUFFER ? result.getBinaryMessage() : null;
+        if (binary != null && binary.length > BinaryChannel.CHUNK_SIZE) {
+            addBinaryResult(result, callbackId, binary);
+            return;
+        }
         JsMessage message = new JsMessage(result, callbackId);
         if (FORCE_ENCODE_USING_EVAL) {
             StringBuilder sb = new StringBuilder(message.calculateEncodedLength() + 50);
@@ -245,16 +474,96 @@ public class NativeToJsMessageQueue {
             message = new JsMessage(sb.toString());
         }
 
-        enqueueMessage(message);
+        enqueueMessage(message, result.getFlushImmediately());
     }
     
-    private void enqueueMessage(JsMessage message) {
-        synchronized (this) {
-            queue.add(message);
-            if (!paused) {
-                registeredListeners[activeListenerIndex].onNativeToJsMessageAvailable();
+    private void addBinaryResult(PluginResult result, String callbackId, byte[] data) {
+        if (binaryChannel.isFetchEnabled()) {
+            String url = binaryChannel.addResult(data);
+            enqueueMessage(new JsMessage(result, callbackId, url), result.getFlushImmediately());
+            return;
+        }
+        // The chunks are linked to each other first and then added at once, so
+        // no other message can end up between them.
+        JsMessage first = null;
+        JsMessage last = null;
+        int count = 0;
+        for (int offset = 0; offset < data.length; offset += BinaryChannel.CHUNK_SIZE) {
+            JsMessage chunk = new JsMessage(result, callbackId, offset, Math.min(BinaryChannel.CHUNK_SIZE, data.length - offset));
+            if (first == null) {
+                first = chunk;
+            } else {
+                last.next = chunk;
             }
-        }        
+            last = chunk;
+            count += 1;
+        }
+        enqueueMessages(first, last, count, result.getFlushImmediately());
+    }
+
+    private void enqueueMessage(JsMessage message) {
+        enqueueMessage(message, false);
+    }
+
+    private void enqueueMessage(JsMessage message, boolean flushImmediately) {
+        enqueueMessages(message, message, 1, flushImmediately);
+    }
+
+    /**
+     * Adds the messages from first to last, which are already linked to each other.
+     */
+    private void enqueueMessages(JsMessage first, JsMessage last, int count, boolean flushImmediately) {
+        long now = System.nanoTime();
+        for (JsMessage message = first; message != null; message = message.next) {
+            message.enqueueTime = now;
+        }
+        // Counted before being linked, so the consumer never sees more messages
+        // than the depth says.
+        int depth = queueDepth.addAndGet(count);
+        int maxDepth = maxQueueDepth.get();
+        while (depth > maxDepth && !maxQueueDepth.compareAndSet(maxDepth, depth)) {
+            maxDepth = maxQueueDepth.get();
+        }
+        enqueuedCount.addAndGet(count);
+        JsMessage previous = tail.getAndSet(last);
+        previous.next = first;
+        if (paused || !registeredListeners[activeListenerIndex].wantsNotifications()) {
+            return;
+        }
+        if (flushImmediately || flushWindowMillis == 0) {
+            notifyActiveListener();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    private void notifyActiveListener() {
+        bridgeNotificationCount.incrementAndGet();
+        registeredListeners[activeListenerIndex].onNativeToJsMessageAvailable();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            // The scheduled flush will take this message too.
+            return;
+        }
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        int window = flushWindowMillis;
+        if (window == FLUSH_ON_VSYNC && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // The Choreographer has to be used from the UI thread.
+            handler.post(new Runnable() {
+                public void run() {
+                    if (frameFlusher == null) {
+                        frameFlusher = new FrameFlusher();
+                    }
+                    frameFlusher.post();
+                }
+            });
+        } else {
+            handler.postDelayed(flushRunnable, window == FLUSH_ON_VSYNC ? FRAME_MILLIS : window);
+        }
     }
     
     public void setPaused(boolean value) {
@@ -265,11 +574,9 @@ public class NativeToJsMessageQueue {
         }
         paused = value;
         if (!value) {
-            synchronized (this) {
-                if (!queue.isEmpty()) {
-                    registeredListeners[activeListenerIndex].onNativeToJsMessageAvailable();
-                }
-            }   
+            if (!isEmpty()) {
+                notifyActiveListener();
+            }
         }
     }
     
@@ -277,8 +584,25 @@ public class NativeToJsMessageQueue {
         return paused;
     }
 
+    /**
+     * Runs the scheduled flush on the next frame. Only used on Android 4.1 and above.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameFlusher implements Choreographer.FrameCallback {
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        void post() {
+            choreographer.postFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            flushRunnable.run();
+        }
+    }
+
     private abstract class BridgeMode {
         abstract void onNativeToJsMessageAvailable();
+        boolean wantsNotifications() { return true; }
         void notifyOfFlush(boolean fromOnlineEvent) {}
         void reset() {}
     }
@@ -287,6 +611,8 @@ public class NativeToJsMessageQueue {
     private class PollingBridgeMode extends BridgeMode {
         @Override void onNativeToJsMessageAvailable() {
         }
+        // JS polls on its own, so there is no flush to schedule.
+        @Override boolean wantsNotifications() { return false; }
     }
 
     /** Uses webView.loadUrl("javascript:") to execute messages. */
@@ -310,14 +636,17 @@ public class NativeToJsMessageQueue {
         private boolean online;
         final Runnable runnable = new Runnable() {
             public void run() {
-                if (!queue.isEmpty()) {
+                if (!isEmpty()) {
                     webView.setNetworkAvailable(online);
                 }
             }                
         };
         @Override void reset() {
             online = false;
-            webView.setNetworkAvailable(true);
+            // There is no WebView when running NativeToJsMessageQueueBenchmark.
+            if (webView != null) {
+                webView.setNetworkAvailable(true);
+            }
         }
         @Override void onNativeToJsMessageAvailable() {
             cordova.getActivity().runOnUiThread(runnable);
@@ -389,21 +718,56 @@ public class NativeToJsMessageQueue {
         }
     }    
     private static class JsMessage {
-        final String jsPayloadOrCallbackId;
-        final PluginResult pluginResult;
+        // Cleared once the message is encoded, see clearPayload().
+        String jsPayloadOrCallbackId;
+        PluginResult pluginResult;
+        // Set when the message is one chunk of a large ArrayBuffer result.
+        final int chunkOffset;
+        final int chunkLength;
+        // Set when JS fetches the ArrayBuffer from the BinaryChannel instead.
+        final String binaryUrl;
+        // Set by the producer before the message is linked in.
+        long enqueueTime;
+        volatile JsMessage next;
         JsMessage(String js) {
             if (js == null) {
                 throw new NullPointerException();
             }
             jsPayloadOrCallbackId = js;
             pluginResult = null;
+            chunkOffset = 0;
+            chunkLength = 0;
+            binaryUrl = null;
         }
         JsMessage(PluginResult pluginResult, String callbackId) {
+            this(pluginResult, callbackId, 0, 0, null);
+        }
+        JsMessage(PluginResult pluginResult, String callbackId, int chunkOffset, int chunkLength) {
+            this(pluginResult, callbackId, chunkOffset, chunkLength, null);
+        }
+        JsMessage(PluginResult pluginResult, String callbackId, String binaryUrl) {
+            this(pluginResult, callbackId, 0, 0, binaryUrl);
+        }
+        private JsMessage(PluginResult pluginResult, String callbackId, int chunkOffset, int chunkLength, String binaryUrl) {
             if (callbackId == null || pluginResult == null) {
                 throw new NullPointerException();
             }
             jsPayloadOrCallbackId = callbackId;
             this.pluginResult = pluginResult;
+            this.chunkOffset = chunkOffset;
+            this.chunkLength = chunkLength;
+            this.binaryUrl = binaryUrl;
+        }
+
+        boolean isChunk() {
+            return chunkLength > 0;
+        }
+
+        // A sent message stays in the list as the placeholder until the next
+        // one is sent, so it must not keep a large result alive until then.
+        void clearPayload() {
+            jsPayloadOrCallbackId = "";
+            pluginResult = null;
         }
         
         int calculateEncodedLength() {
@@ -427,7 +791,16 @@ public class NativeToJsMessageQueue {
                     ret += 1 + pluginResult.getMessage().length();
                     break;
                 case PluginResult.MESSAGE_TYPE_ARRAYBUFFER:
-                    ret += 1 + pluginResult.getMessage().length();
+                    if (binaryUrl != null) {
+                        ret += 1 + binaryUrl.length();
+                    } else if (isChunk()) {
+                        // Offset, total length and the Base64 of the chunk.
+                        ret += 1 + String.valueOf(chunkOffset).length() + 1
+                                + String.valueOf(pluginResult.getBinaryMessage().length).length() + 1
+                                + (chunkLength + 2) / 3 * 4;
+                    } else {
+                        ret += 1 + pluginResult.getMessage().length();
+                    }
                     break;
                 case PluginResult.MESSAGE_TYPE_JSON:
                 default:
@@ -472,9 +845,22 @@ public class NativeToJsMessageQueue {
                     sb.append('S');
                     sb.append(pluginResult.getMessage());
                     break;                    
-                case PluginResult.MESSAGE_TYPE_ARRAYBUFFER: // A
-                    sb.append('A');
-                    sb.append(pluginResult.getMessage());
+                case PluginResult.MESSAGE_TYPE_ARRAYBUFFER: // A, C or R
+                    if (binaryUrl != null) {
+                        sb.append('R')
+                          .append(binaryUrl);
+                    } else if (isChunk()) {
+                        byte[] data = pluginResult.getBinaryMessage();
+                        sb.append('C')
+                          .append(chunkOffset)
+                          .append(' ')
+                          .append(data.length)
+                          .append(' ')
+                          .append(Base64.encodeToString(data, chunkOffset, chunkLength, Base64.NO_WRAP));
+                    } else {
+                        sb.append('A');
+                        sb.append(pluginResult.getMessage());
+                    }
                     break;
                 case PluginResult.MESSAGE_TYPE_JSON:
                 default:
@@ -485,6 +871,13 @@ public class NativeToJsMessageQueue {
         void encodeAsJsMessage(StringBuilder sb) {
             if (pluginResult == null) {
                 sb.append(jsPayloadOrCallbackId);
+            } else if (binaryUrl != null || isChunk()) {
+                // Handed to exec.js, which puts the chunks back together or fetches the result.
+                StringBuilder message = new StringBuilder(calculateEncodedLength());
+                encodeAsMessage(message);
+                sb.append("cordova.require('cordova/exec').processMessages(")
+                  .append(JSONObject.quote(message.length() + " " + message))
+                  .append(");");
             } else {
                 int status = pluginResult.getStatus();
                 boolean success = (status == PluginResult.Status.OK.ordinal()) || (status == PluginResult.Status.NO_RESULT.ordinal());
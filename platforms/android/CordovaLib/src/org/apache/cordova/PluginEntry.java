@@ -29,6 +29,7 @@ import org.apache.cordova.CordovaPlugin;
  * This class represents a service entry object.
  */
 public class PluginEntry {
+    private static final String TAG = "PluginEntry";
 
     /**
      * The name of the service that this plugin implements
@@ -52,6 +53,18 @@ public class PluginEntry {
      */
     public boolean onload = false;
 
+    /**
+     * Where the plugin's exec() calls run.
+     */
+    public ExecPolicy execPolicy = ExecPolicy.DEFAULT;
+
+    /**
+     * How long loading the plugin class and creating the plugin object took,
+     * and how long its initialize() took, in nanoseconds. Set by createPlugin().
+     */
+    public long createNanos = 0;
+    public long initializeNanos = 0;
+
     /**
      * Constructor
      *
@@ -65,6 +78,19 @@ public class PluginEntry {
         this.onload = onload;
     }
 
+    /**
+     * Constructor
+     *
+     * @param service               The name of the service
+     * @param pluginClass           The plugin class name
+     * @param onload                Create plugin object when HTML page is loaded
+     * @param execPolicy            Where the plugin's exec() calls run
+     */
+    public PluginEntry(String service, String pluginClass, boolean onload, ExecPolicy execPolicy) {
+        this(service, pluginClass, onload);
+        this.execPolicy = execPolicy;
+    }
+
     /**
      * Alternate constructor
      *
@@ -89,11 +115,17 @@ public class PluginEntry {
             return this.plugin;
         }
         try {
+            long startTime = System.nanoTime();
             @SuppressWarnings("rawtypes")
             Class c = getClassByName(this.pluginClass);
             if (isCordovaPlugin(c)) {
                 this.plugin = (CordovaPlugin) c.newInstance();
+                long createdTime = System.nanoTime();
                 this.plugin.initialize(ctx, webView);
+                this.createNanos = createdTime - startTime;
+                this.initializeNanos = System.nanoTime() - createdTime;
+                LOG.d(TAG, "Created plugin %s in %d us, initialize() took %d us",
+                        this.service, this.createNanos / 1000, this.initializeNanos / 1000);
                 return plugin;
             }
         } catch (Exception e) {
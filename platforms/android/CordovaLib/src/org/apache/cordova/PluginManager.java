@@ -18,11 +18,19 @@
  */
 package org.apache.cordova;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cordova.CordovaArgs;
@@ -33,10 +41,9 @@ import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.PluginEntry;
 import org.apache.cordova.PluginResult;
 import org.json.JSONException;
-import org.xmlpull.v1.XmlPullParserException;
+import org.json.JSONObject;
 
 import android.content.Intent;
-import android.content.res.XmlResourceParser;
 
 import android.net.Uri;
 import android.os.Debug;
@@ -46,12 +53,16 @@ import android.util.Log;
  * PluginManager is exposed to JavaScript in the Cordova WebView.
  *
  * Calling native plugin code can be done by calling PluginManager.exec(...)
- * from JavaScript.
+ * from JavaScript. Each call runs inline, on the plugin's serial lane or on
+ * the thread pool, depending on the plugin's ExecPolicy.
  */
 public class PluginManager {
     private static String TAG = "PluginManager";
     private static final int SLOW_EXEC_WARNING_THRESHOLD = Debug.isDebuggerConnected() ? 60 : 16;
 
+    // How long an idle serial lane keeps its thread.
+    private static final int LANE_KEEP_ALIVE_SECONDS = 30;
+
     // List of service entries
     private final HashMap<String, PluginEntry> entries = new HashMap<String, PluginEntry>();
 
@@ -67,6 +78,20 @@ public class PluginManager {
 
     private AtomicInteger numPendingUiExecs;
 
+    // The serial and parallel lanes, by service name and mode.
+    private final HashMap<String, ExecLane> lanes = new HashMap<String, ExecLane>();
+
+    // Latency histograms, by "service.action".
+    private final ConcurrentHashMap<String, ExecStats> execStats = new ConcurrentHashMap<String, ExecStats>();
+
+    // The origin of the page plugins were last initialized for.
+    private String origin;
+
+    // What the last init() did, for getStartupTrace().
+    private long registryNanos;
+    private long initNanos;
+    private int keptPlugins;
+
     /**
      * Constructor.
      *
@@ -84,7 +109,19 @@ public class PluginManager {
      * Init when loading a new HTML page into webview.
      */
     public void init() {
+        init(null);
+    }
+
+    /**
+     * Init when loading the given URL into the webview. Plugins that return
+     * true from keepOnReload() are kept if the URL has the same origin as the
+     * previous page.
+     */
+    public void init(String url) {
         LOG.d(TAG, "init()");
+        long startTime = System.nanoTime();
+        String newOrigin = getOrigin(url);
+        keptPlugins = 0;
 
         // If first time, then load plugins from config.xml file
         if (this.firstRun) {
@@ -94,16 +131,49 @@ public class PluginManager {
 
         // Stop plugins on current HTML page and discard plugin objects
         else {
-            this.onPause(false);
-            this.onDestroy();
-            this.clearPluginObjects();
+            boolean sameOrigin = newOrigin != null && newOrigin.equals(this.origin);
+            for (PluginEntry entry : this.entries.values()) {
+                if (entry.plugin != null && !keepPlugin(entry, sameOrigin)) {
+                    entry.plugin.onPause(false);
+                }
+            }
+            for (PluginEntry entry : this.entries.values()) {
+                if (entry.plugin == null) {
+                    continue;
+                }
+                if (keepPlugin(entry, sameOrigin)) {
+                    keptPlugins += 1;
+                } else {
+                    entry.plugin.onDestroy();
+                    entry.plugin = null;
+                }
+            }
         }
+        this.origin = newOrigin;
 
         // Insert PluginManager service
         this.addService(new PluginEntry("PluginManager", new PluginManagerService()));
 
         // Start up all plugins that have onload specified
         this.startupPlugins();
+
+        initNanos = System.nanoTime() - startTime;
+        LOG.d(TAG, "init() took %d us, kept %d plugins", initNanos / 1000, keptPlugins);
+    }
+
+    private static boolean keepPlugin(PluginEntry entry, boolean sameOrigin) {
+        return sameOrigin && entry.plugin.keepOnReload();
+    }
+
+    private static String getOrigin(String url) {
+        if (url == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(url);
+        if (uri.getScheme() == null) {
+            return null;
+        }
+        return uri.getScheme() + "://" + (uri.getAuthority() == null ? "" : uri.getAuthority());
     }
 
     /**
@@ -121,60 +191,16 @@ public class PluginManager {
                 return;
             }
         }
-        XmlResourceParser xml = this.ctx.getActivity().getResources().getXml(id);
-        int eventType = -1;
-        String service = "", pluginClass = "", paramType = "";
-        boolean onload = false;
-        boolean insideFeature = false;
-        while (eventType != XmlResourceParser.END_DOCUMENT) {
-            if (eventType == XmlResourceParser.START_TAG) {
-                String strNode = xml.getName();
-                if (strNode.equals("url-filter")) {
-                    Log.w(TAG, "Plugin " + service + " is using deprecated tag <url-filter>");
-                    if (urlMap.get(service) == null) {
-                        urlMap.put(service, new ArrayList<String>(2));
-                    }
-                    List<String> filters = urlMap.get(service);
-                    filters.add(xml.getAttributeValue(null, "value"));
-                }
-                else if (strNode.equals("feature")) {
-                    //Check for supported feature sets  aka. plugins (Accelerometer, Geolocation, etc)
-                    //Set the bit for reading params
-                    insideFeature = true;
-                    service = xml.getAttributeValue(null, "name");
-                }
-                else if (insideFeature && strNode.equals("param")) {
-                    paramType = xml.getAttributeValue(null, "name");
-                    if (paramType.equals("service")) // check if it is using the older service param
-                        service = xml.getAttributeValue(null, "value");
-                    else if (paramType.equals("package") || paramType.equals("android-package"))
-                        pluginClass = xml.getAttributeValue(null,"value");
-                    else if (paramType.equals("onload"))
-                        onload = "true".equals(xml.getAttributeValue(null, "value"));
-                }
-            }
-            else if (eventType == XmlResourceParser.END_TAG)
-            {
-                String strNode = xml.getName();
-                if (strNode.equals("feature") || strNode.equals("plugin"))
-                {
-                    PluginEntry entry = new PluginEntry(service, pluginClass, onload);
-                    this.addService(entry);
-
-                    //Empty the strings to prevent plugin loading bugs
-                    service = "";
-                    pluginClass = "";
-                    insideFeature = false;
-                }
-            }
-            try {
-                eventType = xml.next();
-            } catch (XmlPullParserException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        long startTime = System.nanoTime();
+        PluginRegistry registry = PluginRegistry.get(this.ctx.getActivity().getResources(), id);
+        for (int i = 0; i < registry.size(); ++i) {
+            this.addService(new PluginEntry(registry.getService(i), registry.getPluginClass(i), registry.isOnload(i),
+                    registry.getExecPolicy(i)));
+        }
+        for (Map.Entry<String, List<String>> filters : registry.getUrlFilters().entrySet()) {
+            urlMap.put(filters.getKey(), new ArrayList<String>(filters.getValue()));
         }
+        registryNanos = System.nanoTime() - startTime;
     }
 
     /**
@@ -197,6 +223,28 @@ public class PluginManager {
         }
     }
 
+    /**
+     * Returns how long the last init() took and how long creating and
+     * initializing every created plugin took, in microseconds.
+     */
+    public JSONObject getStartupTrace() throws JSONException {
+        JSONObject trace = new JSONObject();
+        trace.put("registryMicros", registryNanos / 1000);
+        trace.put("initMicros", initNanos / 1000);
+        trace.put("keptPlugins", keptPlugins);
+        JSONObject plugins = new JSONObject();
+        for (PluginEntry entry : this.entries.values()) {
+            if (entry.plugin != null && entry.createNanos > 0) {
+                JSONObject times = new JSONObject();
+                times.put("createMicros", entry.createNanos / 1000);
+                times.put("initializeMicros", entry.initializeNanos / 1000);
+                plugins.put(entry.service, times);
+            }
+        }
+        trace.put("plugins", plugins);
+        return trace;
+    }
+
     /**
      * Receives a request for execution and fulfills it by finding the appropriate
      * Java class and calling it's execute method.
@@ -229,21 +277,56 @@ public class PluginManager {
     }
 
     private void execHelper(final String service, final String action, final String callbackId, final String rawArgs) {
-        CordovaPlugin plugin = getPlugin(service);
+        final CordovaPlugin plugin = getPlugin(service);
         if (plugin == null) {
             Log.d(TAG, "exec() call to unknown plugin: " + service);
             PluginResult cr = new PluginResult(PluginResult.Status.CLASS_NOT_FOUND_EXCEPTION);
             app.sendPluginResult(cr, callbackId);
             return;
         }
+        ExecPolicy policy = this.entries.get(service).execPolicy;
+        final int mode = policy.getMode(action);
+        final ExecStats stats = getExecStats(service, action, mode);
+        if (mode == ExecPolicy.INLINE) {
+            runExec(plugin, service, action, callbackId, rawArgs, stats, 0, true);
+            return;
+        }
+        final long queuedTime = System.nanoTime();
+        Runnable exec = new Runnable() {
+            public void run() {
+                runExec(plugin, service, action, callbackId, rawArgs, stats, System.nanoTime() - queuedTime, false);
+            }
+        };
+        if (!getLane(service, mode, policy.getQueueLimit()).offer(exec)) {
+            // Tell JS right away, so it can slow down instead of piling up calls.
+            stats.recordRejected();
+            Log.w(TAG, "exec() call to " + service + "." + action + " rejected, its " + ExecPolicy.getModeName(mode) + " lane is full");
+            try {
+                JSONObject busy = new JSONObject();
+                busy.put("busy", true);
+                busy.put("service", service);
+                busy.put("action", action);
+                busy.put("queueLimit", policy.getQueueLimit());
+                PluginResult cr = new PluginResult(PluginResult.Status.ERROR, busy);
+                cr.setFlushImmediately(true);
+                app.sendPluginResult(cr, callbackId);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runExec(CordovaPlugin plugin, String service, String action, String callbackId, String rawArgs, ExecStats stats, long waitNanos, boolean inline) {
         CallbackContext callbackContext = new CallbackContext(callbackId, app);
         try {
-            long pluginStartTime = System.currentTimeMillis();
+            long pluginStartTime = System.nanoTime();
             boolean wasValidAction = plugin.execute(action, rawArgs, callbackContext);
-            long duration = System.currentTimeMillis() - pluginStartTime;
+            long duration = System.nanoTime() - pluginStartTime;
+            stats.record(waitNanos, duration);
 
-            if (duration > SLOW_EXEC_WARNING_THRESHOLD) {
-                Log.w(TAG, "THREAD WARNING: exec() call to " + service + "." + action + " blocked the main thread for " + duration + "ms. Plugin should use CordovaInterface.getThreadPool().");
+            if (inline && duration / 1000000 > SLOW_EXEC_WARNING_THRESHOLD && stats.shouldWarn()) {
+                Log.w(TAG, "THREAD WARNING: exec() call to " + service + "." + action + " blocked the main thread for " + duration / 1000000 + "ms. "
+                        + "Give it a serial or parallel exec policy in config.xml. Later calls are only counted in getExecStats().");
             }
             if (!wasValidAction) {
                 PluginResult cr = new PluginResult(PluginResult.Status.INVALID_ACTION);
@@ -258,6 +341,44 @@ public class PluginManager {
         }
     }
 
+    private ExecStats getExecStats(String service, String action, int mode) {
+        String key = service + "." + action;
+        ExecStats stats = execStats.get(key);
+        if (stats == null) {
+            ExecStats created = new ExecStats(mode);
+            stats = execStats.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    private synchronized ExecLane getLane(String service, int mode, int queueLimit) {
+        String key = service + "/" + ExecPolicy.getModeName(mode);
+        ExecLane lane = lanes.get(key);
+        if (lane == null) {
+            if (mode == ExecPolicy.SERIAL) {
+                lane = new SerialLane(service, queueLimit);
+            } else {
+                lane = new ParallelLane(this.ctx.getThreadPool(), queueLimit);
+            }
+            lanes.put(key, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Returns the latency histograms of every action that was called, by "service.action".
+     */
+    public JSONObject getExecStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, ExecStats> entry : execStats.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toJSONObject());
+        }
+        return stats;
+    }
+
     @Deprecated
     public void exec(String service, String action, String callbackId, String jsonArgs, boolean async) {
         exec(service, action, callbackId, jsonArgs);
@@ -340,6 +461,12 @@ public class PluginManager {
                 entry.plugin.onDestroy();
             }
         }
+        synchronized (this) {
+            for (ExecLane lane : lanes.values()) {
+                lane.shutdown();
+            }
+            lanes.clear();
+        }
     }
 
     /**
@@ -437,6 +564,86 @@ public class PluginManager {
         return null;
     }
 
+    /**
+     * Runs exec() calls off the bridge thread, with a bound on how many can wait.
+     */
+    private interface ExecLane {
+        /**
+         * Returns false if the lane is full and the call was not taken.
+         */
+        boolean offer(Runnable exec);
+
+        void shutdown();
+    }
+
+    /**
+     * Runs one call at a time, in order, on a thread of its own.
+     */
+    private static class SerialLane implements ExecLane {
+        private final ThreadPoolExecutor executor;
+
+        SerialLane(final String service, int queueLimit) {
+            executor = new ThreadPoolExecutor(1, 1, LANE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "exec-" + service);
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        public boolean offer(Runnable exec) {
+            try {
+                executor.execute(exec);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        public void shutdown() {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs calls on the shared thread pool, at most queueLimit of them at once.
+     */
+    private static class ParallelLane implements ExecLane {
+        private final ExecutorService pool;
+        private final Semaphore permits;
+
+        ParallelLane(ExecutorService pool, int queueLimit) {
+            this.pool = pool;
+            this.permits = new Semaphore(queueLimit);
+        }
+
+        public boolean offer(final Runnable exec) {
+            if (!permits.tryAcquire()) {
+                return false;
+            }
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            exec.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                return false;
+            }
+        }
+
+        public void shutdown() {
+            // The pool belongs to the activity.
+        }
+    }
+
     private class PluginManagerService extends CordovaPlugin {
         @Override
         public boolean execute(String action, CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
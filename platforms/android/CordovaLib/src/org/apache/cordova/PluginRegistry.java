@@ -0,0 +1,210 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.util.Log;
+
+/**
+ * The plugins declared in res/xml/config.xml.
+ *
+ * config.xml can not change while the app runs, so it is parsed once per
+ * process and kept as an immutable table. Every PluginManager (there is a new
+ * one whenever the activity is recreated) creates its PluginEntry objects
+ * from the table instead of parsing the XML again.
+ */
+public final class PluginRegistry {
+    private static final String TAG = "PluginRegistry";
+
+    private static PluginRegistry cached;
+    private static int cachedId;
+
+    private final String[] services;
+    private final String[] pluginClasses;
+    private final boolean[] onload;
+    private final ExecPolicy[] execPolicies;
+    private final Map<String, List<String>> urlFilters;
+    private final long parseNanos;
+
+    private PluginRegistry(List<String> services, List<String> pluginClasses, List<Boolean> onload,
+            List<ExecPolicy> execPolicies, Map<String, List<String>> urlFilters, long parseNanos) {
+        int count = services.size();
+        this.services = services.toArray(new String[count]);
+        this.pluginClasses = pluginClasses.toArray(new String[count]);
+        this.onload = new boolean[count];
+        for (int i = 0; i < count; ++i) {
+            this.onload[i] = onload.get(i);
+        }
+        this.execPolicies = execPolicies.toArray(new ExecPolicy[count]);
+        this.urlFilters = Collections.unmodifiableMap(urlFilters);
+        this.parseNanos = parseNanos;
+    }
+
+    /**
+     * Returns the registry of the given config.xml resource, parsing it on first use.
+     */
+    public static synchronized PluginRegistry get(Resources resources, int id) {
+        if (cached == null || cachedId != id) {
+            XmlResourceParser xml = resources.getXml(id);
+            try {
+                cached = parse(xml);
+                cachedId = id;
+            } finally {
+                xml.close();
+            }
+        }
+        return cached;
+    }
+
+    private static PluginRegistry parse(XmlResourceParser xml) {
+        long startTime = System.nanoTime();
+        List<String> services = new ArrayList<String>();
+        List<String> pluginClasses = new ArrayList<String>();
+        List<Boolean> onloads = new ArrayList<Boolean>();
+        List<ExecPolicy> execPolicies = new ArrayList<ExecPolicy>();
+        Map<String, List<String>> urlFilters = new HashMap<String, List<String>>();
+        int eventType = -1;
+        String service = "", pluginClass = "", paramType = "";
+        boolean onload = false;
+        int execMode = ExecPolicy.INLINE;
+        Map<String, Integer> actionModes = new HashMap<String, Integer>();
+        int queueLimit = ExecPolicy.DEFAULT_QUEUE_LIMIT;
+        boolean insideFeature = false;
+        while (eventType != XmlResourceParser.END_DOCUMENT) {
+            if (eventType == XmlResourceParser.START_TAG) {
+                String strNode = xml.getName();
+                if (strNode.equals("url-filter")) {
+                    Log.w(TAG, "Plugin " + service + " is using deprecated tag <url-filter>");
+                    if (urlFilters.get(service) == null) {
+                        urlFilters.put(service, new ArrayList<String>(2));
+                    }
+                    List<String> filters = urlFilters.get(service);
+                    filters.add(xml.getAttributeValue(null, "value"));
+                }
+                else if (strNode.equals("feature")) {
+                    //Check for supported feature sets  aka. plugins (Accelerometer, Geolocation, etc)
+                    //Set the bit for reading params
+                    insideFeature = true;
+                    service = xml.getAttributeValue(null, "name");
+                }
+                else if (insideFeature && strNode.equals("param")) {
+                    paramType = xml.getAttributeValue(null, "name");
+                    if (paramType.equals("service")) // check if it is using the older service param
+                        service = xml.getAttributeValue(null, "value");
+                    else if (paramType.equals("package") || paramType.equals("android-package"))
+                        pluginClass = xml.getAttributeValue(null,"value");
+                    else if (paramType.equals("onload"))
+                        onload = "true".equals(xml.getAttributeValue(null, "value"));
+                    else if (paramType.equals("exec"))
+                        execMode = ExecPolicy.parseMode(xml.getAttributeValue(null, "value"));
+                    else if (paramType.startsWith("exec:"))
+                        actionModes.put(paramType.substring(5), ExecPolicy.parseMode(xml.getAttributeValue(null, "value")));
+                    else if (paramType.equals("exec-queue")) {
+                        try {
+                            queueLimit = Math.max(1, Integer.parseInt(xml.getAttributeValue(null, "value")));
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "Plugin " + service + " has an invalid exec-queue");
+                        }
+                    }
+                }
+            }
+            else if (eventType == XmlResourceParser.END_TAG)
+            {
+                String strNode = xml.getName();
+                if (strNode.equals("feature") || strNode.equals("plugin"))
+                {
+                    services.add(service);
+                    pluginClasses.add(pluginClass);
+                    onloads.add(onload);
+                    if (execMode == ExecPolicy.INLINE && actionModes.isEmpty()) {
+                        execPolicies.add(ExecPolicy.DEFAULT);
+                    } else {
+                        execPolicies.add(new ExecPolicy(execMode, actionModes, queueLimit));
+                    }
+
+                    //Empty the strings to prevent plugin loading bugs
+                    service = "";
+                    pluginClass = "";
+                    onload = false;
+                    execMode = ExecPolicy.INLINE;
+                    actionModes.clear();
+                    queueLimit = ExecPolicy.DEFAULT_QUEUE_LIMIT;
+                    insideFeature = false;
+                }
+            }
+            try {
+                eventType = xml.next();
+            } catch (XmlPullParserException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : urlFilters.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        long parseNanos = System.nanoTime() - startTime;
+        LOG.d(TAG, "Parsed %d plugins from config.xml in %d us", services.size(), parseNanos / 1000);
+        return new PluginRegistry(services, pluginClasses, onloads, execPolicies, urlFilters, parseNanos);
+    }
+
+    public int size() {
+        return services.length;
+    }
+
+    public String getService(int index) {
+        return services[index];
+    }
+
+    public String getPluginClass(int index) {
+        return pluginClasses[index];
+    }
+
+    public boolean isOnload(int index) {
+        return onload[index];
+    }
+
+    public ExecPolicy getExecPolicy(int index) {
+        return execPolicies[index];
+    }
+
+    /**
+     * Returns the deprecated <url-filter> values, by service name.
+     */
+    public Map<String, List<String>> getUrlFilters() {
+        return urlFilters;
+    }
+
+    /**
+     * Returns how long parsing config.xml took, in nanoseconds.
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+}
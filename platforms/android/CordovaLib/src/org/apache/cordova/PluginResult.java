@@ -27,8 +27,10 @@ public class PluginResult {
     private final int status;
     private final int messageType;
     private boolean keepCallback = false;
+    private boolean flushImmediately = false;
     private String strMessage;
     private String encodedMessage;
+    private byte[] binaryMessage;
 
     public PluginResult(Status status) {
         this(status, PluginResult.StatusMessages[status.ordinal()]);
@@ -77,13 +79,24 @@ public class PluginResult {
     public PluginResult(Status status, byte[] data, boolean binaryString) {
         this.status = status.ordinal();
         this.messageType = binaryString ? MESSAGE_TYPE_BINARYSTRING : MESSAGE_TYPE_ARRAYBUFFER;
-        this.encodedMessage = Base64.encodeToString(data, Base64.NO_WRAP);
+        // Encoded when first needed. Large ArrayBuffers are sent through the
+        // BinaryChannel instead and never encoded as a whole. Copied, so the
+        // plugin can reuse its array while the result waits in the queue.
+        this.binaryMessage = data.clone();
     }
     
     public void setKeepCallback(boolean b) {
         this.keepCallback = b;
     }
 
+    /**
+     * Sends the result to JS right away instead of together with the other
+     * messages of the current frame. Use it for results JS is waiting on.
+     */
+    public void setFlushImmediately(boolean b) {
+        this.flushImmediately = b;
+    }
+
     public int getStatus() {
         return status;
     }
@@ -94,11 +107,23 @@ public class PluginResult {
 
     public String getMessage() {
         if (encodedMessage == null) {
-            encodedMessage = JSONObject.quote(strMessage);
+            if (binaryMessage != null) {
+                encodedMessage = Base64.encodeToString(binaryMessage, Base64.NO_WRAP);
+            } else {
+                encodedMessage = JSONObject.quote(strMessage);
+            }
         }
         return encodedMessage;
     }
 
+    /**
+     * If messageType == MESSAGE_TYPE_ARRAYBUFFER or MESSAGE_TYPE_BINARYSTRING,
+     * then returns the bytes. Otherwise, returns null.
+     */
+    public byte[] getBinaryMessage() {
+        return binaryMessage;
+    }
+
     /**
      * If messageType == MESSAGE_TYPE_STRING, then returns the message string.
      * Otherwise, returns null.
@@ -111,6 +136,10 @@ public class PluginResult {
         return this.keepCallback;
     }
 
+    public boolean getFlushImmediately() {
+        return this.flushImmediately;
+    }
+
     @Deprecated // Use sendPluginResult instead of sendJavascript.
     public String getJSONString() {
         return "{\"status\":" + this.status + ",\"message\":" + this.getMessage() + ",\"keepCallback\":" + this.keepCallback + "}";
@@ -19,12 +19,18 @@
 var app = {
     /* sumorobot code for interactive mode */
     code: "",
-    /* interval for querying sensor values */
-    sensorInterval: null,
+    /* how many times per second the sensor values are streamed */
+    sensorRate: 20,
     /* disable/enable interavtive mode */
     interactiveMode: false,
     /* sensor values */
     sensorValues: [0, 0, 0, 0, 0],
+    /* whether the upload progressbar is showing */
+    uploadProgressShown: false,
+    /* the sumorobots known from discovery, the ones in range first */
+    sumorobots: [],
+    /* how uploads check the written pages: "none", or reading them back "full" or by the quicker "crc" */
+    verifyMode: "none",
     /* application constructor */
     initialize: function() {
         /* add deviceready event listener */
@@ -115,7 +121,17 @@ var app = {
         };
         var extractCompiler = function(response) {
             /* extract tarballs and when finished start sumorobot discovery */
-            app.pluginCallback("Compiler", "extractCompiler", []);
+            navigator.notification.progressStart("Install", "Extracting compiler");
+            app.pluginCallback("Compiler", "extractCompiler", [], function(event) {
+                if (event.event === "progress") {
+                    navigator.notification.progressValue(parseInt((event.bytes / event.totalBytes) * 100));
+                } else {
+                    navigator.notification.progressStop();
+                }
+            }, function(error) {
+                navigator.notification.progressStop();
+                app.showMessage(error);
+            });
         };
         /* create the sumodroid folder */
         app.pluginCallback("Compiler", "createFolder", ["sumodroid"], downloadBusybox);
@@ -179,6 +195,53 @@ var app = {
         app.pluginCallback("Compiler", "sendCommands", ["p"]);
     },
 
+    startSensorStream: function() {
+        /* the plugin keeps calling back with batches of sensor values */
+        cordova.exec(
+            function(samples) {
+                /* only the newest sample matters for evaluating the code */
+                if (samples.length > 0) {
+                    app.receiveSensorValues(samples[samples.length - 1]);
+                }
+            },
+            function(error) { app.showMessage(error); },
+            "Compiler", "startSensorStream", [app.sensorRate]
+        );
+    },
+
+    stopSensorStream: function() {
+        app.pluginCallback("Compiler", "stopSensorStream", []);
+    },
+
+    sendCommandBatch: function(steps, successCallback) {
+        /* steps are [delay in ms, commands] pairs, the sumorobot runs them on its own clock when it can */
+        cordova.exec(
+            function(result) {
+                if (successCallback) {
+                    successCallback(result);
+                }
+            },
+            function(error) { app.showMessage(error); },
+            "Compiler", "sendCommandBatch", [steps]
+        );
+    },
+
+    getSensorRecording: function(since, maxPoints, successCallback) {
+        /* the recorded samples as [time, values...], averaged down to at most maxPoints */
+        cordova.exec(successCallback, function(error) { app.showMessage(error); },
+            "Compiler", "getSensorRecording", [since, maxPoints]);
+    },
+
+    exportSensorRecording: function(format, successCallback) {
+        /* format is "csv" or "binary", the result has the file url for the file plugin */
+        cordova.exec(successCallback, function(error) { app.showMessage(app.errorMessage(error)); },
+            "Compiler", "exportSensorRecording", [format]);
+    },
+
+    clearSensorRecording: function() {
+        app.pluginCallback("Compiler", "clearSensorRecording", []);
+    },
+
     receiveSensorValues: function(values) {
         /* save the sensor values */
         app.sensorValues = values;
@@ -230,22 +293,88 @@ var app = {
         /* when in interactive mode */
         if (app.interactiveMode) {
             /* upload the interactive program to the Sumorobot and leave bluetooth connected */
-            app.pluginCallback("Compiler", "uploadProgram", ["checkForCommands();", false]);
-            /* start listening to change events */
+            app.pluginCallback("Compiler", "uploadProgram", ["checkForCommands();", false, app.verifyMode], app.onUploadEvent);
+            /* start listening to change events, the sensor stream starts after uploading */
             Blockly.addChangeListener(app.onCodeChanged);
-            /* set a interval for getting sensor values */
-            //setTimeout(function() { app.sensorInterval = setInterval(app.querySensorValues, 1000); }, 5000);
         } else {
             /* stop listening for change events */
             Blockly.removeChangeListener(app.onCodeChanged);
-            /* clear the interval */
-            //clearInterval(app.sensorInterval);
+            /* stop streaming sensor values */
+            app.stopSensorStream();
         }
     },
 
     /* function to upload program to the sumorobot and disconnect bluetooth */
     uploadProgram: function() {
-        app.pluginCallback("Compiler", "uploadProgram", [Blockly.Sumorobot.workspaceToCode(), true]);
+        app.pluginCallback("Compiler", "uploadProgram", [Blockly.Sumorobot.workspaceToCode(), true, app.verifyMode], app.onUploadEvent);
+    },
+
+    /* function to upload program to several sumorobots, all paired ones when no addresses are given */
+    uploadProgramToFleet: function(addresses) {
+        app.pluginCallback("Compiler", "uploadProgramToFleet", [Blockly.Sumorobot.workspaceToCode(), addresses || null, null, app.verifyMode], app.onFleetUploadEvent);
+    },
+
+    /* function to show the result of every sumorobot in a fleet upload */
+    onFleetUploadEvent: function(event) {
+        if (typeof(event) !== 'object') {
+            return;
+        }
+        if (event.event === "done") {
+            console.log("upload report: " + JSON.stringify(event));
+        } else if (event.event === "fleetDone") {
+            var failed = event.robots.filter(function(report) {
+                return !report.success;
+            }).map(function(report) {
+                return report.address + " while " + report.failurePhase + ": " + report.failure;
+            });
+            app.showMessage("Uploaded to " + (event.robots.length - failed.length) + " of " + event.robots.length + " sumorobots" +
+                (failed.length > 0 ? "\n" + failed.join("\n") : ""));
+        }
+    },
+
+    /* function to show the upload progress and result */
+    onUploadEvent: function(event) {
+        /* the first response is the "Uploading program" message */
+        if (typeof(event) !== 'object') {
+            return;
+        }
+        if (event.event === "progress") {
+            if (!app.uploadProgressShown) {
+                navigator.notification.progressStart("Upload", "Uploading program");
+                app.uploadProgressShown = true;
+            }
+            if (event.totalPages > 0) {
+                navigator.notification.progressValue(parseInt((event.pages / event.totalPages) * 100));
+            }
+        } else if (event.event === "done") {
+            navigator.notification.progressStop();
+            app.uploadProgressShown = false;
+            console.log("upload report: " + JSON.stringify(event));
+            if (!event.success && event.failure.indexOf("cancelled") === 0) {
+                /* uploading the same program again goes on where it stopped */
+                app.showMessage("Uploading cancelled");
+            } else if (!event.success) {
+                app.showMessage("Uploading failed while " + event.failurePhase + ": " + event.failure);
+            }
+        }
+    },
+
+    /* function to show the outcome of compiling the program */
+    receiveCompileResult: function(result) {
+        console.log("compiling took " + result.totalMillis + " ms: " + JSON.stringify(result.phases));
+        if (result.timedOut) {
+            app.showMessage("Compiling the program took too long");
+        } else if (result.exitCode !== 0) {
+            /* show the errors with their line numbers */
+            var errors = result.diagnostics.filter(function(diagnostic) {
+                return diagnostic.severity.indexOf("error") !== -1;
+            }).map(function(diagnostic) {
+                /* count the lines from the start of the user's code */
+                var userCode = /(main\.ino|loop\.cpp)$/.test(diagnostic.file);
+                return "line " + (userCode ? diagnostic.line - result.headerLines : diagnostic.line) + ": " + diagnostic.message;
+            });
+            app.showMessage("Compiling the program failed" + (errors.length > 0 ? "\n" + errors.join("\n") : ""));
+        }
     },
 
     /* function to cancel uploading program to the sumorobot */
@@ -255,20 +384,36 @@ var app = {
 
     /* function to start sumorobot discovery */
     startSumorobotDiscovery: function() {
-        app.pluginCallback("Compiler", "startSumorobotDiscovery", []);
+        app.pluginCallback("Compiler", "startSumorobotDiscovery", [], app.onDiscoveryEvent);
+    },
+
+    /* function to keep the list of sumorobots up to date while discovering */
+    onDiscoveryEvent: function(event) {
+        if (event.event === "found") {
+            /* replace the robot's previous entry */
+            app.sumorobots = app.sumorobots.filter(function(robot) {
+                return robot.address !== event.robot.address;
+            });
+            app.sumorobots.push(event.robot);
+        } else {
+            /* the cached robots when starting and the ranked robots when finished */
+            app.sumorobots = event.robots;
+        }
     },
 
     /* function to show sumorobot names for selection */
-    showSumorobots: function(devices) {
+    showSumorobots: function(robots) {
         /* will be called when a sumorobot was selected */
         var selectSumorobot = function(sumorobotIndex) {
             /* notify the compiler which sumorobot was selected */
-            app.pluginCallback("Compiler", "selectSumorobot", [sumorobotIndex - 1]);
+            app.pluginCallback("Compiler", "selectSumorobot", [robots[sumorobotIndex - 1].address]);
         };
         /* when at least one device was found */
-        if (devices.length > 0) {
+        if (robots.length > 0) {
             /* message, confirm callback, title, button names */
-            navigator.notification.confirm("Please select your Sumorobot", selectSumorobot, "Message", devices);
+            navigator.notification.confirm("Please select your Sumorobot", selectSumorobot, "Message", robots.map(function(robot) {
+                return robot.name;
+            }));
         /* otherwise notify user to check the sumorobot's bluetooth device */
         } else {
             app.showMessage("Please make sure the Sumorobot's bluetooth is switched ON");
@@ -285,6 +430,15 @@ var app = {
         navigator.notification.activityStop();
     },
 
+    /* function to turn a plugin error into a message */
+    errorMessage: function(error) {
+        /* the action's exec lane was full, see config.xml */
+        if (error && error.busy) {
+            return "Still busy with " + error.action + ", please try again";
+        }
+        return error;
+    },
+
     /* function to make a asynchronous call to the plugins */
     pluginCallback: function(plugin, action, args, successCallback, failureCallback) {
         cordova.exec(
@@ -309,7 +463,7 @@ var app = {
                 /* otherwise */
                 } else {
                     /* show the error */
-                    app.showMessage(error);
+                    app.showMessage(app.errorMessage(error));
                 }
             },
             plugin, // name of the plugin
@@ -0,0 +1,103 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package android.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stands in for android.jar's android.util.Base64 when the benchmarks in
+ * bench/ run on a desktop JVM, where the real one throws "Stub!". Put it on
+ * the classpath before android.jar. It uses java.util.Base64, so it needs
+ * Java 8 or newer.
+ *
+ * Like Android's, it wraps encoded lines at 76 characters unless NO_WRAP is
+ * given, and decoding skips line breaks.
+ */
+public class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_PADDING = 1;
+    public static final int NO_WRAP = 2;
+    public static final int CRLF = 4;
+    public static final int URL_SAFE = 8;
+    public static final int NO_CLOSE = 16;
+
+    private Base64() {
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return decode(str.getBytes(StandardCharsets.US_ASCII), flags);
+    }
+
+    public static byte[] decode(byte[] input, int flags) {
+        return decode(input, 0, input.length, flags);
+    }
+
+    public static byte[] decode(byte[] input, int offset, int len, int flags) {
+        byte[] encoded = new byte[len];
+        int length = 0;
+        for (int i = offset; i < offset + len; i++) {
+            byte value = input[i];
+            if (value != '\n' && value != '\r' && value != ' ' && value != '\t') {
+                encoded[length++] = value;
+            }
+        }
+        encoded = Arrays.copyOf(encoded, length);
+        if ((flags & URL_SAFE) != 0) {
+            return java.util.Base64.getUrlDecoder().decode(encoded);
+        }
+        return java.util.Base64.getDecoder().decode(encoded);
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return encodeToString(input, 0, input.length, flags);
+    }
+
+    public static String encodeToString(byte[] input, int offset, int len, int flags) {
+        return new String(encode(input, offset, len, flags), StandardCharsets.US_ASCII);
+    }
+
+    public static byte[] encode(byte[] input, int flags) {
+        return encode(input, 0, input.length, flags);
+    }
+
+    public static byte[] encode(byte[] input, int offset, int len, int flags) {
+        java.util.Base64.Encoder encoder;
+        if ((flags & NO_WRAP) != 0) {
+            encoder = (flags & URL_SAFE) != 0 ? java.util.Base64.getUrlEncoder() : java.util.Base64.getEncoder();
+        } else {
+            encoder = java.util.Base64.getMimeEncoder(76, (flags & CRLF) != 0 ? new byte[] { '\r', '\n' } : new byte[] { '\n' });
+        }
+        if ((flags & NO_PADDING) != 0) {
+            encoder = encoder.withoutPadding();
+        }
+        byte[] data = offset == 0 && len == input.length ? input : Arrays.copyOfRange(input, offset, offset + len);
+        byte[] encoded = encoder.encode(data);
+        if ((flags & NO_WRAP) != 0 || encoded.length == 0) {
+            return encoded;
+        }
+        // Android ends the last line with a line break too.
+        String lineBreak = (flags & CRLF) != 0 ? "\r\n" : "\n";
+        byte[] ended = Arrays.copyOf(encoded, encoded.length + lineBreak.length());
+        for (int i = 0; i < lineBreak.length(); i++) {
+            ended[encoded.length + i] = (byte) lineBreak.charAt(i);
+        }
+        return ended;
+    }
+}
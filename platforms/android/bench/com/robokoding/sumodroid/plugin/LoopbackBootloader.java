@@ -0,0 +1,489 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class stands in for an optiboot bootloader behind a bluetooth link,
+ * so uploads can be run and timed without a Sumorobot.
+ *
+ * The streams delay every byte by the configured one-way latency, like the
+ * RFCOMM link between the phone and the Sumorobot's bluetooth module does.
+ * The link can also be limited in bandwidth and made to drop or corrupt
+ * bytes. Like optiboot, the bootloader writes a page after answering
+ * STK_INSYNC and only then STK_OK, and the bytes that arrive during the
+ * write are lost, so a second frame sent ahead does not get through.
+ * After LEAVE_PROGMODE the simulated Sumorobot runs its program,
+ * which answers sensor queries in ASCII or, once asked, in binary frames,
+ * and acknowledges batched command frames.
+ */
+public class LoopbackBootloader implements Runnable {
+    /* ATmega328P */
+    private static final byte[] SIGNATURE = new byte[] {0x1E, (byte) 0x95, 0x0F};
+    /* optiboot version 4.4 */
+    private static final int MAJOR_VERSION = 4;
+    private static final int MINOR_VERSION = 4;
+    /* STK500v1 commands optiboot accepts and ignores */
+    private static final int STK_SET_DEVICE = 0x42;
+    private static final int STK_SET_DEVICE_EXT = 0x45;
+    private static final int STK_UNIVERSAL = 0x56;
+    /* the answer to a page command outside the flash */
+    private static final int STK_FAILED = 0x11;
+    /* how long the ATmega328P takes to write a page, the UART is not read meanwhile */
+    private static final long PAGE_WRITE_NANOS = 4500000;
+
+    private final byte[] flash;
+    /* phone to bootloader */
+    private final Pipe commands;
+    /* bootloader to phone */
+    private final Pipe replies;
+    /* word address set by LOAD_ADDRESS */
+    private int address = 0;
+    private int pagesWritten = 0;
+    /* whether the program runs instead of the bootloader */
+    private volatile boolean sketchRunning = false;
+    private boolean binaryTelemetry = false;
+    private final int[] sensorValues = new int[SensorTelemetry.SENSOR_COUNT];
+    /* the sequence number of the next command frame */
+    private int expectedSequence = 0;
+    private int batchedCommands = 0;
+
+    public LoopbackBootloader(long latencyMillis) {
+        this(latencyMillis, 0, 0, 0, 0);
+    }
+
+    /**
+     * @param latencyMillis the one-way delay of every byte
+     * @param bytesPerSecond the link speed in each direction, 0 for unlimited
+     * @param dropRate the share of bytes lost on the link
+     * @param corruptRate the share of bytes with a flipped bit
+     * @param seed makes the lost and corrupted bytes repeatable
+     */
+    public LoopbackBootloader(long latencyMillis, int bytesPerSecond, double dropRate, double corruptRate, long seed) {
+        this(latencyMillis, bytesPerSecond, dropRate, corruptRate, seed, createFlash());
+    }
+
+    /**
+     * A robot with the given flash, e.g. the one it had before reconnecting.
+     */
+    public LoopbackBootloader(long latencyMillis, int bytesPerSecond, double dropRate, double corruptRate, long seed, byte[] flash) {
+        this.flash = flash;
+        commands = new Pipe(latencyMillis, bytesPerSecond, dropRate, corruptRate, new Random(seed));
+        replies = new Pipe(latencyMillis, bytesPerSecond, dropRate, corruptRate, new Random(seed + 1));
+    }
+
+    /* an erased ATmega328P flash */
+    public static byte[] createFlash() {
+        byte[] flash = new byte[Stk500Programmer.FLASH_SIZE];
+        Arrays.fill(flash, (byte) 0xFF);
+        return flash;
+    }
+
+    /**
+     * Starts the bootloader on a daemon thread.
+     */
+    public LoopbackBootloader start() {
+        Thread thread = new Thread(this, "loopback-bootloader");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /* the stream the phone writes commands to */
+    public OutputStream getOutputStream() {
+        return commands.outputStream;
+    }
+
+    /* the stream the phone reads replies from */
+    public InputStream getInputStream() {
+        return replies.inputStream;
+    }
+
+    public byte[] getFlash() {
+        return flash;
+    }
+
+    public int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /* starts the bootloader again like reconnecting resets the robot, the flash is kept */
+    public void reset() {
+        sketchRunning = false;
+    }
+
+    /* the values the program answers sensor queries with */
+    public void setSensorValues(int[] values) {
+        synchronized (sensorValues) {
+            System.arraycopy(values, 0, sensorValues, 0, sensorValues.length);
+        }
+    }
+
+    /* how many command frames the program received in order */
+    public synchronized int getBatchedCommands() {
+        return batchedCommands;
+    }
+
+    /* how many bytes the link lost or corrupted in both directions */
+    public int getDamagedBytes() {
+        return commands.getDamaged() + replies.getDamaged();
+    }
+
+    /* how many bytes arrived while a page was written and were lost */
+    public int getOverrunBytes() {
+        return commands.getOverrun();
+    }
+
+    @Override
+    public void run() {
+        InputStream in = commands.inputStream;
+        OutputStream out = replies.outputStream;
+        try {
+            int command;
+            while ((command = in.read()) != -1) {
+                if (sketchRunning) {
+                    runSketchCommand(command, in, out);
+                    continue;
+                }
+                if (command == Stk500Programmer.STK_GET_PARAMETER) {
+                    int parameter = in.read();
+                    if (!verifySpace(in, out)) continue;
+                    if (parameter == Stk500Programmer.STK_SW_MAJOR) {
+                        out.write(MAJOR_VERSION);
+                    } else if (parameter == Stk500Programmer.STK_SW_MINOR) {
+                        out.write(MINOR_VERSION);
+                    } else {
+                        out.write(0x03);
+                    }
+                } else if (command == STK_SET_DEVICE) {
+                    skip(in, 20);
+                    if (!verifySpace(in, out)) continue;
+                } else if (command == STK_SET_DEVICE_EXT) {
+                    skip(in, 5);
+                    if (!verifySpace(in, out)) continue;
+                } else if (command == Stk500Programmer.STK_LOAD_ADDRESS) {
+                    address = in.read() | (in.read() << 8);
+                    if (!verifySpace(in, out)) continue;
+                } else if (command == STK_UNIVERSAL) {
+                    skip(in, 4);
+                    if (!verifySpace(in, out)) continue;
+                    out.write(0x00);
+                } else if (command == Stk500Programmer.STK_PROG_PAGE) {
+                    int length = (in.read() << 8) | in.read();
+                    in.read();
+                    byte[] page = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        page[i] = (byte) in.read();
+                    }
+                    if (!verifySpace(in, out)) continue;
+                    /* a damaged length or address must not write outside the page */
+                    if (length > Stk500Programmer.PAGE_SIZE || !isInFlash(length)) {
+                        out.write(STK_FAILED);
+                        continue;
+                    }
+                    /* the page is erased first, a short write leaves the rest erased */
+                    int pageStart = address * 2 / Stk500Programmer.PAGE_SIZE * Stk500Programmer.PAGE_SIZE;
+                    Arrays.fill(flash, pageStart, Math.min(flash.length, pageStart + Stk500Programmer.PAGE_SIZE), (byte) 0xFF);
+                    System.arraycopy(page, 0, flash, address * 2, length);
+                    pagesWritten++;
+                    commands.overrun(PAGE_WRITE_NANOS);
+                    sleep(PAGE_WRITE_NANOS);
+                } else if (command == Stk500Programmer.STK_READ_PAGE) {
+                    int length = (in.read() << 8) | in.read();
+                    in.read();
+                    if (!verifySpace(in, out)) continue;
+                    if (!isInFlash(length)) {
+                        out.write(STK_FAILED);
+                        continue;
+                    }
+                    out.write(flash, address * 2, length);
+                } else if (command == Stk500Programmer.STK_READ_SIGN) {
+                    if (!verifySpace(in, out)) continue;
+                    out.write(SIGNATURE);
+                } else if (command == Stk500Programmer.STK_LEAVE_PROGMODE) {
+                    if (!verifySpace(in, out)) continue;
+                    /* optiboot answers and then starts the program */
+                    sketchRunning = true;
+                } else {
+                    /* GET_SYNC, ENTER_PROGMODE, LEAVE_PROGMODE, ... */
+                    if (!verifySpace(in, out)) continue;
+                }
+                out.write(Stk500Programmer.STK_OK);
+            }
+        } catch (IOException e) {
+            /* the phone closed the link */
+        } catch (InterruptedException e) {
+            /* stopped while writing a page */
+        }
+        replies.close();
+    }
+
+    /* whether length bytes from the loaded address are all in the flash */
+    private boolean isInFlash(int length) {
+        return address * 2 + length <= flash.length;
+    }
+
+    /* the Sumorobot program ignores everything but sensor queries, format requests and command frames */
+    private void runSketchCommand(int command, InputStream in, OutputStream out) throws IOException {
+        if (command == CommandBatch.BATCH_REQUEST) {
+            expectedSequence = 0;
+            writeAck(out, CommandBatch.NO_SEQUENCE);
+        } else if (command == CommandBatch.FRAME_SYNC) {
+            byte[] frame = new byte[4 + 255];
+            for (int i = 0; i < 4; i++) {
+                frame[i] = (byte) in.read();
+            }
+            int length = frame[3] & 0xFF;
+            for (int i = 0; i < length; i++) {
+                frame[4 + i] = (byte) in.read();
+            }
+            int crc = in.read();
+            /* frames out of order are dropped, the ack tells where to continue */
+            if (crc == SensorTelemetry.crc8(frame, 0, 4 + length, 0) && (frame[0] & 0xFF) == expectedSequence) {
+                expectedSequence = (expectedSequence + 1) & 0xFF;
+                synchronized (this) {
+                    batchedCommands++;
+                }
+            }
+            writeAck(out, (expectedSequence - 1) & 0xFF);
+        } else if (command == SensorTelemetry.BINARY_REQUEST) {
+            binaryTelemetry = true;
+            out.write(new byte[] {(byte) SensorTelemetry.FRAME_SYNC, 0, (byte) SensorTelemetry.crc8(new byte[] {0}, 0, 1, 0)});
+        } else if (command == 'p') {
+            int[] values = new int[sensorValues.length];
+            synchronized (sensorValues) {
+                System.arraycopy(sensorValues, 0, values, 0, values.length);
+            }
+            if (binaryTelemetry) {
+                byte[] frame = new byte[3 + values.length * 2];
+                frame[0] = (byte) SensorTelemetry.FRAME_SYNC;
+                frame[1] = (byte) (values.length * 2);
+                for (int i = 0; i < values.length; i++) {
+                    frame[2 + i * 2] = (byte) (values[i] & 0xFF);
+                    frame[3 + i * 2] = (byte) ((values[i] >> 8) & 0xFF);
+                }
+                frame[frame.length - 1] = (byte) SensorTelemetry.crc8(frame, 1, frame.length - 2, 0);
+                out.write(frame);
+            } else {
+                StringBuilder reply = new StringBuilder("[");
+                for (int i = 0; i < values.length; i++) {
+                    reply.append(i > 0 ? "," : "").append(values[i]);
+                }
+                out.write(reply.append("]\r\n").toString().getBytes("US-ASCII"));
+            }
+        }
+    }
+
+    private void writeAck(OutputStream out, int sequence) throws IOException {
+        out.write(new byte[] {(byte) CommandBatch.ACK_SYNC, (byte) sequence, (byte) SensorTelemetry.crc8(new byte[] {(byte) sequence}, 0, 1, 0)});
+    }
+
+    /* optiboot resets itself when a command does not end with CRC_EOP */
+    private boolean verifySpace(InputStream in, OutputStream out) throws IOException {
+        if (in.read() != Stk500Programmer.CRC_EOP) {
+            return false;
+        }
+        out.write(Stk500Programmer.STK_INSYNC);
+        return true;
+    }
+
+    private static void sleep(long nanos) throws InterruptedException {
+        Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+    }
+
+    private void skip(InputStream in, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            in.read();
+        }
+    }
+
+    /**
+     * A byte queue which releases every byte only after the latency has passed
+     * and, with a bandwidth limit, the bytes before it have been sent.
+     */
+    static class Pipe {
+        private final long latency;
+        private final long nanosPerByte;
+        private final double dropRate;
+        private final double corruptRate;
+        private final Random random;
+        /* when the last queued byte arrives */
+        private long lastDue = 0;
+        private int damaged = 0;
+        /* bytes that arrive between these times are lost, see overrun() */
+        private long overrunFrom = 0;
+        private long overrunUntil = 0;
+        private int overrun = 0;
+        private byte[] data = new byte[4096];
+        private long[] due = new long[4096];
+        private int head = 0;
+        private int count = 0;
+        private boolean closed = false;
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return take();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int value = take();
+                if (value == -1) {
+                    return -1;
+                }
+                buffer[offset] = (byte) value;
+                int read = 1;
+                while (read < length && ready()) {
+                    buffer[offset + read++] = (byte) take();
+                }
+                return read;
+            }
+
+            @Override
+            public int available() {
+                return readyCount();
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int value) throws IOException {
+                put(new byte[] {(byte) value}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                put(buffer, offset, length);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(long latency, int bytesPerSecond, double dropRate, double corruptRate, Random random) {
+            this.latency = latency;
+            this.nanosPerByte = bytesPerSecond > 0 ? 1000000000L / bytesPerSecond : 0;
+            this.dropRate = dropRate;
+            this.corruptRate = corruptRate;
+            this.random = random;
+        }
+
+        synchronized int getDamaged() {
+            return damaged;
+        }
+
+        synchronized int getOverrun() {
+            return overrun;
+        }
+
+        /**
+         * Loses the bytes that arrive within the given time, like a UART
+         * that is not read while the CPU is busy.
+         */
+        synchronized void overrun(long nanos) {
+            overrunFrom = System.nanoTime();
+            overrunUntil = overrunFrom + nanos;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private synchronized void put(byte[] buffer, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("pipe closed");
+            }
+            long now = System.nanoTime();
+            long when = now + latency * 1000000L;
+            for (int i = 0; i < length; i++) {
+                byte value = buffer[offset + i];
+                if (dropRate > 0 && random.nextDouble() < dropRate) {
+                    damaged++;
+                    continue;
+                }
+                if (corruptRate > 0 && random.nextDouble() < corruptRate) {
+                    value ^= 1 << random.nextInt(8);
+                    damaged++;
+                }
+                if (count == data.length) {
+                    grow();
+                }
+                /* a byte can not arrive before the ones sent ahead of it have gone through */
+                lastDue = Math.max(when, lastDue + nanosPerByte);
+                int tail = (head + count) % data.length;
+                data[tail] = value;
+                due[tail] = lastDue;
+                count++;
+            }
+            notifyAll();
+        }
+
+        private synchronized int take() throws IOException {
+            try {
+                while (true) {
+                    if (count > 0) {
+                        long wait = due[head] - System.nanoTime();
+                        if (wait <= 0) {
+                            int value = data[head] & 0xFF;
+                            boolean lost = due[head] >= overrunFrom && due[head] < overrunUntil;
+                            head = (head + 1) % data.length;
+                            count--;
+                            if (!lost) {
+                                return value;
+                            }
+                            overrun++;
+                            continue;
+                        }
+                        wait(wait / 1000000L, (int) (wait % 1000000L));
+                    } else if (closed) {
+                        return -1;
+                    } else {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+        }
+
+        private synchronized boolean ready() {
+            return count > 0 && due[head] <= System.nanoTime();
+        }
+
+        private synchronized int readyCount() {
+            long now = System.nanoTime();
+            int ready = 0;
+            while (ready < count && due[(head + ready) % data.length] <= now) {
+                ready++;
+            }
+            return ready;
+        }
+
+        private void grow() {
+            byte[] newData = new byte[data.length * 2];
+            long[] newDue = new long[due.length * 2];
+            for (int i = 0; i < count; i++) {
+                newData[i] = data[(head + i) % data.length];
+                newDue[i] = due[(head + i) % due.length];
+            }
+            data = newData;
+            due = newDue;
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class connects to a simulated Sumorobot. Like the real one, the
+ * simulated robot resets into its bootloader on every connect and keeps
+ * its flash. Every robot has a link of its own, the simulation does not
+ * share one radio between them.
+ */
+public class LoopbackTransport implements RobotTransport {
+    private final long connectMillis;
+    private final long latencyMillis;
+    private final byte[] flash = LoopbackBootloader.createFlash();
+    private LoopbackBootloader bootloader = null;
+
+    /**
+     * Creates a simulated robot for every address.
+     */
+    public static RobotTransport.Factory factory(final long connectMillis, final long latencyMillis) {
+        return new RobotTransport.Factory() {
+            @Override
+            public RobotTransport create(String address) {
+                return new LoopbackTransport(connectMillis, latencyMillis);
+            }
+        };
+    }
+
+    public LoopbackTransport(long connectMillis, long latencyMillis) {
+        this.connectMillis = connectMillis;
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        close();
+        try {
+            Thread.sleep(connectMillis);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+        LoopbackBootloader newBootloader = new LoopbackBootloader(latencyMillis, 0, 0, 0, 0, flash).start();
+        synchronized (this) {
+            bootloader = newBootloader;
+        }
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (bootloader == null) {
+            throw new IOException("not connected");
+        }
+        return bootloader.getInputStream();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (bootloader == null) {
+            throw new IOException("not connected");
+        }
+        return bootloader.getOutputStream();
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return bootloader != null;
+    }
+
+    /* the simulated robot's flash, kept between connections */
+    public byte[] getFlash() {
+        return flash;
+    }
+
+    /* the simulated robot of the current connection */
+    public synchronized LoopbackBootloader getBootloader() {
+        return bootloader;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (bootloader != null) {
+            try {
+                bootloader.getOutputStream().close();
+                bootloader.getInputStream().close();
+            } catch (IOException e) {
+                /* nothing to do */
+            }
+            bootloader = null;
+        }
+    }
+}
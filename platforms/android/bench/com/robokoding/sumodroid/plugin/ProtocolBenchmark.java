@@ -0,0 +1,471 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.util.Map;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class measures the upload and sensor protocols against simulated
+ * Sumorobots, so protocol changes can be compared on any computer with a JDK.
+ *
+ * It runs the same classes the plugin uses for uploading (IntelHexParser,
+ * Stk500Programmer, and FleetUploader with RobotSessionManager for many
+ * robots) and for reading sensors (SensorTelemetry), only with
+ * LoopbackBootloader instead of a bluetooth link. The simulator and the
+ * benchmarks live in bench/, outside the app's sources, so they are not
+ * part of the APK. Everything they need is plain Java, from platforms/android:
+ *
+ *     javac -d /tmp/sumodroid $(ls src/com/robokoding/sumodroid/plugin/*.java | grep -v -e Compiler -e Bluetooth) \
+ *         bench/com/robokoding/sumodroid/plugin/*.java
+ *     java -cp /tmp/sumodroid com.robokoding.sumodroid.plugin.ProtocolBenchmark
+ *
+ * The exit code is 1 when a scenario that should succeed does not, e.g.
+ * when the flash differs from the image after an upload.
+ */
+public class ProtocolBenchmark {
+    /* a typical Sumorobot program */
+    private static final int PROGRAM_SIZE = 14 * 1024;
+    /* 115200 baud between the bluetooth module and the ATmega */
+    private static final int SERIAL_BYTES_PER_SECOND = 11520;
+    private static final int SENSOR_QUERIES = 200;
+    /* a classroom of robots with a small program each */
+    private static final int FLEET_SIZE = 8;
+    private static final int FLEET_PROGRAM_SIZE = 8 * 1024;
+    private static final long FLEET_CONNECT_MILLIS = 200;
+
+    private boolean failed = false;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new ProtocolBenchmark().run() ? 0 : 1);
+    }
+
+    /**
+     * Runs every scenario and prints one line per result.
+     *
+     * @return whether every scenario that should succeed did
+     */
+    public boolean run() throws Exception {
+        byte[] image = new byte[PROGRAM_SIZE];
+        new Random(1).nextBytes(image);
+
+        benchmarkHexParser();
+        /* one frame in flight, optiboot can not take more */
+        for (long latency : new long[] {5, 15, 30}) {
+            benchmarkUpload(image, latency, Stk500Programmer.DEFAULT_WINDOW, 0, 0, true);
+        }
+        /* a frame sent ahead arrives while the page is written and is lost */
+        benchmarkUpload(image, 15, 2, 0, 0, false);
+        benchmarkVerify(image, 15);
+        benchmarkResume(image, 15, Stk500Programmer.DEFAULT_WINDOW);
+        for (long latency : new long[] {5, 30}) {
+            benchmarkLinkProbe(latency);
+        }
+        /* a bad link has to fail cleanly instead of hanging or writing garbage */
+        benchmarkUpload(image, 15, 1, 0.0005, 0, false);
+        benchmarkUpload(image, 15, 1, 0, 0.0005, false);
+        for (boolean binary : new boolean[] {false, true}) {
+            benchmarkSensors(15, binary);
+        }
+        benchmarkCommands(15, 0, false);
+        benchmarkCommands(15, 0, true);
+        benchmarkCommands(15, 0.002, true);
+        for (int maxParallel : new int[] {1, 3, FLEET_SIZE}) {
+            benchmarkFleet(5, maxParallel);
+        }
+        return !failed;
+    }
+
+    /* decodes a full flash image from a file with the old readProgram and with IntelHexParser */
+    private void benchmarkHexParser() throws IOException {
+        byte[] image = new byte[Stk500Programmer.FLASH_SIZE];
+        new Random(3).nextBytes(image);
+        File file = File.createTempFile("sumodroid", ".hex");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(toIntelHex(image));
+        } finally {
+            out.close();
+        }
+        /* warm up the JIT before measuring */
+        for (int i = 0; i < 5; i++) {
+            readProgramLegacy(file);
+        }
+        int runs = 20;
+        long start = System.nanoTime();
+        byte[] legacy = null;
+        for (int i = 0; i < runs; i++) {
+            legacy = readProgramLegacy(file);
+        }
+        double legacyMillis = (System.nanoTime() - start) / 1000000.0 / runs;
+        boolean ok = Arrays.equals(legacy, image);
+        report("hex parse 32 KB readProgram", ok ? "ok" : "FAIL",
+                String.format("%d KB hex in %.2f ms", file.length() / 1024, legacyMillis));
+        failed |= !ok;
+
+        IntelHexParser parser = new IntelHexParser(new byte[Stk500Programmer.FLASH_SIZE]);
+        for (int i = 0; i < 20; i++) {
+            parseFile(parser, file);
+        }
+        runs = 50;
+        start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < runs; i++) {
+            length = parseFile(parser, file);
+        }
+        double millis = (System.nanoTime() - start) / 1000000.0 / runs;
+        ok = length == image.length && Arrays.equals(Arrays.copyOf(parser.getImage(), length), image);
+        report("hex parse 32 KB IntelHexParser", ok ? "ok" : "FAIL",
+                String.format("%d KB hex in %.2f ms, %.0fx readProgram", file.length() / 1024, millis, legacyMillis / millis));
+        failed |= !ok;
+        file.delete();
+    }
+
+    private static int parseFile(IntelHexParser parser, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return parser.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /* the decoder readProgram had before IntelHexParser, for 16 byte records ending in \r\n */
+    private static byte[] readProgramLegacy(File file) throws IOException {
+        /* every line, except last one, has has 45 bytes (including \r\n) */
+        int programLines = (int) Math.ceil(file.length() / 45.0);
+        /* every line has 32 bytes of program data (excluding checksums, addresses, etc.) */
+        int unusedBytes = 45 - 32;
+        int programLength = ((int) file.length() - (programLines * unusedBytes)) / 2;
+        byte[] compiledProgram = new byte[programLength];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int content;
+            int lineIndex = 0;
+            int programIndex = 0;
+            char[] line = new char[45];
+            /* read the file byte by byte */
+            while ((content = fis.read()) != -1) {
+                line[lineIndex++] = (char) content;
+                if (content == 10) {
+                    /* convert hexadecimals represented as chars into bytes */
+                    for (int index = 9; index < lineIndex - 4; index += 2) {
+                        compiledProgram[programIndex++] = Integer.decode("0x" + line[index] + line[index+1]).byteValue();
+                    }
+                    lineIndex = 0;
+                }
+            }
+        } finally {
+            fis.close();
+        }
+        return compiledProgram;
+    }
+
+    private void benchmarkUpload(byte[] image, long latency, int window, double dropRate, double corruptRate,
+            boolean mustSucceed) throws IOException, InterruptedException {
+        LoopbackBootloader robot = new LoopbackBootloader(latency, SERIAL_BYTES_PER_SECOND, dropRate, corruptRate, 7).start();
+        Stk500Programmer programmer = new Stk500Programmer(robot.getInputStream(), robot.getOutputStream());
+        programmer.setWindow(window);
+        String name = String.format("upload %2d ms window %d%s", latency, window,
+                dropRate > 0 ? " drop " + dropRate : corruptRate > 0 ? " corrupt " + corruptRate : "");
+        long start = System.nanoTime();
+        String outcome;
+        boolean ok;
+        try {
+            programmer.sync(5);
+            programmer.enterProgrammingMode();
+            programmer.program(image, image.length);
+            programmer.leaveProgrammingMode();
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            ok = Arrays.equals(Arrays.copyOf(robot.getFlash(), image.length), image);
+            outcome = String.format("%.2f s, %.0f B/s%s", seconds, image.length / seconds, ok ? "" : ", flash differs");
+        } catch (IOException e) {
+            ok = false;
+            outcome = String.format("failed after %.2f s: %s", (System.nanoTime() - start) / 1000000000.0, e.getMessage());
+        }
+        robot.getOutputStream().close();
+        if (robot.getDamagedBytes() > 0) {
+            outcome += ", " + robot.getDamagedBytes() + " bytes damaged";
+        }
+        if (robot.getOverrunBytes() > 0) {
+            outcome += ", " + robot.getOverrunBytes() + " bytes lost during page writes";
+        }
+        /* the bad link and window scenarios only show what happens */
+        report(name, !mustSucceed ? "-" : ok ? "ok" : "FAIL", outcome);
+        failed |= mustSucceed && !ok;
+    }
+
+    private void benchmarkVerify(byte[] image, long latency) throws IOException, InterruptedException {
+        LoopbackBootloader robot = new LoopbackBootloader(latency, SERIAL_BYTES_PER_SECOND, 0, 0, 7).start();
+        Stk500Programmer programmer = new Stk500Programmer(robot.getInputStream(), robot.getOutputStream());
+        programmer.sync(5);
+        programmer.enterProgrammingMode();
+        programmer.program(image, image.length);
+
+        int[] pages = new int[Stk500Programmer.getPageCount(image.length)];
+        for (int page = 0; page < pages.length; page++) {
+            pages[page] = page;
+        }
+        long start = System.nanoTime();
+        boolean ok = programmer.checkPagesCrc(image, image.length, pages, pages.length);
+        report(String.format("verify %2d ms crc", latency), ok ? "ok" : "FAIL",
+                String.format("%.2f s", (System.nanoTime() - start) / 1000000000.0));
+        failed |= !ok;
+
+        /* after a differential upload only the written pages are checked, e.g. 8 of them */
+        int[] writtenPages = new int[] {3, 4, 5, 40, 41, 90, 100, pages.length - 1};
+        start = System.nanoTime();
+        ok = programmer.checkPagesCrc(image, image.length, writtenPages, writtenPages.length);
+        report(String.format("verify %2d ms crc 8 pages", latency), ok ? "ok" : "FAIL",
+                String.format("%.2f s", (System.nanoTime() - start) / 1000000000.0));
+        failed |= !ok;
+
+        start = System.nanoTime();
+        ok = programmer.verifyPages(image, image.length, pages, pages.length, new int[pages.length]) == 0;
+        report(String.format("verify %2d ms full", latency), ok ? "ok" : "FAIL",
+                String.format("%.2f s", (System.nanoTime() - start) / 1000000000.0));
+        failed |= !ok;
+        robot.getOutputStream().close();
+    }
+
+    /* cancels an upload halfway, leaves programming mode and writes the rest after a reset */
+    private void benchmarkResume(byte[] image, long latency, int window) throws IOException, InterruptedException {
+        LoopbackBootloader robot = new LoopbackBootloader(latency, SERIAL_BYTES_PER_SECOND, 0, 0, 7).start();
+        Stk500Programmer programmer = new Stk500Programmer(robot.getInputStream(), robot.getOutputStream());
+        programmer.setWindow(window);
+        final int[] pages = new int[Stk500Programmer.getPageCount(image.length)];
+        for (int page = 0; page < pages.length; page++) {
+            pages[page] = page;
+        }
+        final CancelToken cancelToken = new CancelToken();
+        programmer.setCancelToken(cancelToken);
+        programmer.setPageListener(new Stk500Programmer.PageListener() {
+            @Override
+            public void onPageWritten(int page, int bytes, long rttNanos) {
+                if (page == pages.length / 2) {
+                    cancelToken.cancel();
+                }
+            }
+        });
+        long start = System.nanoTime();
+        programmer.sync(5);
+        programmer.enterProgrammingMode();
+        boolean ok = false;
+        try {
+            programmer.programPages(image, image.length, pages, pages.length);
+        } catch (CancelToken.CancelledException e) {
+            ok = true;
+        }
+        int written = programmer.getWrittenPages();
+        /* the bootloader has to be in sync for this */
+        programmer.leaveProgrammingMode();
+        double cancelSeconds = (System.nanoTime() - start) / 1000000000.0;
+        /* the acknowledged pages have to be in the flash */
+        for (int i = 0; i < written * Stk500Programmer.PAGE_SIZE; i++) {
+            ok &= robot.getFlash()[i] == image[i];
+        }
+
+        robot.reset();
+        programmer = new Stk500Programmer(robot.getInputStream(), robot.getOutputStream());
+        programmer.setWindow(window);
+        start = System.nanoTime();
+        programmer.sync(5);
+        programmer.enterProgrammingMode();
+        programmer.programPages(image, image.length, Arrays.copyOfRange(pages, written, pages.length), pages.length - written);
+        ok &= programmer.verifyPages(image, image.length, pages, pages.length, new int[pages.length]) == 0;
+        programmer.leaveProgrammingMode();
+        report(String.format("upload %2d ms window %d resume", latency, window), ok ? "ok" : "FAIL",
+                String.format("cancelled after %d of %d pages in %.2f s, resumed and verified in %.2f s",
+                written, pages.length, cancelSeconds, (System.nanoTime() - start) / 1000000000.0));
+        failed |= !ok;
+        robot.getOutputStream().close();
+    }
+
+    private void benchmarkLinkProbe(long latency) throws IOException, InterruptedException {
+        LoopbackBootloader robot = new LoopbackBootloader(latency, SERIAL_BYTES_PER_SECOND, 0, 0, 7).start();
+        Stk500Programmer programmer = new Stk500Programmer(robot.getInputStream(), robot.getOutputStream());
+        long start = System.nanoTime();
+        programmer.sync(5);
+        double syncMillis = (System.nanoTime() - start) / 1000000.0;
+        LinkProfiles.Profile link = new LinkProfiles(new File("unused")).get("loopback");
+        link.recordProbe(programmer.getSyncRtt() / 1000000.0, programmer.measureThroughput());
+        /* the measured throughput should be near the simulated one */
+        boolean ok = Math.abs(link.getBytesPerSecond() - SERIAL_BYTES_PER_SECOND) < SERIAL_BYTES_PER_SECOND * 0.2;
+        report(String.format("link probe %2d ms", latency), ok ? "ok" : "FAIL",
+                String.format("sync %.1f ms, rtt %.1f ms, %.0f B/s, sync timeout %d ms", syncMillis, link.getRttMillis(),
+                        link.getBytesPerSecond(), link.getSyncTimeout()));
+        failed |= !ok;
+        robot.getOutputStream().close();
+    }
+
+    private void benchmarkSensors(long latency, boolean binary) throws IOException, InterruptedException {
+        LoopbackBootloader robot = new LoopbackBootloader(latency, SERIAL_BYTES_PER_SECOND, 0, 0, 7).start();
+        Stk500Programmer programmer = new Stk500Programmer(robot.getInputStream(), robot.getOutputStream());
+        programmer.sync(5);
+        /* start the program */
+        programmer.leaveProgrammingMode();
+        int[] expected = new int[] {12, 345, 678, 901, 234};
+        robot.setSensorValues(expected);
+
+        SensorTelemetry telemetry = new SensorTelemetry();
+        boolean ok = true;
+        if (binary) {
+            ok = telemetry.negotiate(robot.getInputStream(), robot.getOutputStream());
+        }
+        long[] rtt = new long[SENSOR_QUERIES];
+        for (int query = 0; query < SENSOR_QUERIES && ok; query++) {
+            long start = System.nanoTime();
+            robot.getOutputStream().write('p');
+            ok = Arrays.equals(telemetry.read(robot.getInputStream()), expected);
+            rtt[query] = System.nanoTime() - start;
+        }
+        Arrays.sort(rtt);
+        report(String.format("sensors %2d ms %s", latency, binary ? "binary" : "ascii"), ok ? "ok" : "FAIL",
+                String.format("median %.1f ms, 99th %.1f ms", rtt[SENSOR_QUERIES / 2] / 1000000.0, rtt[SENSOR_QUERIES * 99 / 100] / 1000000.0));
+        failed |= !ok;
+        robot.getOutputStream().close();
+    }
+
+    /* a manoeuvre sent one command per round trip, like sendCommands, or as a batch */
+    private void benchmarkCommands(long latency, double dropRate, boolean batched) throws IOException, InterruptedException {
+        LoopbackBootloader robot = new LoopbackBootloader(latency, SERIAL_BYTES_PER_SECOND, dropRate, 0, 7).start();
+        Stk500Programmer programmer = new Stk500Programmer(robot.getInputStream(), robot.getOutputStream());
+        programmer.sync(5);
+        programmer.leaveProgrammingMode();
+        int count = 100;
+        int[] delays = new int[count];
+        String[] commands = new String[count];
+        for (int i = 0; i < count; i++) {
+            delays[i] = 20;
+            commands[i] = "wasd".substring(i % 4, i % 4 + 1);
+        }
+        String name = String.format("commands %2d ms %s", latency, batched ? "batched" : "one by one")
+                + (dropRate > 0 ? " drop " + dropRate : "");
+        long start = System.nanoTime();
+        boolean ok = true;
+        String outcome = "";
+        if (batched) {
+            CommandBatch batch = new CommandBatch(robot.getInputStream(), robot.getOutputStream());
+            ok = batch.negotiate();
+            if (ok) {
+                batch.send(delays, commands, count);
+                ok = robot.getBatchedCommands() == count;
+                outcome = ", " + batch.getResentFrames() + " frames resent";
+            }
+        } else {
+            SensorTelemetry telemetry = new SensorTelemetry();
+            for (int i = 0; i < count; i++) {
+                robot.getOutputStream().write((commands[i] + "p").getBytes());
+                telemetry.read(robot.getInputStream());
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1000000.0;
+        report(name, ok ? "ok" : "FAIL", String.format("%d commands in %.0f ms, %.1f ms each%s", count, millis, millis / count, outcome));
+        failed |= !ok;
+        robot.getOutputStream().close();
+    }
+
+    /* uploads one program to every robot of the fleet, like uploadProgramToFleet */
+    private void benchmarkFleet(long latency, int maxParallel) throws InterruptedException {
+        final byte[] image = new byte[FLEET_PROGRAM_SIZE];
+        new Random(2).nextBytes(image);
+        final Map<String, LoopbackTransport> robots = new HashMap<String, LoopbackTransport>();
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            String address = "robot" + i;
+            robots.put(address, new LoopbackTransport(FLEET_CONNECT_MILLIS, latency));
+            addresses.add(address);
+        }
+        final RobotSessionManager sessions = new RobotSessionManager(new RobotTransport.Factory() {
+            @Override
+            public RobotTransport create(String address) {
+                return robots.get(address);
+            }
+        });
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final Map<String, CommandScheduler> schedulers = new HashMap<String, CommandScheduler>();
+        for (String address : addresses) {
+            schedulers.put(address, new CommandScheduler(executor));
+        }
+        FleetUploader fleet = new FleetUploader(new FleetUploader.Dispatcher() {
+            @Override
+            public void dispatch(String address, CommandScheduler.CancellableTask job) {
+                schedulers.get(address).submit(CommandScheduler.PRIORITY_UPLOAD, null, job);
+            }
+        }, new FleetUploader.Uploader() {
+            @Override
+            public boolean upload(String address, UploadMetrics metrics) {
+                RobotSession.Lease lease = null;
+                try {
+                    lease = sessions.getSession(address).acquire(30000);
+                    Stk500Programmer programmer = new Stk500Programmer(lease.getInputStream(), lease.getOutputStream());
+                    metrics.setPhase("sync");
+                    programmer.sync(5);
+                    metrics.setPhase("program");
+                    programmer.enterProgrammingMode();
+                    programmer.program(image, image.length);
+                    programmer.leaveProgrammingMode();
+                    metrics.setPhase("done");
+                } catch (Exception e) {
+                    metrics.fail(e.getMessage());
+                } finally {
+                    if (lease != null) {
+                        lease.release();
+                    }
+                    metrics.finish();
+                    sessions.closeSession(address);
+                }
+                return true;
+            }
+
+            @Override
+            public void cancelled(String address, UploadMetrics metrics) {
+                metrics.fail("cancelled");
+                metrics.finish();
+            }
+        }, maxParallel);
+        long start = System.nanoTime();
+        List<UploadMetrics> results = fleet.run(addresses, new CancelToken());
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        boolean ok = true;
+        for (UploadMetrics metrics : results) {
+            ok &= !metrics.isFailed()
+                    && Arrays.equals(Arrays.copyOf(robots.get(metrics.getAddress()).getFlash(), image.length), image);
+        }
+        report(String.format("fleet %2d ms %d robots %d at once", latency, FLEET_SIZE, maxParallel), ok ? "ok" : "FAIL",
+                String.format("%d KB each in %.1f s", FLEET_PROGRAM_SIZE / 1024, seconds));
+        failed |= !ok;
+        sessions.shutdown();
+        executor.shutdown();
+    }
+
+    private static void report(String name, String status, String outcome) {
+        System.out.println(String.format("%-36s %-4s %s", name, status, outcome));
+    }
+
+    /* encodes the image the way avr-objcopy does, 16 data bytes per record */
+    private static byte[] toIntelHex(byte[] image) {
+        StringBuilder hex = new StringBuilder();
+        for (int offset = 0; offset < image.length; offset += 16) {
+            int length = Math.min(16, image.length - offset);
+            int sum = length + (offset >> 8) + (offset & 0xFF);
+            hex.append(String.format(":%02X%04X00", length, offset));
+            for (int i = 0; i < length; i++) {
+                hex.append(String.format("%02X", image[offset + i] & 0xFF));
+                sum += image[offset + i] & 0xFF;
+            }
+            hex.append(String.format("%02X\r\n", (-sum) & 0xFF));
+        }
+        hex.append(":00000001FF\r\n");
+        return hex.toString().getBytes();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.util.Base64;
+
+/**
+ * Measures how fast ArrayBuffers of 1, 10 and 50 MB get across the bridge, and
+ * how much heap that takes, for each way of sending them:
+ *
+ *   - whole:   one Base64 string, the way every ArrayBuffer was sent before
+ *              the BinaryChannel.
+ *   - chunked: Base64 chunks of BinaryChannel.CHUNK_SIZE, one per flush.
+ *   - fetched: kept in the BinaryChannel and read as a stream, the way the
+ *              WebView loads it for an XHR.
+ *
+ * Results are received by decoding them into a byte[], as exec.js does.
+ * Arguments are sent by encoding them the way exec.js does and are then read
+ * with CordovaArgs.getArrayBuffer().
+ *
+ * It lives in bench/, outside CordovaLib, so it is not part of the APK. Build
+ * it together with CordovaLib's sources against android.jar and org.json, and
+ * run it with the shims from bench/android-shims before android.jar, as the
+ * classes in android.jar only throw "Stub!", and with a big enough heap for
+ * the whole strings. From platforms/android:
+ *
+ *     javac -d /tmp/cordova-bench -cp json.jar:android.jar $(find CordovaLib/src bench/org -name '*.java')
+ *     javac -d /tmp/cordova-shims bench/android-shims/android/util/*.java
+ *     java -Xmx2g -cp /tmp/cordova-shims:/tmp/cordova-bench:json.jar:android.jar org.apache.cordova.BinaryChannelBenchmark
+ */
+public class BinaryChannelBenchmark {
+    private static final int MB = 1024 * 1024;
+    private static final int[] SIZES = { 1 * MB, 10 * MB, 50 * MB };
+    private static final String CALLBACK_ID = "Compiler1";
+
+    private static final int RESULT_WHOLE = 0;
+    private static final int RESULT_CHUNKED = 1;
+    private static final int RESULT_FETCHED = 2;
+    private static final int ARGUMENT_WHOLE = 3;
+    private static final int ARGUMENT_CHUNKED = 4;
+    private static final String[] NAMES = {
+        "result whole", "result chunked", "result fetched", "argument whole", "argument chunked"
+    };
+
+    public static void main(String[] args) throws Exception {
+        byte[] warmUp = new byte[4 * MB];
+        new Random(1).nextBytes(warmUp);
+        // Warm up the JIT.
+        for (int way = 0; way < NAMES.length; ++way) {
+            run(way, warmUp);
+        }
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            for (int way = 0; way < NAMES.length; ++way) {
+                long baseline = settleHeap();
+                long startTime = System.nanoTime();
+                byte[] received = run(way, data);
+                long elapsed = System.nanoTime() - startTime;
+                long peak = peakHeap() - baseline;
+                if (!Arrays.equals(data, received)) {
+                    throw new IllegalStateException(NAMES[way] + " corrupted the data");
+                }
+                System.out.println(String.format("%2d MB %-16s %6d ms %7.1f MB/s   peak heap +%d MB",
+                        size / MB, NAMES[way], elapsed / 1000000, (double) size / MB * 1e9 / elapsed, peak / MB));
+            }
+        }
+    }
+
+    private static byte[] run(int way, byte[] data) throws Exception {
+        switch (way) {
+            case RESULT_WHOLE:
+                return sendWholeResult(data);
+            case RESULT_CHUNKED:
+                return sendResult(data, false);
+            case RESULT_FETCHED:
+                return sendResult(data, true);
+            case ARGUMENT_WHOLE:
+                return sendWholeArgument(data);
+            default:
+                return sendChunkedArgument(data);
+        }
+    }
+
+    // What NativeToJsMessageQueue did with an ArrayBuffer result before: one
+    // message holding the whole payload, copied into the flush.
+    private static byte[] sendWholeResult(byte[] data) {
+        PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+        String payload = result.getMessage();
+        StringBuilder message = new StringBuilder();
+        message.append("S11 ").append(CALLBACK_ID).append(" A").append(payload);
+        StringBuilder flush = new StringBuilder();
+        flush.append(message.length()).append(' ').append(message);
+        String encoded = flush.toString();
+        return Base64.decode(encoded.substring(encoded.indexOf(" A") + 2), Base64.DEFAULT);
+    }
+
+    private static byte[] sendResult(byte[] data, boolean fetch) throws Exception {
+        NativeToJsMessageQueue queue = new NativeToJsMessageQueue(null, null);
+        // Polling mode never calls back into the WebView.
+        queue.setBridgeMode(0);
+        queue.getBinaryChannel().setFetchEnabled(fetch);
+        queue.addPluginResult(new PluginResult(PluginResult.Status.OK, data), CALLBACK_ID);
+        byte[] received = null;
+        String encoded;
+        while ((encoded = queue.popAndEncode(false)) != null) {
+            String message = encoded.substring(encoded.indexOf(' ') + 1);
+            String payload = message.substring(message.indexOf(' ', message.indexOf(' ') + 1) + 1);
+            if (payload.charAt(0) == 'R') {
+                received = fetch(queue.getBinaryChannel(), payload.substring(1), data.length);
+            } else {
+                // C<offset> <length> <base64>
+                String[] parts = payload.substring(1).split(" ", 3);
+                int offset = Integer.parseInt(parts[0]);
+                if (offset == 0) {
+                    received = new byte[Integer.parseInt(parts[1])];
+                }
+                byte[] chunk = Base64.decode(parts[2].endsWith("*") ? parts[2].substring(0, parts[2].length() - 1) : parts[2], Base64.DEFAULT);
+                System.arraycopy(chunk, 0, received, offset, chunk.length);
+            }
+        }
+        return received;
+    }
+
+    // Reads the result in small buffers, like the WebView's network stack.
+    private static byte[] fetch(BinaryChannel channel, String url, int length) throws Exception {
+        InputStream stream = channel.openResult(url);
+        byte[] received = new byte[length];
+        byte[] buffer = new byte[16 * 1024];
+        int offset = 0;
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+            System.arraycopy(buffer, 0, received, offset, read);
+            offset += read;
+        }
+        stream.close();
+        return received;
+    }
+
+    private static byte[] sendWholeArgument(byte[] data) throws Exception {
+        String argsJson = new JSONArray().put(Base64.encodeToString(data, Base64.NO_WRAP)).toString();
+        return new CordovaArgs(new JSONArray(argsJson)).getArrayBuffer(0);
+    }
+
+    private static byte[] sendChunkedArgument(byte[] data) throws Exception {
+        BinaryChannel channel = new BinaryChannel();
+        for (int offset = 0; offset < data.length; offset += BinaryChannel.CHUNK_SIZE) {
+            int length = Math.min(BinaryChannel.CHUNK_SIZE, data.length - offset);
+            channel.appendUpload(1, data.length, offset, Base64.encodeToString(data, offset, length, Base64.NO_WRAP));
+        }
+        String argsJson = new JSONArray().put(new JSONObject().put("binaryId", 1)).toString();
+        return new CordovaArgs(new JSONArray(argsJson), channel).getArrayBuffer(0);
+    }
+
+    // Collects garbage and starts tracking the peak again. Returns the heap in use.
+    private static long settleHeap() {
+        System.gc();
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONArray;
+
+/**
+ * Measures how fast plugin threads can add results to the NativeToJsMessageQueue
+ * while a single thread keeps taking them out, the way JS polls in the polling
+ * and online events bridge modes.
+ *
+ * Each producer adds sensor-sized JSON results with keepCallback set. The
+ * consumer calls popAndEncode() in a loop and counts the messages it gets.
+ *
+ * It lives in bench/, outside CordovaLib, so it is not part of the APK. Build
+ * it together with CordovaLib's sources against android.jar and org.json, and
+ * run it with the shims from bench/android-shims before android.jar, as the
+ * classes in android.jar only throw "Stub!". From platforms/android:
+ *
+ *     javac -d /tmp/cordova-bench -cp json.jar:android.jar $(find CordovaLib/src bench/org -name '*.java')
+ *     javac -d /tmp/cordova-shims bench/android-shims/android/util/*.java
+ *     java -cp /tmp/cordova-shims:/tmp/cordova-bench:json.jar:android.jar org.apache.cordova.NativeToJsMessageQueueBenchmark
+ */
+public class NativeToJsMessageQueueBenchmark {
+    private static final int MESSAGES = 2000000;
+    private static final int[] PRODUCER_COUNTS = { 1, 4, 16 };
+
+    public static void main(String[] args) throws Exception {
+        // Warm up the JIT.
+        run(4, MESSAGES / 4, false);
+        for (int producers : PRODUCER_COUNTS) {
+            run(producers, MESSAGES, true);
+        }
+    }
+
+    private static void run(final int producers, int messages, boolean print) throws Exception {
+        final NativeToJsMessageQueue queue = new NativeToJsMessageQueue(null, null);
+        // Polling mode never calls back into the WebView.
+        queue.setBridgeMode(0);
+        final int perProducer = messages / producers;
+        final int total = perProducer * producers;
+        final PluginResult[] results = new PluginResult[16];
+        for (int i = 0; i < results.length; ++i) {
+            JSONArray values = new JSONArray();
+            for (int j = 0; j < 5; ++j) {
+                values.put(i * 100 + j);
+            }
+            results[i] = new PluginResult(PluginResult.Status.OK, values);
+            results[i].setKeepCallback(true);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final String callbackId = "Compiler" + p;
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; ++i) {
+                        queue.addPluginResult(results[i & 15], callbackId);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        int received = 0;
+        while (received < total) {
+            String encoded = queue.popAndEncode(false);
+            if (encoded != null) {
+                received += countMessages(encoded);
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (print) {
+            System.out.println(String.format("%2d producers: %,d messages in %d ms, %,.0f messages/s",
+                    producers, total, elapsed / 1000000, total * 1e9 / elapsed));
+            System.out.println(String.format("             %d flushes, %.1f messages per flush, flush latency %d us average, %d us max, max depth %d",
+                    queue.getFlushCount(), (double) queue.getFlushedMessageCount() / queue.getFlushCount(),
+                    queue.getAverageFlushLatencyMicros(), queue.getMaxFlushLatencyMicros(), queue.getMaxQueueDepth()));
+        }
+    }
+
+    // Counts the length-prefixed messages the way cordova-js unpacks them.
+    private static int countMessages(String encoded) {
+        int count = 0;
+        int i = 0;
+        while (i < encoded.length() && encoded.charAt(i) != '*') {
+            int space = encoded.indexOf(' ', i);
+            int length = Integer.parseInt(encoded.substring(i, space));
+            i = space + 1 + length;
+            count += 1;
+        }
+        return count;
+    }
+}
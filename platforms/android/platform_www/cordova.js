@@ -356,6 +356,9 @@ module.exports = {
     },
     retrieveJsMessages: function(fromOnlineEvent) {
         return prompt(+fromOnlineEvent, 'gap_poll:');
+    },
+    appendBinary: function(id, length, offset, chunk) {
+        prompt(chunk, 'gap_binary:'+JSON.stringify([id, length, offset]));
     }
 };
 
@@ -895,7 +898,12 @@ var cordova = require('cordova'),
     jsToNativeBridgeMode,  // Set lazily.
     nativeToJsBridgeMode = nativeToJsModes.ONLINE_EVENT,
     pollEnabled = false,
-    messagesFromNative = [];
+    messagesFromNative = [],
+    // This must match CHUNK_SIZE in BinaryChannel.java.
+    BINARY_CHUNK_SIZE = 3 * 64 * 1024,
+    nextBinaryId = 0,
+    // Chunked ArrayBuffer results being put back together, by callbackId.
+    binaryResults = {};
 
 function androidExec(success, fail, service, action, args) {
     // Set default bridge modes if they have not already been set.
@@ -904,10 +912,15 @@ function androidExec(success, fail, service, action, args) {
         androidExec.setJsToNativeBridgeMode(jsToNativeModes.JS_OBJECT);
     }
 
-    // Process any ArrayBuffers in the args into a string.
+    // Process any ArrayBuffers in the args into a string. Large ones are sent
+    // ahead in chunks and replaced by a reference.
     for (var i = 0; i < args.length; i++) {
         if (utils.typeName(args[i]) == 'ArrayBuffer') {
-            args[i] = base64.fromArrayBuffer(args[i]);
+            if (args[i].byteLength > BINARY_CHUNK_SIZE) {
+                args[i] = sendBinary(args[i]);
+            } else {
+                args[i] = base64.fromArrayBuffer(args[i]);
+            }
         }
     }
 
@@ -935,6 +948,67 @@ function androidExec(success, fail, service, action, args) {
     }
 }
 
+function sendBinary(arrayBuffer) {
+    var id = ++nextBinaryId,
+        length = arrayBuffer.byteLength;
+    for (var offset = 0; offset < length; offset += BINARY_CHUNK_SIZE) {
+        var chunk = new Uint8Array(arrayBuffer, offset, Math.min(BINARY_CHUNK_SIZE, length - offset));
+        nativeApiProvider.get().appendBinary(id, length, offset, base64.fromArrayBuffer(chunk));
+    }
+    return {binaryId: id};
+}
+
+// Adds a chunk of an ArrayBuffer result. Returns the ArrayBuffer once all chunks are there.
+function appendBinaryChunk(callbackId, chunk) {
+    var spaceIdx = chunk.indexOf(' ');
+    var nextSpaceIdx = chunk.indexOf(' ', spaceIdx + 1);
+    var offset = +chunk.slice(0, spaceIdx);
+    var length = +chunk.slice(spaceIdx + 1, nextSpaceIdx);
+    var bytes = window.atob(chunk.slice(nextSpaceIdx + 1));
+    if (offset == 0) {
+        binaryResults[callbackId] = new Uint8Array(length);
+    }
+    var array = binaryResults[callbackId];
+    for (var i = 0; i < bytes.length; i++) {
+        array[offset + i] = bytes.charCodeAt(i);
+    }
+    if (offset + bytes.length < length) {
+        return null;
+    }
+    delete binaryResults[callbackId];
+    return array.buffer;
+}
+
+// Loads an ArrayBuffer result that the native side kept for us.
+// The callback is called once it has been loaded. Until then no other
+// message is processed, so callbacks still arrive in the order they were sent.
+function fetchBinary(url, callbackId, success, status, keepCallback) {
+    var xhr = new XMLHttpRequest();
+    function resume() {
+        isFetchingBinary = false;
+        androidExec.processMessages();
+    }
+    xhr.open('GET', url, true);
+    xhr.responseType = 'arraybuffer';
+    xhr.onload = function() {
+        try {
+            if (xhr.response) {
+                cordova.callbackFromNative(callbackId, success, status, [xhr.response], keepCallback);
+            } else {
+                console.log("fetchBinary failed: " + url);
+            }
+        } finally {
+            resume();
+        }
+    };
+    xhr.onerror = function() {
+        console.log("fetchBinary failed: " + url);
+        resume();
+    };
+    isFetchingBinary = true;
+    xhr.send();
+}
+
 function pollOnceFromOnlineEvent() {
     pollOnce(true);
 }
@@ -1031,6 +1105,14 @@ function processMessage(message) {
                     arraybuffer[i] = bytes.charCodeAt(i);
                 }
                 payload = arraybuffer.buffer;
+            } else if (payloadKind == 'C') {
+                payload = appendBinaryChunk(callbackId, message.slice(nextSpaceIdx + 2));
+                if (!payload) {
+                    return;
+                }
+            } else if (payloadKind == 'R') {
+                fetchBinary(message.slice(nextSpaceIdx + 2), callbackId, success, status, keepCallback);
+                return;
             } else if (payloadKind == 'S') {
                 payload = window.atob(message.slice(nextSpaceIdx + 2));
             } else {
@@ -1048,6 +1130,8 @@ function processMessage(message) {
 }
 
 var isProcessing = false;
+// Set while an ArrayBuffer result is being fetched, the messages after it wait.
+var isFetchingBinary = false;
 
 // This is called from the NativeToJsMessageQueue.java.
 androidExec.processMessages = function(messages, opt_useTimeout) {
@@ -1055,7 +1139,7 @@ androidExec.processMessages = function(messages, opt_useTimeout) {
         messagesFromNative.push(messages);
     }
     // Check for the reentrant case.
-    if (isProcessing) {
+    if (isProcessing || isFetchingBinary) {
         return;
     }
     if (opt_useTimeout) {
@@ -1065,7 +1149,7 @@ androidExec.processMessages = function(messages, opt_useTimeout) {
     isProcessing = true;
     try {
         // TODO: add setImmediate polyfill and process only one message at a time.
-        while (messagesFromNative.length) {
+        while (messagesFromNative.length && !isFetchingBinary) {
             var msg = popMessageFromQueue();
             // The Java side can send a * message to indicate that it
             // still has messages waiting to be retrieved.
@@ -0,0 +1,91 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.UUID;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.bluetooth.BluetoothAdapter;
+
+/**
+ * This class connects to the Sumorobot's serial port profile over RFCOMM.
+ */
+public class BluetoothTransport implements RobotTransport {
+    /* the serial port profile */
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final String address;
+    private BluetoothSocket bluetoothSocket = null;
+    private InputStream bluetoothInputStream = null;
+    private OutputStream bluetoothOutputStream = null;
+
+    public BluetoothTransport(BluetoothAdapter bluetoothAdapter, String address) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.address = address;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        close();
+        /* discovery slows down connecting */
+        bluetoothAdapter.cancelDiscovery();
+        BluetoothDevice bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
+        BluetoothSocket socket = bluetoothDevice.createRfcommSocketToServiceRecord(SPP_UUID);
+        /* publish the socket first, so close() can abort the connect */
+        synchronized (this) {
+            bluetoothSocket = socket;
+        }
+        try {
+            socket.connect();
+            synchronized (this) {
+                if (bluetoothSocket != socket) {
+                    throw new IOException("connection to " + address + " closed");
+                }
+                bluetoothInputStream = socket.getInputStream();
+                bluetoothOutputStream = socket.getOutputStream();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (bluetoothInputStream == null) {
+            throw new IOException("not connected to " + address);
+        }
+        return bluetoothInputStream;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (bluetoothOutputStream == null) {
+            throw new IOException("not connected to " + address);
+        }
+        return bluetoothOutputStream;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return bluetoothSocket != null && bluetoothInputStream != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (bluetoothSocket != null) {
+                /* closing the socket also closes its streams */
+                bluetoothSocket.close();
+            }
+        } catch (IOException e) {
+            /* nothing left to clean up */
+        }
+        bluetoothSocket = null;
+        bluetoothInputStream = null;
+        bluetoothOutputStream = null;
+    }
+}
@@ -0,0 +1,37 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.IOException;
+
+/**
+ * This class asks a running upload to stop. The upload checks it between
+ * pages, so it stops at a point where the bootloader is still in sync and
+ * can be told to leave programming mode.
+ */
+public class CancelToken {
+    /**
+     * Thrown by the upload when it stopped because it was cancelled.
+     */
+    public static class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CancelledException(String message) {
+            super(message);
+        }
+    }
+
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void check(String phase) throws CancelledException {
+        if (cancelled) {
+            throw new CancelledException("cancelled during " + phase);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class streams a timed sequence of commands to the Sumorobot ahead of
+ * time, so a manoeuvre is limited by the link's bandwidth instead of one
+ * round trip per command.
+ *
+ * Firmware that understands the BATCH_REQUEST command buffers numbered
+ * command frames and runs each one the given delay after the previous:
+ *
+ *     0xA6 | sequence | delay (uint16 little endian, ms) | length | commands | CRC-8
+ *
+ * It acknowledges cumulatively with the sequence number of the last frame
+ * received in order:
+ *
+ *     0xA7 | sequence | CRC-8
+ *
+ * Frames out of order are dropped and the last in-order frame is acked
+ * again. Up to a window of frames is sent before waiting for acks; when the
+ * acks stop coming, everything from the oldest unacked frame is sent again.
+ * The CRC-8 is the one SensorTelemetry uses, over everything but the sync byte.
+ *
+ * The robot does not tell its firmware version, so batching is found out by
+ * asking. Firmware without batching does not answer, which costs one
+ * NEGOTIATION_TIMEOUT per connection and program.
+ */
+public class CommandBatch {
+    public static final int FRAME_SYNC = 0xA6;
+    public static final int ACK_SYNC = 0xA7;
+    /* asks the robot to accept command frames, it answers with an ack of NO_SEQUENCE */
+    public static final int BATCH_REQUEST = 'Q';
+    public static final int NO_SEQUENCE = 0xFF;
+    /* how many frames the robot can buffer */
+    public static final int DEFAULT_WINDOW = 16;
+    public static final int MAX_DELAY = 0xFFFF;
+    /* how long to wait for the robot to accept batching */
+    private static final long NEGOTIATION_TIMEOUT = 300;
+    /* how long to wait for acks before sending again */
+    private static final long ACK_TIMEOUT = 300;
+    /* how many times in a row the robot may not ack before giving up */
+    private static final int MAX_RESENDS = 5;
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private int window = DEFAULT_WINDOW;
+    /* the sequence number of the next frame */
+    private int nextSequence = 0;
+    private final byte[] frame = new byte[6 + 255];
+    private int resentFrames = 0;
+    private boolean supported = false;
+
+    public CommandBatch(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    public void setWindow(int window) {
+        if (window < 1 || window > 128) {
+            throw new IllegalArgumentException("window must be 1 to 128");
+        }
+        this.window = window;
+    }
+
+    /* frames sent again because their acks did not come, over every send */
+    public int getResentFrames() {
+        return resentFrames;
+    }
+
+    /* whether the robot accepted command frames when negotiating */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Asks the robot for command frames and waits for the confirmation.
+     *
+     * @return whether the robot accepts command frames
+     */
+    public boolean negotiate() throws IOException, InterruptedException {
+        /* drop anything left over from before */
+        while (inputStream.available() > 0) {
+            inputStream.read();
+        }
+        outputStream.write(BATCH_REQUEST);
+        outputStream.flush();
+        nextSequence = 0;
+        int ack = readAck(NEGOTIATION_TIMEOUT);
+        /* drop whatever else came */
+        while (inputStream.available() > 0) {
+            inputStream.read();
+        }
+        supported = ack == NO_SEQUENCE;
+        return supported;
+    }
+
+    /**
+     * Streams the commands and waits until the robot has received all of them.
+     * The robot runs them on its own clock, the call returns before they finish.
+     *
+     * @param delays milliseconds to wait before running each command, after the previous one
+     * @param commands the command characters, e.g. "f" or "lp"
+     * @param count how many of the commands to send
+     */
+    public void send(int[] delays, String[] commands, int count) throws IOException, InterruptedException {
+        int base = 0;
+        int next = 0;
+        int resends = 0;
+        int firstSequence = nextSequence;
+        while (base < count) {
+            /* keep the window full */
+            while (next < count && next - base < window) {
+                writeFrame((firstSequence + next) & 0xFF, delays[next], commands[next]);
+                next++;
+            }
+            outputStream.flush();
+            int ack = readAck(ACK_TIMEOUT);
+            if (ack == -1) {
+                if (++resends > MAX_RESENDS) {
+                    throw new IOException("no ack for command " + base + " after " + MAX_RESENDS + " resends");
+                }
+                /* go back to the oldest frame without an ack */
+                resentFrames += next - base;
+                next = base;
+                continue;
+            }
+            /* the ack covers every frame up to its sequence number, which wraps
+               after 256 frames, but the frames in flight are never that many */
+            int acked = base + ((ack - firstSequence - base) & 0xFF) + 1;
+            if (acked > base && acked <= next) {
+                base = acked;
+                resends = 0;
+            }
+        }
+        nextSequence = (firstSequence + count) & 0xFF;
+    }
+
+    private void writeFrame(int sequence, int delay, String command) throws IOException {
+        byte[] bytes = command.getBytes("US-ASCII");
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("command too long: " + command);
+        }
+        delay = Math.max(0, Math.min(MAX_DELAY, delay));
+        frame[0] = (byte) FRAME_SYNC;
+        frame[1] = (byte) sequence;
+        frame[2] = (byte) (delay & 0xFF);
+        frame[3] = (byte) ((delay >> 8) & 0xFF);
+        frame[4] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, frame, 5, bytes.length);
+        frame[5 + bytes.length] = (byte) SensorTelemetry.crc8(frame, 1, 4 + bytes.length, 0);
+        outputStream.write(frame, 0, 6 + bytes.length);
+    }
+
+    /* returns the last acked sequence number, -1 when no valid ack came in time */
+    private int readAck(long timeout) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        byte[] sequence = new byte[1];
+        int acked = -1;
+        while (true) {
+            if (inputStream.available() < 3) {
+                /* the acks that are already there are read, a later ack replaces an earlier one */
+                if (acked != -1 || System.currentTimeMillis() >= deadline) {
+                    return acked;
+                }
+                Thread.sleep(1);
+                continue;
+            }
+            /* skip anything that is not an ack, e.g. a late sensor reply */
+            if (inputStream.read() != ACK_SYNC) {
+                continue;
+            }
+            sequence[0] = (byte) inputStream.read();
+            if (inputStream.read() == SensorTelemetry.crc8(sequence, 0, 1, 0)) {
+                acked = sequence[0] & 0xFF;
+            }
+        }
+    }
+}
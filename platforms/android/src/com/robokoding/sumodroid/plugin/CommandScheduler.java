@@ -0,0 +1,212 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * This class runs the work for one Sumorobot one job at a time, so only a
+ * single writer ever talks to the robot.
+ *
+ * Jobs run by priority (uploads before control commands before sensor
+ * polls) and in order within a priority. A job with a coalescing key is
+ * dropped when a job with the same key is already waiting. The jobs run
+ * on the given executor, but never more than one at a time.
+ *
+ * Jobs removed before they run are never run. Tasks that implement
+ * CancellableTask are told instead, so they can still answer their caller.
+ */
+public class CommandScheduler {
+    public static final int PRIORITY_UPLOAD = 0;
+    public static final int PRIORITY_CONTROL = 1;
+    public static final int PRIORITY_SENSOR = 2;
+
+    /**
+     * A task that is told when it is removed from the queue without running.
+     */
+    public interface CancellableTask extends Runnable {
+        /* called instead of run(), without holding the scheduler's lock */
+        void cancelled();
+    }
+
+    /**
+     * A queued piece of work.
+     */
+    public class Job implements Comparable<Job> {
+        private final int priority;
+        private final long sequence;
+        private final String key;
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        private Job(int priority, long sequence, String key, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * Removes the job from the queue.
+         *
+         * @return false when the job already started
+         */
+        public boolean cancel() {
+            synchronized (CommandScheduler.this) {
+                if (!queue.remove(this)) {
+                    return false;
+                }
+                cancelled++;
+            }
+            notifyCancelled(this);
+            return true;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final Executor executor;
+    private final PriorityQueue<Job> queue = new PriorityQueue<Job>();
+    private long sequence = 0;
+    /* whether a drain loop is running on the executor */
+    private boolean running = false;
+    /* statistics */
+    private int maxDepth = 0;
+    private long completed = 0;
+    private long coalesced = 0;
+    private long cancelled = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long totalRunNanos = 0;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                synchronized (CommandScheduler.this) {
+                    job = queue.poll();
+                    if (job == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                long start = System.nanoTime();
+                try {
+                    job.task.run();
+                } finally {
+                    long end = System.nanoTime();
+                    synchronized (CommandScheduler.this) {
+                        long wait = start - job.queuedAt;
+                        totalWaitNanos += wait;
+                        maxWaitNanos = Math.max(maxWaitNanos, wait);
+                        totalRunNanos += end - start;
+                        completed++;
+                    }
+                }
+            }
+        }
+    };
+
+    public CommandScheduler(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues the task.
+     *
+     * @param key coalescing key, or null to always queue
+     * @return the queued job, or the waiting job the task was coalesced into
+     */
+    public synchronized Job submit(int priority, String key, Runnable task) {
+        if (key != null) {
+            for (Job job : queue) {
+                if (key.equals(job.key)) {
+                    coalesced++;
+                    return job;
+                }
+            }
+        }
+        Job job = new Job(priority, sequence++, key, task);
+        queue.add(job);
+        maxDepth = Math.max(maxDepth, queue.size());
+        if (!running) {
+            running = true;
+            executor.execute(drain);
+        }
+        return job;
+    }
+
+    /**
+     * Removes all waiting jobs of the priority and lower priorities.
+     * A running job is not interrupted.
+     *
+     * @return how many jobs were removed
+     */
+    public int cancelQueued(int priority) {
+        List<Job> removed = new ArrayList<Job>();
+        synchronized (this) {
+            Iterator<Job> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (job.priority >= priority) {
+                    iterator.remove();
+                    removed.add(job);
+                }
+            }
+            cancelled += removed.size();
+        }
+        for (Job job : removed) {
+            notifyCancelled(job);
+        }
+        return removed.size();
+    }
+
+    private static void notifyCancelled(Job job) {
+        if (job.task instanceof CancellableTask) {
+            ((CancellableTask) job.task).cancelled();
+        }
+    }
+
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getCancelled() {
+        return cancelled;
+    }
+
+    /* milliseconds between queueing and starting a job */
+    public synchronized double getAverageWait() {
+        return completed == 0 ? 0 : totalWaitNanos / 1e6 / completed;
+    }
+
+    public synchronized double getMaxWait() {
+        return maxWaitNanos / 1e6;
+    }
+
+    /* milliseconds a job runs */
+    public synchronized double getAverageRun() {
+        return completed == 0 ? 0 : totalRunNanos / 1e6 / completed;
+    }
+}
@@ -0,0 +1,162 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class keeps compiled flash images on disk, keyed by a hash of the
+ * sketch and the toolchain version, so an unchanged program is not compiled
+ * again. The least recently used images are removed when there are too many.
+ */
+public class CompileCache {
+    private static final String SUFFIX = ".bin";
+
+    private final File directory;
+    private final int maxEntries;
+    /* statistics */
+    private int hits = 0;
+    private int misses = 0;
+    private long savedMillis = 0;
+
+    public CompileCache(File directory, int maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached image for the sketch, or null when it has to be compiled.
+     */
+    public synchronized byte[] get(String toolchainVersion, String sketch) {
+        File file = new File(directory, key(toolchainVersion, sketch) + SUFFIX);
+        if (!file.exists()) {
+            misses++;
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            long compileMillis = in.readLong();
+            byte[] image = new byte[in.readInt()];
+            in.readFully(image);
+            /* mark the entry as recently used */
+            file.setLastModified(System.currentTimeMillis());
+            hits++;
+            savedMillis += compileMillis;
+            return image;
+        } catch (IOException e) {
+            /* a broken entry is compiled again */
+            file.delete();
+            misses++;
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Stores the image compiled from the sketch.
+     *
+     * @param compileMillis how long compiling took, counted as saved on every hit
+     */
+    public synchronized void put(String toolchainVersion, String sketch, byte[] image, long compileMillis) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        String key = key(toolchainVersion, sketch);
+        File file = new File(directory, key + SUFFIX);
+        File temporary = new File(directory, key + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeLong(compileMillis);
+            out.writeInt(image.length);
+            out.write(image);
+        } finally {
+            close(out);
+        }
+        /* never leave a half written entry behind */
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("could not store " + file);
+        }
+        evict();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized long getSavedMillis() {
+        return savedMillis;
+    }
+
+    private void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        int entries = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                files[entries++] = file;
+            }
+        }
+        if (entries <= maxEntries) {
+            return;
+        }
+        /* oldest first */
+        Arrays.sort(files, 0, entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < entries - maxEntries; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static String key(String toolchainVersion, String sketch) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(toolchainVersion.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(sketch.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte value : hash) {
+                key.append(Character.forDigit((value >> 4) & 0xF, 16));
+                key.append(Character.forDigit(value & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            /* nothing to do */
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.List;
+import java.util.Map;
+import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class keeps one shell running for compiling sketches, instead of
+ * starting a new one for every upload.
+ *
+ * Jobs are written to the shell's input, followed by a marker echoed to both
+ * outputs. Both outputs are read at the same time, so a full error pipe can
+ * not block the compiler. Jobs run with shell tracing on, which lets the
+ * worker time the toolchain phases and pick the compiler diagnostics out of
+ * the output.
+ */
+public class CompileWorker {
+    /* the phases reported for every job */
+    public static final String PHASE_PREPROCESS = "preprocess";
+    public static final String PHASE_COMPILE = "compile";
+    public static final String PHASE_LINK = "link";
+    public static final String PHASE_OBJCOPY = "objcopy";
+    /* gcc style "file:line:column: error: message" */
+    private static final Pattern DIAGNOSTIC = Pattern.compile("^(.+?):(\\d+):(?:(\\d+):)? *(fatal error|error|warning|note): (.*)$");
+    private static final String MARKER = "__sumodroid_job_done__";
+
+    /**
+     * A compiler error or warning.
+     */
+    public static class Diagnostic {
+        public final String file;
+        public final int line;
+        public final int column;
+        public final String severity;
+        public final String message;
+
+        Diagnostic(String file, int line, int column, String severity, String message) {
+            this.file = file;
+            this.line = line;
+            this.column = column;
+            this.severity = severity;
+            this.message = message;
+        }
+
+        public boolean isError() {
+            return severity.endsWith("error");
+        }
+    }
+
+    /**
+     * The outcome of a job.
+     */
+    public static class Result {
+        public int exitCode = -1;
+        public boolean timedOut = false;
+        public long totalMillis = 0;
+        public final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+        /* milliseconds per phase, in the order the phases ran */
+        public final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+        public final StringBuilder output = new StringBuilder();
+
+        public boolean isSuccess() {
+            return exitCode == 0 && !timedOut;
+        }
+    }
+
+    /* a line read from one of the shell's outputs */
+    private static class Line {
+        final String text;
+        final boolean error;
+        final long time;
+
+        Line(String text, boolean error) {
+            this.text = text;
+            this.error = error;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    private final String shell;
+    private Process process = null;
+    private OutputStream processInput = null;
+    private BlockingQueue<Line> lines = null;
+    private int jobCount = 0;
+
+    public CompileWorker(String shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * Runs the script in the warm shell and waits for it.
+     */
+    public synchronized Result run(String script, long timeoutMillis) throws IOException, InterruptedException {
+        if (process == null) {
+            start();
+        }
+        Result result = new Result();
+        String marker = MARKER + (jobCount++);
+        /* a subshell keeps the script from changing or exiting the worker shell */
+        String job = "(sh -x " + script + ")\n"
+                + "echo " + marker + " $?\n"
+                + "echo " + marker + " >&2\n";
+        processInput.write(job.getBytes("UTF-8"));
+        processInput.flush();
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        boolean outputDone = false;
+        boolean errorDone = false;
+        String phase = null;
+        long phaseStart = start;
+        while (!outputDone || !errorDone) {
+            Line line = lines.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (line == null) {
+                /* the shell is stuck in the job, start over next time */
+                result.timedOut = true;
+                stop();
+                break;
+            }
+            if (line.text == null) {
+                /* the shell died */
+                stop();
+                break;
+            }
+            if (line.text.startsWith(marker)) {
+                if (line.error) {
+                    errorDone = true;
+                } else {
+                    outputDone = true;
+                    result.exitCode = Integer.parseInt(line.text.substring(marker.length()).trim());
+                }
+                continue;
+            }
+            result.output.append(line.text).append('\n');
+            String linePhase = getPhase(line.text);
+            if (linePhase != null) {
+                if (phase != null) {
+                    addPhaseTime(result, phase, line.time - phaseStart);
+                }
+                phase = linePhase;
+                phaseStart = line.time;
+            }
+            /* traced commands are not diagnostics, even when they echo one */
+            Matcher matcher = DIAGNOSTIC.matcher(line.text);
+            if (!line.text.startsWith("+ ") && matcher.matches()) {
+                result.diagnostics.add(new Diagnostic(matcher.group(1), Integer.parseInt(matcher.group(2)),
+                        matcher.group(3) == null ? 0 : Integer.parseInt(matcher.group(3)),
+                        matcher.group(4), matcher.group(5)));
+            }
+        }
+        long end = System.currentTimeMillis();
+        if (phase != null) {
+            addPhaseTime(result, phase, end - phaseStart);
+        }
+        result.totalMillis = end - start;
+        return result;
+    }
+
+    /**
+     * Stops the shell, the next job starts a new one.
+     */
+    public synchronized void stop() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+            processInput = null;
+            lines = null;
+        }
+    }
+
+    private void start() throws IOException {
+        process = new ProcessBuilder(shell).start();
+        processInput = process.getOutputStream();
+        lines = new LinkedBlockingQueue<Line>();
+        drain(process.getInputStream(), false, lines);
+        drain(process.getErrorStream(), true, lines);
+    }
+
+    private static void drain(final InputStream stream, final boolean error, final BlockingQueue<Line> lines) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+                    String text;
+                    while ((text = reader.readLine()) != null) {
+                        lines.add(new Line(text, error));
+                    }
+                } catch (IOException e) {
+                    /* the shell was stopped */
+                }
+                lines.add(new Line(null, error));
+            }
+        }, error ? "compile-worker-stderr" : "compile-worker-stdout");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void addPhaseTime(Result result, String phase, long millis) {
+        Long total = result.phaseMillis.get(phase);
+        result.phaseMillis.put(phase, (total == null ? 0 : total) + millis);
+    }
+
+    /**
+     * Recognizes the toolchain command a traced or echoed line runs.
+     */
+    static String getPhase(String line) {
+        String command = line.startsWith("+ ") ? line.substring(2).trim() : line.trim();
+        int end = command.indexOf(' ');
+        String tool = end == -1 ? command : command.substring(0, end);
+        tool = tool.substring(tool.lastIndexOf('/') + 1);
+        if (tool.endsWith("objcopy")) {
+            return PHASE_OBJCOPY;
+        }
+        if (!tool.endsWith("gcc") && !tool.endsWith("g++")) {
+            return null;
+        }
+        if (command.contains(" -E ") || command.endsWith(" -E")) {
+            return PHASE_PREPROCESS;
+        }
+        if (command.contains(" -c ") || command.endsWith(" -c")) {
+            return PHASE_COMPILE;
+        }
+        return PHASE_LINK;
+    }
+}
@@ -2,17 +2,17 @@ package com.robokoding.sumodroid.plugin;
 
 import java.net.URL;
 import java.io.File;
-import java.util.UUID;
+import java.util.Map;
+import java.util.List;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.ArrayList;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLConnection;
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
 import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 
@@ -22,20 +22,23 @@ import android.os.Environment;
 import android.content.Intent;
 import android.content.Context;
 import android.app.AlertDialog;
+import android.widget.ArrayAdapter;
 import android.content.IntentFilter;
 import android.content.DialogInterface;
 import android.content.BroadcastReceiver;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
+import org.apache.cordova.PluginResult;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaWebView;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.NativeToJsMessageQueue;
 
 import org.apache.http.util.ByteArrayBuffer;
 
@@ -49,25 +52,82 @@ public class Compiler extends CordovaPlugin {
     private static final String ARDUINO_END = "\n}\n";
     private static final String ARDUINO_SETUP_LOOP = "void setup(){\nSerial.begin(115200);\n}\n\nvoid loop(){\n";
     private static final String ARDUINO_LIBRARIES = "#include <Servo.h>\n#include <NewPing.h>\n#include <Sumorobot.h>\n\n";
+    /* the whole program as one Arduino sketch, built by make.sh */
+    private static final SketchTemplate SKETCH = new SketchTemplate(ARDUINO_LIBRARIES + ARDUINO_SETUP_LOOP, ARDUINO_END);
     /* bluetooth stuff */
-    private BluetoothSocket bluetoothSocket = null;
-    private BluetoothDevice bluetoothDevice = null;
-    private OutputStream bluetoothOutputStream = null;
-    private InputStream bluetoothInputStream = null;
     private BluetoothAdapter bluetoothAdapter = null;
-    private static ArrayList<BluetoothDevice> bluetoothDevices;
+    /* the sumorobots seen by discovery, remembered between app starts */
+    private RobotDirectory robotDirectory = null;
+    /* the callback of the running discovery, null when not discovering */
+    private CallbackContext discoveryCallback = null;
+    /* whether mReceiver is registered, a reset page drops the callback but not the scan */
+    private boolean discoveryReceiverRegistered = false;
+    /* the sumorobot picker's list and the robots shown in it, only used on the ui thread */
+    private ArrayAdapter<String> pickerItems = null;
+    private List<RobotDirectory.Robot> pickerRobots = new ArrayList<RobotDirectory.Robot>();
     private static String sumorobotAddress = "98:D3:31:B2:F4:A1";
+    /* how long to wait for another upload or command to finish */
+    private static final long SESSION_TIMEOUT = 30000;
+    /* keeps the connections to the sumorobots open between uploads */
+    private RobotSessionManager sessionManager = null;
     private static final File EXTERNAL_STORAGE = Environment.getExternalStorageDirectory();
-    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    /* decodes main.hex into a flash sized image */
+    private final IntelHexParser hexParser = new IntelHexParser(new byte[Stk500Programmer.FLASH_SIZE]);
+    /* sensor streaming, samples are sent to the frontend in batches */
+    private static final long SENSOR_BATCH_INTERVAL = 33;
+    private static final int MAX_SENSOR_RATE = 100;
+    /* the callback of the running sensor stream, null when not streaming */
+    private volatile CallbackContext sensorStreamCallback = null;
+    /* samples collected by the stream's sensor polls since the last batch */
+    private JSONArray sensorBatch = new JSONArray();
+    /* every sensor sample, for looking at a match afterwards, 10 minutes at the highest stream rate */
+    private static final int SENSOR_RECORDING_SIZE = 60000;
+    private static final int MAX_RECORDING_POINTS = 1000;
+    private final SensorRecorder sensorRecorder = new SensorRecorder(SENSOR_RECORDING_SIZE, SensorTelemetry.SENSOR_COUNT);
+    /* compiled images of recent sketches */
+    private static final int COMPILE_CACHE_SIZE = 32;
+    private final CompileCache compileCache = new CompileCache(new File(EXTERNAL_STORAGE, "sumodroid/cache"), COMPILE_CACHE_SIZE);
+    /* keeps a shell running for compiling, instead of starting one per upload */
+    private static final long COMPILE_TIMEOUT = 180000;
+    private final CompileWorker compileWorker = new CompileWorker("/system/bin/sh");
+    /* one compile at a time, held for minutes, so not the plugin's lock */
+    private final Object compileLock = new Object();
+    /* how uploads check what was written: not at all, page by page or by a checksum of the flash */
+    private static final String VERIFY_NONE = "none";
+    private static final String VERIFY_FULL = "full";
+    private static final String VERIFY_CRC = "crc";
+    /* how many times pages that differ are written again */
+    private static final int VERIFY_RETRIES = 2;
+    /* upload progress and reports */
+    private static final long PROGRESS_INTERVAL = 200;
+    private final UploadLog uploadLog = new UploadLog(new File(EXTERNAL_STORAGE, "sumodroid/logs/uploads.log"), 256 * 1024);
+    /* the flash contents last written to every sumorobot */
+    private final FlashImageStore flashImages = new FlashImageStore(new File(EXTERNAL_STORAGE, "sumodroid/flash"));
+    /* the running uploads, for cancelling them */
+    private final Map<String, CancelToken> uploadCancelTokens = new HashMap<String, CancelToken>();
+    /* how far the last cancelled or failed upload to every sumorobot got */
+    private final Map<String, UploadCheckpoint> uploadCheckpoints = new HashMap<String, UploadCheckpoint>();
+    /* the measured speed of the link to every sumorobot */
+    private final LinkProfiles linkProfiles = new LinkProfiles(new File(EXTERNAL_STORAGE, "sumodroid/links.properties"));
+    /* one job queue per sumorobot, so only one job at a time talks to it */
+    private final Map<String, CommandScheduler> schedulers = new HashMap<String, CommandScheduler>();
+    /* how many sumorobots a fleet upload programs at once, more links share the same radio */
+    private static final int MAX_PARALLEL_UPLOADS = 3;
 
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
         try {
-            bluetoothDevices = new ArrayList<BluetoothDevice>();
+            robotDirectory = new RobotDirectory(new File(cordova.getActivity().getFilesDir(), "sumorobots"));
             /* initialize bluetooth connection */
             Log.d(TAG, "initializing bluetooth");
             bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+            sessionManager = new RobotSessionManager(new RobotTransport.Factory() {
+                @Override
+                public RobotTransport create(String address) {
+                    return new BluetoothTransport(bluetoothAdapter, address);
+                }
+            });
             /* when bluetooth is off */
             if (!bluetoothAdapter.isEnabled()) {
                 /* turn on bluetooth */
@@ -81,56 +141,291 @@ public class Compiler extends CordovaPlugin {
         }
     }
 
-    private void connectBluetooth() {
-        try {
-            Log.d(TAG, "connecting bluetooth");
-            /* open a bluetooth socket */
-            bluetoothDevice = bluetoothAdapter.getRemoteDevice(sumorobotAddress);
-            bluetoothSocket = bluetoothDevice.createRfcommSocketToServiceRecord(MY_UUID);
-            /* connect the bluetooths */
-            bluetoothSocket.connect();
-            /* open the input and output streams */
-            bluetoothOutputStream = bluetoothSocket.getOutputStream();
-            bluetoothInputStream = bluetoothSocket.getInputStream();
-        } catch (Exception e) {
-            Log.d(TAG, "bluetooth connecting error: " + e.getMessage());
+    /* the sumorobot connections, recordings and upload checkpoints outlive a page reload */
+    @Override
+    public boolean keepOnReload() {
+        return true;
+    }
+
+    @Override
+    public void onReset() {
+        /* the callbacks belong to the previous page */
+        sensorStreamCallback = null;
+        synchronized (this) {
+            discoveryCallback = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        /* stop the compiler shell */
+        compileWorker.stop();
+        /* the receiver is registered on the application, which outlives the plugin */
+        unregisterDiscoveryReceiver();
+        /* close all sumorobot connections */
+        if (sessionManager != null) {
+            sessionManager.shutdown();
+        }
+        super.onDestroy();
+    }
+
+    /* the address of the sumorobot to disconnect, the selected one may have changed since */
+    private void disconnectBluetooth(String address) {
+        Log.d(TAG, "disconnecting bluetooth");
+        /* close the bluetooth socket and stop reconnecting */
+        sessionManager.getSession(address).close();
+    }
+
+    /* sends the commands and reads the sensor reply, the caller holds the lease */
+    private int[] exchangeCommands(RobotSession session, RobotSession.Lease lease, String commands) throws IOException, InterruptedException {
+        OutputStream outputStream = lease.getOutputStream();
+        InputStream inputStream = lease.getInputStream();
+        /* negotiate the sensor reply format once per connection and program, each sumorobot keeps its own */
+        SensorTelemetry sensorTelemetry = lease.getSensorTelemetry();
+        if (sensorTelemetry == null) {
+            sensorTelemetry = new SensorTelemetry();
+            boolean binary = sensorTelemetry.negotiate(inputStream, outputStream);
+            lease.setSensorTelemetry(sensorTelemetry);
+            Log.d(TAG, "sensor telemetry format on " + session.getAddress() + ": " + (binary ? "binary" : "ascii"));
         }
+        /* send the commands to the Sumorobot */
+        outputStream.write(commands.getBytes());
+        /* receive sensor values from the Sumorobot */
+        return sensorTelemetry.read(inputStream);
     }
 
-    private void disconnectBluetooth() {
+    /**
+     * Sends a timed sequence of commands on the scheduler's thread. Sumorobots
+     * that support batching get the whole sequence up front and run it on their
+     * own clock, others get every command written at its time.
+     */
+    private void sendCommandBatch(String address, int[] delays, String[] commands, CallbackContext callbackContext) {
+        RobotSession.Lease lease = null;
         try {
-            Log.d(TAG, "disconnecting bluetooth");
-            /* close the input and output streams */
-            bluetoothOutputStream.close();
-            bluetoothInputStream.close();
-            /* close the bluetooth socket */
-            bluetoothSocket.close();
+            RobotSession session = sessionManager.getSession(address);
+            lease = session.acquire(SESSION_TIMEOUT);
+            OutputStream outputStream = lease.getOutputStream();
+            InputStream inputStream = lease.getInputStream();
+            long start = System.currentTimeMillis();
+            /* negotiate batching once per connection and program, each sumorobot keeps its own */
+            CommandBatch commandBatch = lease.getCommandBatch();
+            if (commandBatch == null) {
+                commandBatch = new CommandBatch(inputStream, outputStream);
+                commandBatch.negotiate();
+                lease.setCommandBatch(commandBatch);
+                Log.d(TAG, "command batching on " + address + ": " + (commandBatch.isSupported() ? "supported" : "not supported"));
+            }
+            boolean batchSupported = commandBatch.isSupported();
+            int resentFrames = 0;
+            if (batchSupported) {
+                int resent = commandBatch.getResentFrames();
+                commandBatch.send(delays, commands, commands.length);
+                resentFrames = commandBatch.getResentFrames() - resent;
+            } else {
+                /* time the commands here, without waiting for sensor replies */
+                for (int i = 0; i < commands.length; i++) {
+                    if (delays[i] > 0) {
+                        Thread.sleep(delays[i]);
+                    }
+                    outputStream.write(commands[i].getBytes());
+                    outputStream.flush();
+                }
+            }
+            JSONObject result = new JSONObject();
+            result.put("sent", commands.length);
+            result.put("batched", batchSupported);
+            result.put("resentFrames", resentFrames);
+            result.put("millis", System.currentTimeMillis() - start);
+            callbackContext.success(result);
+        } catch (IOException e) {
+            Log.d(TAG, "sending command batch error: " + e.getMessage());
+            /* the connection is reopened and negotiated again */
+            if (lease != null) {
+                lease.fail();
+            }
+            callbackContext.error(e.getMessage());
         } catch (Exception e) {
-            Log.d(TAG, "disconnecting bluetooth error: " + e.getMessage());
+            Log.d(TAG, "sending command batch error: " + e.getMessage());
+            callbackContext.error(e.getMessage());
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+    }
+
+    private synchronized CommandScheduler getScheduler(String address) {
+        CommandScheduler scheduler = schedulers.get(address);
+        if (scheduler == null) {
+            scheduler = new CommandScheduler(cordova.getThreadPool());
+            schedulers.put(address, scheduler);
         }
+        return scheduler;
     }
 
-    public void writeProgram(String uncompiledProgram) {
+    /* sends the commands on the scheduler's thread, returns null on errors */
+    private int[] sendCommands(String address, String commands) {
+        RobotSession.Lease lease = null;
         try {
-            /* the path to the Arduino sketch */
-            File file = new File(EXTERNAL_STORAGE, "sumodroid/main.ino");
-            /* if file doesnt exists, then create it */
-            if (!file.exists()) {
-                file.createNewFile();
+            RobotSession session = sessionManager.getSession(address);
+            lease = session.acquire(SESSION_TIMEOUT);
+            int[] sensorValues = exchangeCommands(session, lease, commands);
+            sensorRecorder.record(sensorValues);
+            return sensorValues;
+        } catch (IOException e) {
+            Log.d(TAG, "sending commands error: " + e.getMessage());
+            if (lease != null) {
+                lease.fail();
             }
-            Log.d(TAG, "opening program");
-            /* open the filewriter */
-            FileOutputStream writer = new FileOutputStream(file);
-            Log.d(TAG, "writing program");
-            /* write the Arduino sketch */
-            writer.write(uncompiledProgram.getBytes());
-            /* make sure everything got written */
-            writer.flush();
-            /* close the file */
-            writer.close();
         } catch (Exception e) {
-            Log.d(TAG, "writing program error: " + e.getMessage());
+            Log.d(TAG, "sending commands error: " + e.getMessage());
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
         }
+        return null;
+    }
+
+    private void streamSensorValues(CallbackContext callbackContext, int rate) {
+        final String address = sumorobotAddress;
+        CommandScheduler scheduler = getScheduler(address);
+        long period = 1000 / rate;
+        long nextPoll = System.currentTimeMillis();
+        long nextBatch = nextPoll + SENSOR_BATCH_INTERVAL;
+        Runnable poll = new Runnable() {
+            @Override
+            public void run() {
+                int[] sensorValues = sendCommands(address, "p");
+                if (sensorValues != null) {
+                    JSONArray sample = new JSONArray();
+                    for (int value : sensorValues) {
+                        sample.put(value);
+                    }
+                    synchronized (Compiler.this) {
+                        sensorBatch.put(sample);
+                    }
+                }
+            }
+        };
+        Log.d(TAG, "streaming sensor values at " + rate + " Hz");
+        /* a new stream or stopSensorStream replaces the callback */
+        while (sensorStreamCallback == callbackContext) {
+            long now = System.currentTimeMillis();
+            if (now >= nextPoll) {
+                /* a poll still waiting behind commands is not queued twice */
+                scheduler.submit(CommandScheduler.PRIORITY_SENSOR, "stream", poll);
+                nextPoll = Math.max(nextPoll + period, now);
+            }
+            /* deliver everything collected during the batch interval at once */
+            if (now >= nextBatch) {
+                JSONArray batch = takeSensorBatch();
+                if (batch.length() > 0) {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, batch);
+                    result.setKeepCallback(true);
+                    callbackContext.sendPluginResult(result);
+                }
+                nextBatch = now + SENSOR_BATCH_INTERVAL;
+            }
+            try {
+                Thread.sleep(Math.max(1, Math.min(nextPoll, nextBatch) - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        Log.d(TAG, "sensor stream stopped");
+        /* close the callback channel */
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, takeSensorBatch()));
+    }
+
+    private synchronized JSONArray takeSensorBatch() {
+        JSONArray batch = sensorBatch;
+        sensorBatch = new JSONArray();
+        return batch;
+    }
+
+    /* identifies the installed toolchain, so a reinstalled one does not reuse old images */
+    private String getToolchainVersion() {
+        File makeScript = new File(EXTERNAL_STORAGE, "sumodroid/make.sh");
+        File compiler = new File(EXTERNAL_STORAGE, "sumodroid/compiler");
+        return makeScript.length() + ":" + makeScript.lastModified() + ":" + compiler.lastModified();
+    }
+
+    /**
+     * Returns the flash image for the loop, compiling it only when it is not cached.
+     *
+     * Every compile builds and links the whole sketch with make.sh. Nothing is
+     * precompiled: compiling only the loop against prebuilt setup and library
+     * objects would need a script in the compiler archive, which it does not have.
+     */
+    private byte[] compileProgram(String loopContent) {
+        /* uploads to different sumorobots share the sketch files, main.hex and the hex parser */
+        synchronized (compileLock) {
+            String toolchainVersion = getToolchainVersion();
+            String sketch = SKETCH.getSource(loopContent);
+            byte[] program = compileCache.get(toolchainVersion, sketch);
+            if (program != null) {
+                Log.d(TAG, "compile cache hit, saved " + compileCache.getSavedMillis() + " ms so far");
+                return program;
+            }
+            long start = System.currentTimeMillis();
+            /* a failed compile must not leave the previous program behind */
+            new File(EXTERNAL_STORAGE, "sumodroid/main.hex").delete();
+            /* compile the Arduino sketch */
+            try {
+                SKETCH.write(new File(EXTERNAL_STORAGE, "sumodroid/main.ino"), loopContent);
+                CompileWorker.Result result = compileWorker.run(EXTERNAL_STORAGE.getAbsolutePath() + "/sumodroid/make.sh", COMPILE_TIMEOUT);
+                Log.d(TAG, "compiling the sketch finished with " + result.exitCode
+                        + " in " + result.totalMillis + " ms " + result.phaseMillis);
+                reportCompileResult(result, SKETCH.getHeaderLines());
+                if (!result.isSuccess()) {
+                    Log.d(TAG, "compiler output: " + result.output);
+                    return null;
+                }
+            } catch (Exception e) {
+                Log.d(TAG, "compiling error: " + e.getMessage());
+                return null;
+            }
+            /* get the compiled program */
+            program = readProgram("main.hex");
+            if (program == null) {
+                webView.sendJavascript("app.showMessage('Reading the compiled program failed')");
+            } else {
+                try {
+                    compileCache.put(toolchainVersion, sketch, program, System.currentTimeMillis() - start);
+                } catch (IOException e) {
+                    Log.d(TAG, "compile cache error: " + e.getMessage());
+                }
+            }
+            return program;
+        }
+    }
+
+    /* sends the diagnostics and phase times of a compile to the frontend */
+    private void reportCompileResult(CompileWorker.Result result, int headerLines) throws JSONException {
+        JSONObject report = new JSONObject();
+        /* the diagnostics' line numbers count the template lines before the loop */
+        report.put("headerLines", headerLines);
+        report.put("exitCode", result.exitCode);
+        report.put("timedOut", result.timedOut);
+        report.put("totalMillis", result.totalMillis);
+        JSONObject phases = new JSONObject();
+        for (Map.Entry<String, Long> phase : result.phaseMillis.entrySet()) {
+            phases.put(phase.getKey(), phase.getValue());
+        }
+        report.put("phases", phases);
+        JSONArray diagnostics = new JSONArray();
+        for (CompileWorker.Diagnostic diagnostic : result.diagnostics) {
+            JSONObject entry = new JSONObject();
+            entry.put("file", diagnostic.file);
+            entry.put("line", diagnostic.line);
+            entry.put("column", diagnostic.column);
+            entry.put("severity", diagnostic.severity);
+            entry.put("message", diagnostic.message);
+            diagnostics.put(entry);
+        }
+        report.put("diagnostics", diagnostics);
+        webView.sendJavascript("app.receiveCompileResult(" + report.toString() + ")");
     }
 
     private byte[] readProgram(String name) {
@@ -139,44 +434,15 @@ public class Compiler extends CordovaPlugin {
 
         try {
             File file = new File(EXTERNAL_STORAGE, "sumodroid/" + name);
-            /* every line, except last one, has has 45 bytes (including \r\n) */
-            int programLines = (int) Math.ceil(file.length() / 45.0);
-            /* every line has 32 bytes of program data (excluding checksums, addresses, etc.) */
-            int unusedBytes = 45 - 32;
-            /* calculate program length according to program lines and unused bytes */
-            int programLength = (int) file.length() - (programLines * unusedBytes);
-            /* the actualy program data is half the size, as the hex file represents hex data in individual chars */
-            programLength /= 2;
-            /* create a byte array with the program length */
-            compiledProgram = new byte[programLength];
-
             /* opening the file stream */
             Log.d(TAG, "opening program");
             fis = new FileInputStream(file);
-            Log.d(TAG, "Total program size (in bytes) : " + programLength);
-            Log.d(TAG, "Total file size to read (in bytes) : " + fis.available());
-
-            int content;
-            int lineIndex = 0;
-            int lineNumber = 1;
-            int programIndex = 0;
-            char[] line = new char[45];
-            /* read the file byte by byte */
+            Log.d(TAG, "Total file size to read (in bytes) : " + file.length());
+            /* decode the hex records into the flash image */
             Log.d(TAG, "reading program");
-            while ((content = fis.read()) != -1) {
-                /* append byte to the line */
-                line[lineIndex++] = (char) content;
-                /* when the line is complete */
-                if (content == 10) {
-                    /* take only the actual program data from the line */
-                    for (int index = 9; index < lineIndex - 4; index += 2) {
-                        /* convert hexadecimals represented as chars into bytes */
-                        compiledProgram[programIndex++] = Integer.decode("0x" + line[index] + line[index+1]).byteValue();
-                    }
-                    /* start a new line */
-                    lineIndex = 0;
-                }
-            }
+            int programLength = hexParser.parse(fis);
+            Log.d(TAG, "Total program size (in bytes) : " + programLength);
+            compiledProgram = Arrays.copyOf(hexParser.getImage(), programLength);
         } catch (Exception e) {
             Log.d(TAG, "reading program error: " + e.getMessage());
         } finally {
@@ -193,202 +459,624 @@ public class Compiler extends CordovaPlugin {
         return compiledProgram;
     }
 
-    private void executeCommand(String command) {
+    /* extracts the downloaded compiler, unless the manifest shows it is installed already */
+    private void extractCompiler(final CallbackContext progress) {
+        File archive = new File(EXTERNAL_STORAGE, "sumodroid/compiler.tar.gz");
+        TarExtractor extractor = new TarExtractor(archive, new File(EXTERNAL_STORAGE, "sumodroid"),
+                new File(EXTERNAL_STORAGE, "sumodroid/compiler.manifest"));
         try {
-            Process process = Runtime.getRuntime().exec(command);
-            process.waitFor();
+            JSONObject report = new JSONObject();
+            report.put("event", "done");
+            List<String> broken = extractor.verify();
+            if (broken != null && broken.isEmpty()) {
+                Log.d(TAG, "compiler already installed");
+            } else {
+                if (!archive.exists()) {
+                    progress.error("Please download the compiler again");
+                    return;
+                }
+                if (broken != null) {
+                    Log.d(TAG, broken.size() + " compiler files are missing, for example " + broken.get(0));
+                }
+                extractor.setProgressListener(new TarExtractor.ProgressListener() {
+                    private long lastReport = 0;
 
-            String line = "";
-            StringBuffer output = new StringBuffer();
-            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            while ((line = in.readLine()) != null) {
-                output.append(line);
+                    @Override
+                    public void onProgress(int entries, long bytes, long totalBytes) {
+                        long now = System.currentTimeMillis();
+                        if (now - lastReport < PROGRESS_INTERVAL) {
+                            return;
+                        }
+                        lastReport = now;
+                        try {
+                            JSONObject event = new JSONObject();
+                            event.put("event", "progress");
+                            event.put("entries", entries);
+                            event.put("bytes", bytes);
+                            event.put("totalBytes", totalBytes);
+                            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+                            result.setKeepCallback(true);
+                            progress.sendPluginResult(result);
+                        } catch (JSONException e) {
+                            Log.d(TAG, "extracting progress error: " + e.getMessage());
+                        }
+                    }
+                });
+                long start = System.currentTimeMillis();
+                int entries = extractor.extract();
+                long millis = System.currentTimeMillis() - start;
+                Log.d(TAG, "extracted " + entries + " entries in " + millis + " ms, " + extractor.getSkippedEntries() + " were extracted before");
+                report.put("entries", entries);
+                report.put("skippedEntries", extractor.getSkippedEntries());
+                report.put("millis", millis);
+                /* remove the compiler tarball */
+                archive.delete();
             }
-            Log.d(TAG, "command output: " + output);
+            progress.success(report);
+            /* start sumorobot discovery */
+            webView.sendJavascript("app.startSumorobotDiscovery()");
+        } catch (Exception e) {
+            Log.d(TAG, "extracting compiler error: " + e.getMessage());
+            progress.error("Extracting the compiler failed, please try again");
+        }
+    }
+
+    /* lets cancelUploadingProgram stop the upload to the address, from before compiling on */
+    private CancelToken addCancelToken(String address) {
+        CancelToken cancelToken = new CancelToken();
+        synchronized (uploadCancelTokens) {
+            uploadCancelTokens.put(address, cancelToken);
+        }
+        return cancelToken;
+    }
 
-            StringBuffer error = new StringBuffer();
-            in = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-            while ((line = in.readLine()) != null) {
-                error.append(line);
+    private void removeCancelToken(String address, CancelToken cancelToken) {
+        synchronized (uploadCancelTokens) {
+            if (uploadCancelTokens.get(address) == cancelToken) {
+                uploadCancelTokens.remove(address);
             }
-            Log.d(TAG, "command errors: " + error);
-        } catch (Exception e) {
-            Log.d(TAG, "command execution error: " + e.getMessage());
         }
     }
 
-    private void uploadProgram(byte[] compiledProgram) {
+    private boolean uploadProgram(byte[] compiledProgram, String verifyMode, final UploadMetrics metrics, final CallbackContext progress, CancelToken cancelToken) {
+        RobotSession session = sessionManager.getSession(metrics.getAddress());
+        LinkProfiles.Profile link = linkProfiles.get(metrics.getAddress());
+        RobotSession.Lease lease = null;
+        Stk500Programmer programmer = null;
+        boolean programming = false;
+        /* the pages being written, kept for resuming when the upload stops halfway */
+        int[] pages = null;
+        int pageCount = 0;
+        int resumedPages = 0;
         try {
+            Log.d(TAG, "connecting bluetooth");
+            metrics.setPhase("connect");
+            sendUploadProgress(progress, metrics, true);
+            boolean warm = session.isConnected();
+            long connectStart = System.currentTimeMillis();
+            lease = session.acquire(SESSION_TIMEOUT);
+            metrics.setConnectMillis(System.currentTimeMillis() - connectStart);
+            programmer = new Stk500Programmer(lease.getInputStream(), lease.getOutputStream());
+            /* wait for a sync answer as long as the link needed last time */
+            programmer.setSyncTimeout(link.getSyncTimeout());
+
             Log.d(TAG, "syncing");
-            for (int i = 0; i < 5; i++) {
-                bluetoothOutputStream.write(0x30);
-                bluetoothOutputStream.write(0x20);
-                Thread.sleep(50);
+            metrics.setPhase("sync");
+            int attempts;
+            try {
+                attempts = programmer.sync(5);
+            } catch (IOException e) {
+                if (!warm) {
+                    throw e;
+                }
+                /* the bootloader only runs right after connecting resets the sumorobot */
+                Log.d(TAG, "no sync on open connection, reconnecting");
+                lease.release();
+                metrics.setPhase("connect");
+                connectStart = System.currentTimeMillis();
+                session.reconnect();
+                lease = session.acquire(SESSION_TIMEOUT);
+                metrics.setConnectMillis(System.currentTimeMillis() - connectStart);
+                programmer = new Stk500Programmer(lease.getInputStream(), lease.getOutputStream());
+                programmer.setSyncTimeout(link.getSyncTimeout());
+                metrics.setPhase("sync");
+                attempts = 5 + programmer.sync(5);
             }
+            metrics.setSyncAttempts(attempts);
+            Log.d(TAG, "insync after " + attempts + " attempts");
+            cancelToken.check(metrics.getPhase());
 
-            Log.d(TAG, "waiting for response");
-            int insync = bluetoothInputStream.read();
-            int ok = bluetoothInputStream.read();
-            if (insync == 0x14 && ok == 0x10) {
-                Log.d(TAG, "insync");
-            }
+            Log.d(TAG, "reading version");
+            metrics.setPhase("version");
+            int major = programmer.getParameter(Stk500Programmer.STK_SW_MAJOR);
+            int minor = programmer.getParameter(Stk500Programmer.STK_SW_MINOR);
+            Log.d(TAG, "version: " + major + "." + minor);
 
-            Log.d(TAG, "reading major version");
-            bluetoothOutputStream.write(0x41);
-            bluetoothOutputStream.write(0x81);
-            bluetoothOutputStream.write(0x20);
-            Thread.sleep(50);
+            Log.d(TAG, "entering programming mode");
+            metrics.setPhase("enter programming mode");
+            programmer.enterProgrammingMode();
+            programming = true;
 
-            Log.d(TAG, "waiting for response");
-            insync = bluetoothInputStream.read();
-            int major = bluetoothInputStream.read();
-            ok = bluetoothInputStream.read();
-            if (insync == 0x14 && ok == 0x10) {
-                Log.d(TAG, "insync");
-            }
+            Log.d(TAG, "getting device signature");
+            metrics.setPhase("signature");
+            byte[] signature = programmer.readSignature();
+            Log.d(TAG, "signature: " + signature[0] + "." + signature[1] + "." + signature[2]);
 
-            Log.d(TAG, "reading minor version");
-            bluetoothOutputStream.write(0x41);
-            bluetoothOutputStream.write(0x82);
-            bluetoothOutputStream.write(0x20);
-            Thread.sleep(50);
+            /* measure the link, the next sync timeout follows it */
+            metrics.setPhase("measure link");
+            link.recordProbe(programmer.getSyncRtt() / 1000000.0, programmer.measureThroughput());
+            metrics.setLink(link.getRttMillis(), link.getBytesPerSecond(), programmer.getWindow());
+            Log.d(TAG, "link: " + link.getRttMillis() + " ms round trip, " + (int) link.getBytesPerSecond()
+                    + " bytes per second, window " + programmer.getWindow());
 
-            Log.d(TAG, "waiting for response");
-            insync = bluetoothInputStream.read();
-            int minor = bluetoothInputStream.read();
-            ok = bluetoothInputStream.read();
-            if (insync == 0x14 && ok == 0x10) {
-                Log.d(TAG, "insync");
+            cancelToken.check(metrics.getPhase());
+            metrics.setPhase("compare");
+            byte[] previous = flashImages.load(metrics.getAddress());
+            UploadCheckpoint checkpoint;
+            synchronized (uploadCheckpoints) {
+                checkpoint = uploadCheckpoints.remove(metrics.getAddress());
             }
+            if (checkpoint != null && checkpoint.matches(compiledProgram) && matchesCheckpoint(programmer, checkpoint, compiledProgram)) {
+                /* go on from the first page the last upload did not get acknowledged */
+                pages = checkpoint.getPages();
+                pageCount = checkpoint.getPageCount();
+                resumedPages = checkpoint.getWrittenPages();
+                metrics.setResumedPages(resumedPages);
+                Log.d(TAG, "resuming after " + resumedPages + " of " + pageCount + " pages");
+            } else {
+                /* only write the pages that differ from what the sumorobot has */
+                pages = new int[Stk500Programmer.getPageCount(compiledProgram.length)];
+                pageCount = pages.length;
+                int dirtyCount = previous == null ? 0 : FlashImageStore.findDirtyPages(previous, compiledProgram, pages);
+                if (previous != null && matchesFlash(programmer, previous, pages, dirtyCount)) {
+                    pageCount = dirtyCount;
+                } else {
+                    for (int page = 0; page < pages.length; page++) {
+                        pages[page] = page;
+                    }
+                }
+            }
+            /* the flash contents are unknown until programming succeeds */
+            flashImages.forget(metrics.getAddress());
 
-            Log.d(TAG, "version: " + major + "." + minor);
-
-            Log.d(TAG, "entering programming mode");
-            bluetoothOutputStream.write(0x50);
-            bluetoothOutputStream.write(0x20);
-            Thread.sleep(50);
+            Log.d(TAG, "programming " + (pageCount - resumedPages) + " of " + Stk500Programmer.getPageCount(compiledProgram.length) + " pages");
+            metrics.setPhase("program");
+            metrics.setTotalPages(pageCount - resumedPages);
+            programmer.setPageListener(new Stk500Programmer.PageListener() {
+                @Override
+                public void onPageWritten(int page, int bytes, long rttNanos) {
+                    metrics.addPage(bytes, rttNanos);
+                    sendUploadProgress(progress, metrics, false);
+                }
+            });
+            /* checked between pages */
+            programmer.setCancelToken(cancelToken);
+            long start = System.currentTimeMillis();
+            programmer.programPages(compiledProgram, compiledProgram.length,
+                    Arrays.copyOfRange(pages, resumedPages, pageCount), pageCount - resumedPages);
+            metrics.setProgramMillis(System.currentTimeMillis() - start);
+            Log.d(TAG, "programming took " + metrics.getProgramMillis() + " ms");
+            cancelToken.check(metrics.getPhase());
+            if (!verifyMode.equals(VERIFY_NONE)) {
+                Log.d(TAG, "verifying");
+                metrics.setPhase("verify");
+                programmer.setPageListener(null);
+                start = System.currentTimeMillis();
+                verifyProgram(programmer, compiledProgram, pages, pageCount, verifyMode, metrics);
+                metrics.setVerifyMillis(System.currentTimeMillis() - start);
+                Log.d(TAG, "verifying took " + metrics.getVerifyMillis() + " ms");
+            }
+            flashImages.save(metrics.getAddress(), FlashImageStore.merge(previous, compiledProgram));
 
-            Log.d(TAG, "waiting for response");
-            insync = bluetoothInputStream.read();
-            ok = bluetoothInputStream.read();
-            if (insync == 0x14 && ok == 0x10) {
-                Log.d(TAG, "insync");
+            Log.d(TAG, "leaving programming mode");
+            metrics.setPhase("leave programming mode");
+            programmer.leaveProgrammingMode();
+            /* the new program has to negotiate the telemetry format and batching again */
+            lease.resetNegotiation();
+            metrics.setPhase("done");
+            return true;
+        } catch (CancelToken.CancelledException e) {
+            Log.d(TAG, "upload " + e.getMessage());
+            metrics.fail(e.getMessage());
+            saveCheckpoint(metrics, compiledProgram, pages, pageCount, resumedPages, programmer);
+            /* the bootloader is in sync, start the old or partly written program */
+            if (programming) {
+                try {
+                    programmer.leaveProgrammingMode();
+                    lease.resetNegotiation();
+                } catch (IOException leaveError) {
+                    Log.d(TAG, "leaving programming mode error: " + leaveError.getMessage());
+                    lease.fail();
+                }
             }
+            return false;
+        } catch (Exception e) {
+            Log.d(TAG, "programming error: " + e.getMessage());
+            metrics.fail(e.getMessage());
+            saveCheckpoint(metrics, compiledProgram, pages, pageCount, resumedPages, programmer);
+            if (lease != null) {
+                lease.fail();
+            }
+            return false;
+        } finally {
+            removeCancelToken(metrics.getAddress(), cancelToken);
+            if (lease != null) {
+                lease.release();
+            }
+            try {
+                linkProfiles.save();
+            } catch (IOException e) {
+                Log.d(TAG, "saving link profiles error: " + e.getMessage());
+            }
+        }
+    }
 
-            Log.d(TAG, "getting device signature");
-            bluetoothOutputStream.write(0x75);
-            bluetoothOutputStream.write(0x20);
-            Thread.sleep(50);
+    /* remembers the acknowledged pages when programming stopped halfway */
+    private void saveCheckpoint(UploadMetrics metrics, byte[] program, int[] pages, int pageCount, int resumedPages,
+            Stk500Programmer programmer) {
+        if (!metrics.getPhase().equals("program")) {
+            return;
+        }
+        int writtenPages = resumedPages + programmer.getWrittenPages();
+        Log.d(TAG, "upload stopped after " + writtenPages + " of " + pageCount + " pages");
+        synchronized (uploadCheckpoints) {
+            uploadCheckpoints.put(metrics.getAddress(), new UploadCheckpoint(program, pages, pageCount, writtenPages));
+        }
+    }
 
-            Log.d(TAG, "waiting for response");
-            insync = bluetoothInputStream.read();
-            byte [] signature = new byte[3];
-            bluetoothInputStream.read(signature, 0, 3);
-            ok = bluetoothInputStream.read();
-            if (insync == 0x14 && ok == 0x10) {
-                Log.d(TAG, "insync");
+    /* checks the last page the checkpoint has as written, the sumorobot may have been programmed since */
+    private boolean matchesCheckpoint(Stk500Programmer programmer, UploadCheckpoint checkpoint, byte[] program) throws IOException {
+        int lastPage = checkpoint.getLastWrittenPage();
+        if (lastPage == -1) {
+            return true;
+        }
+        byte[] page = new byte[Stk500Programmer.PAGE_SIZE];
+        int offset = lastPage * Stk500Programmer.PAGE_SIZE;
+        int size = Math.min(Stk500Programmer.PAGE_SIZE, program.length - offset);
+        programmer.readFlash(offset, page, 0, size);
+        for (int i = 0; i < size; i++) {
+            if (page[i] != program[offset + i]) {
+                Log.d(TAG, "flash differs from the cancelled upload at 0x" + Integer.toHexString(offset + i));
+                return false;
             }
+        }
+        return true;
+    }
 
-            Log.d(TAG, "signature: " + signature[0] + "." + signature[1] + "." + signature[2]);
+    /* reads the flash back and writes the pages that differ again */
+    private void verifyProgram(Stk500Programmer programmer, byte[] program, int[] pages, int pageCount,
+            String verifyMode, UploadMetrics metrics) throws IOException, InterruptedException {
+        /* only the written pages are checked, the others were the same before */
+        if (verifyMode.equals(VERIFY_CRC)) {
+            if (programmer.checkPagesCrc(program, program.length, pages, pageCount)) {
+                return;
+            }
+            /* find out which pages differ */
+            Log.d(TAG, "flash checksum differs, comparing the written pages");
+        }
+        int[] badPages = new int[pageCount];
+        for (int retry = 0; ; retry++) {
+            int badCount = programmer.verifyPages(program, program.length, pages, pageCount, badPages);
+            if (badCount == 0) {
+                return;
+            }
+            String address = "0x" + Integer.toHexString(programmer.getFirstMismatch());
+            Log.d(TAG, badCount + " pages differ, the first at " + address);
+            if (retry == VERIFY_RETRIES) {
+                throw new IOException("flash differs at " + address + " after " + retry + " retries");
+            }
+            /* only the pages that differ are written and checked again */
+            metrics.addRewrittenPages(badCount);
+            pages = Arrays.copyOf(badPages, badCount);
+            pageCount = badCount;
+            programmer.programPages(program, program.length, pages, pageCount);
+        }
+    }
 
-            int size = 0;
-            int address = 0;
-            int programIndex = 0;
-            while (true) {
-                int laddress = address % 256;
-                int haddress = address / 256;
-                address += 64;
-
-                Log.d(TAG, "loading page address");
-                bluetoothOutputStream.write(0x55);
-                bluetoothOutputStream.write(laddress);
-                bluetoothOutputStream.write(haddress);
-                bluetoothOutputStream.write(0x20);
-                //Thread.sleep(50);
-
-                Log.d(TAG, "waiting for response");
-                insync = bluetoothInputStream.read();
-                ok = bluetoothInputStream.read();
-                if (insync == 0x14 && ok == 0x10) {
-                    Log.d(TAG, "insync");
-                }
+    /* sends a progress event, at most every PROGRESS_INTERVAL unless forced */
+    private void sendUploadProgress(CallbackContext progress, UploadMetrics metrics, boolean force) {
+        if (!metrics.claimReport(PROGRESS_INTERVAL) && !force) {
+            return;
+        }
+        try {
+            JSONObject event = new JSONObject();
+            event.put("event", "progress");
+            event.put("address", metrics.getAddress());
+            event.put("phase", metrics.getPhase());
+            event.put("pages", metrics.getPages());
+            event.put("totalPages", metrics.getTotalPages());
+            event.put("bytes", metrics.getBytes());
+            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+            result.setKeepCallback(true);
+            progress.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.d(TAG, "upload progress error: " + e.getMessage());
+        }
+    }
 
-                if (compiledProgram.length - programIndex < 128) {
-                    size = compiledProgram.length - programIndex;
-                } else {
-                    size = 128;
-                }
-                Log.d(TAG, "programming page size: " + size + " haddress: " + haddress + " laddress: " + laddress);
-                bluetoothOutputStream.write(0x64);
-                bluetoothOutputStream.write(0x00);
-                bluetoothOutputStream.write(size);
-                bluetoothOutputStream.write(0x46);
-                for (int i = 0; i < size; i++) {
-                    bluetoothOutputStream.write(compiledProgram[programIndex++]);
-                }
-                bluetoothOutputStream.write(0x20);
-                //Thread.sleep(50);
+    private JSONObject getUploadReport(UploadMetrics metrics) throws JSONException {
+        JSONObject report = new JSONObject();
+        report.put("event", "done");
+        report.put("address", metrics.getAddress());
+        report.put("time", metrics.getStartTime());
+        report.put("success", !metrics.isFailed());
+        report.put("connectMillis", metrics.getConnectMillis());
+        report.put("syncAttempts", metrics.getSyncAttempts());
+        report.put("linkRtt", metrics.getLinkRttMillis());
+        report.put("linkBytesPerSecond", metrics.getLinkBytesPerSecond());
+        report.put("window", metrics.getWindow());
+        report.put("pages", metrics.getPages());
+        report.put("totalPages", metrics.getTotalPages());
+        report.put("bytes", metrics.getBytes());
+        report.put("programMillis", metrics.getProgramMillis());
+        report.put("verifyMillis", metrics.getVerifyMillis());
+        report.put("rewrittenPages", metrics.getRewrittenPages());
+        report.put("resumedPages", metrics.getResumedPages());
+        report.put("bytesPerSecond", metrics.getBytesPerSecond());
+        report.put("totalMillis", metrics.getTotalMillis());
+        report.put("averageRtt", metrics.getAverageRtt());
+        report.put("maxRtt", metrics.getMaxRtt());
+        JSONObject histogram = new JSONObject();
+        int[] counts = metrics.getRttHistogram();
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            String label = bucket < UploadMetrics.RTT_BUCKETS.length
+                    ? "<" + UploadMetrics.RTT_BUCKETS[bucket] : ">=" + UploadMetrics.RTT_BUCKETS[bucket - 1];
+            histogram.put(label, counts[bucket]);
+        }
+        report.put("rttHistogram", histogram);
+        if (metrics.isFailed()) {
+            report.put("failurePhase", metrics.getFailurePhase());
+            report.put("failure", metrics.getFailure());
+        }
+        return report;
+    }
 
-                Log.d(TAG, "receiving sync ack");
-                insync = bluetoothInputStream.read();
-                ok = bluetoothInputStream.read();
+    /* sends the final report to the frontend and appends it to the upload log */
+    private void finishUpload(CallbackContext progress, UploadMetrics metrics) {
+        finishUpload(progress, metrics, false);
+    }
 
-                if (insync == 0x14 && ok == 0x10) {
-                    Log.d(TAG, "insync");
-                }
+    /* a fleet upload keeps the callback open for the reports of the other sumorobots */
+    private void finishUpload(CallbackContext progress, UploadMetrics metrics, boolean keepCallback) {
+        metrics.finish();
+        try {
+            JSONObject report = getUploadReport(metrics);
+            Log.d(TAG, "upload report: " + report);
+            PluginResult result = new PluginResult(PluginResult.Status.OK, report);
+            result.setKeepCallback(keepCallback);
+            progress.sendPluginResult(result);
+            uploadLog.append(report.toString());
+        } catch (Exception e) {
+            Log.d(TAG, "upload report error: " + e.getMessage());
+        }
+    }
+
+    /* compiles the sketch once and uploads it to all the sumorobots, a few at a time */
+    private void uploadProgramToFleet(String arduinoLoopContent, List<String> addresses, int maxParallel, final String verifyMode, final CallbackContext progress) {
+        UploadMetrics compileMetrics = new UploadMetrics("fleet");
+        compileMetrics.setPhase("compile");
+        sendUploadProgress(progress, compileMetrics, true);
+        /* cancels the whole fleet, from compiling to the last sumorobot */
+        CancelToken fleetCancelToken = addCancelToken(compileMetrics.getAddress());
+        try {
+            uploadProgramToFleet(arduinoLoopContent, addresses, maxParallel, verifyMode, progress, compileMetrics, fleetCancelToken);
+        } finally {
+            removeCancelToken(compileMetrics.getAddress(), fleetCancelToken);
+        }
+    }
 
-                if (size != 0x80) {
-                    break;
+    /* the fleet upload, cancelUploadingProgram cancels the fleet's token */
+    private void uploadProgramToFleet(String arduinoLoopContent, List<String> addresses, int maxParallel, final String verifyMode,
+            final CallbackContext progress, UploadMetrics compileMetrics, CancelToken fleetCancelToken) {
+        final byte[] program = compileProgram(arduinoLoopContent);
+        if (program == null || fleetCancelToken.isCancelled()) {
+            compileMetrics.fail(program == null ? "compiling failed" : "cancelled during compile");
+            finishUpload(progress, compileMetrics);
+            return;
+        }
+        /* every sumorobot gets its own session, job queue and report */
+        FleetUploader fleetUploader = new FleetUploader(new FleetUploader.Dispatcher() {
+            @Override
+            public void dispatch(String address, CommandScheduler.CancellableTask job) {
+                getScheduler(address).submit(CommandScheduler.PRIORITY_UPLOAD, null, job);
+            }
+        }, new FleetUploader.Uploader() {
+            @Override
+            public boolean upload(String address, UploadMetrics metrics) {
+                CancelToken cancelToken = addCancelToken(address);
+                uploadProgram(program, verifyMode, metrics, progress, cancelToken);
+                finishUpload(progress, metrics, true);
+                /* free the bluetooth link for the next sumorobot */
+                sessionManager.closeSession(address);
+                return !cancelToken.isCancelled();
+            }
+
+            @Override
+            public void cancelled(String address, UploadMetrics metrics) {
+                metrics.fail("cancelled before starting");
+                finishUpload(progress, metrics, true);
+            }
+        }, maxParallel);
+        long start = System.currentTimeMillis();
+        try {
+            List<UploadMetrics> results = fleetUploader.run(addresses, fleetCancelToken);
+            JSONArray reports = new JSONArray();
+            int failed = 0;
+            for (UploadMetrics metrics : results) {
+                reports.put(getUploadReport(metrics));
+                if (metrics.isFailed()) {
+                    failed++;
                 }
             }
+            JSONObject report = new JSONObject();
+            report.put("event", "fleetDone");
+            report.put("robots", reports);
+            report.put("failed", failed);
+            report.put("totalMillis", System.currentTimeMillis() - start);
+            Log.d(TAG, "fleet upload to " + addresses.size() + " sumorobots took " + (System.currentTimeMillis() - start) + " ms, " + failed + " failed");
+            progress.sendPluginResult(new PluginResult(PluginResult.Status.OK, report));
+        } catch (Exception e) {
+            Log.d(TAG, "fleet upload error: " + e.getMessage());
+            progress.error("Uploading to the sumorobots failed");
+        }
+    }
 
-            Log.d(TAG, "leaving programming mode");
-            bluetoothOutputStream.write(0x51);
-            bluetoothOutputStream.write(0x20);
-            Thread.sleep(50);
+    /**
+     * Checks every page that would be skipped against the previously written
+     * program by a CRC of the flash, to notice when something else has
+     * flashed the sumorobot since. The vector table in the first page is the
+     * same in most sketches, so no subset of the pages is enough.
+     *
+     * @param dirtyPages the pages that will be written, in ascending order
+     */
+    private boolean matchesFlash(Stk500Programmer programmer, byte[] previous, int[] dirtyPages, int dirtyCount)
+            throws IOException, InterruptedException {
+        if (previous.length == 0) {
+            return false;
+        }
+        int[] cleanPages = new int[Stk500Programmer.getPageCount(previous.length)];
+        int cleanCount = 0;
+        int dirty = 0;
+        for (int page = 0; page < cleanPages.length; page++) {
+            if (dirty < dirtyCount && dirtyPages[dirty] == page) {
+                dirty++;
+            } else {
+                cleanPages[cleanCount++] = page;
+            }
+        }
+        if (!programmer.checkPagesCrc(previous, previous.length, cleanPages, cleanCount)) {
+            Log.d(TAG, "flash differs from the last upload");
+            return false;
+        }
+        return true;
+    }
 
-            Log.d(TAG, "receiving sync ack");
-            insync = bluetoothInputStream.read();
-            ok = bluetoothInputStream.read();
+    /* fills the picker from the known sumorobots at once, the scan adds and ranks the ones in range */
+    private synchronized void startBluetoothDiscovery(CallbackContext callbackContext) {
+        Log.d(TAG, "starting to search bluetooth devices");
+        if (discoveryCallback != null) {
+            /* the previous discovery's listener is replaced */
+            discoveryCallback.sendPluginResult(new PluginResult(PluginResult.Status.OK, getDiscoveryEvent("finished")));
+        }
+        if (!discoveryReceiverRegistered) {
+            IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+            filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+            cordova.getActivity().getApplicationContext().registerReceiver(mReceiver, filter);
+            discoveryReceiverRegistered = true;
+        }
+        discoveryCallback = callbackContext;
+        robotDirectory.startScan();
+        for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
+            if (RobotDirectory.isSumorobot(device.getName(), getMajorDeviceClass(device))) {
+                robotDirectory.addBonded(device.getAddress(), device.getName());
+            }
+        }
+        sendDiscoveryEvent(getDiscoveryEvent("cached"));
+        showSumorobotPicker();
+        /* a scan that is still running keeps going for the new listener */
+        if (!bluetoothAdapter.isDiscovering()) {
+            bluetoothAdapter.startDiscovery();
+        }
+    }
 
-            if (insync == 0x14 && ok == 0x10) {
-                Log.d(TAG, "insync");
+    private JSONObject getDiscoveryEvent(String type) {
+        JSONObject event = new JSONObject();
+        try {
+            event.put("event", type);
+            JSONArray robots = new JSONArray();
+            for (RobotDirectory.Robot robot : robotDirectory.getRobots()) {
+                robots.put(getRobotJson(robot));
             }
-        } catch (Exception e) {
-            Log.d(TAG, "programming error: " + e.getMessage());
+            event.put("robots", robots);
+        } catch (JSONException e) {
+            Log.d(TAG, "discovery event error: " + e.getMessage());
         }
+        return event;
     }
 
-    private void startBluetoothDiscovery() {
-        /* clear previously found devices */
-        bluetoothDevices.clear();
-        /* register the BroadcastReceiver */
-        //IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-        //filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        //cordova.getActivity().getApplicationContext().registerReceiver(mReceiver, filter);
-        Log.d(TAG, "starting to search bluetooth devices");
-        //bluetoothAdapter.startDiscovery();
-        /* notify frontend to stop showing activity */
-        //webView.sendJavascript("app.stopShowingActivity()");
-        /* add bonded devices */
-        bluetoothDevices.addAll(bluetoothAdapter.getBondedDevices());
-        int index = 0;
-        String[] bluetoothDeviceNames = new String[bluetoothDevices.size()];
-        for (BluetoothDevice device : bluetoothDevices) {
-            bluetoothDeviceNames[index++] = device.getName();
-        }
-        /* show bluetooth devices for selection */
-        AlertDialog.Builder alertDialog = new AlertDialog.Builder(cordova.getActivity(), AlertDialog.THEME_DEVICE_DEFAULT_LIGHT);
-        alertDialog.setCancelable(true);
-        alertDialog.setTitle("Please select your Sumorobot");
-        alertDialog.setItems(bluetoothDeviceNames, new DialogInterface.OnClickListener() {
-            public void onClick(DialogInterface dialog, int selectedIndex) {
-                sumorobotAddress = bluetoothDevices.get(selectedIndex).getAddress();
-                dialog.dismiss();
+    private JSONObject getRobotJson(RobotDirectory.Robot robot) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("address", robot.address);
+        json.put("name", robot.name == null ? robot.address : robot.name);
+        json.put("lastSeen", robot.lastSeen);
+        json.put("bonded", robot.bonded);
+        json.put("inRange", robot.inRange);
+        if (robot.inRange) {
+            json.put("rssi", robot.rssi);
+        }
+        return json;
+    }
+
+    private synchronized void unregisterDiscoveryReceiver() {
+        if (discoveryReceiverRegistered) {
+            cordova.getActivity().getApplicationContext().unregisterReceiver(mReceiver);
+            discoveryReceiverRegistered = false;
+        }
+    }
+
+    /* the discovery callback stays open until the scan has finished */
+    private synchronized void sendDiscoveryEvent(JSONObject event) {
+        if (discoveryCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+            result.setKeepCallback(true);
+            discoveryCallback.sendPluginResult(result);
+        }
+    }
+
+    private void showSumorobotPicker() {
+        cordova.getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                pickerItems = new ArrayAdapter<String>(cordova.getActivity(), android.R.layout.select_dialog_item);
+                refreshSumorobotPicker();
+                /* show bluetooth devices for selection */
+                AlertDialog.Builder alertDialog = new AlertDialog.Builder(cordova.getActivity(), AlertDialog.THEME_DEVICE_DEFAULT_LIGHT);
+                alertDialog.setCancelable(true);
+                alertDialog.setTitle("Please select your Sumorobot");
+                alertDialog.setAdapter(pickerItems, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int selectedIndex) {
+                        sumorobotAddress = pickerRobots.get(selectedIndex).address;
+                        Log.d(TAG, "selected sumorobot: " + sumorobotAddress);
+                        /* scanning slows down connecting */
+                        bluetoothAdapter.cancelDiscovery();
+                        dialog.dismiss();
+                    }
+                });
+                alertDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    public void onCancel(DialogInterface dialog) {
+                        pickerItems = null;
+                    }
+                });
+                alertDialog.create();
+                alertDialog.show();
             }
         });
-        alertDialog.create();
-        alertDialog.show();
+    }
+
+    /* shows the robots in their current order, on the ui thread */
+    private void refreshSumorobotPicker() {
+        if (pickerItems == null) {
+            return;
+        }
+        pickerRobots = robotDirectory.getRobots();
+        pickerItems.setNotifyOnChange(false);
+        pickerItems.clear();
+        for (RobotDirectory.Robot robot : pickerRobots) {
+            String name = robot.name == null ? robot.address : robot.name;
+            pickerItems.add(robot.inRange ? name + " (" + robot.rssi + " dBm)" : name);
+        }
+        pickerItems.notifyDataSetChanged();
+    }
+
+    /**
+     * This method returns the major device class of a bluetooth device.
+     */
+    private static int getMajorDeviceClass(BluetoothDevice device) {
+        BluetoothClass bluetoothClass = device.getBluetoothClass();
+        if (bluetoothClass == null) {
+            return RobotDirectory.MAJOR_UNCATEGORIZED;
+        }
+        return bluetoothClass.getMajorDeviceClass();
     }
 
     /* create a BroadcastReceiver for ACTION_FOUND and ACTION_DISCOVERY_FINISHED */
@@ -399,39 +1087,43 @@ public class Compiler extends CordovaPlugin {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 /* get the BluetoothDevice object from the Intent */
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                /* add the name and address to an array adapter to show in a ListView */
-                if (device != null && device.getName() != null && device.getAddress() != null) {
-                    bluetoothDevices.add(device);
-                    Log.d(TAG, "found bluetooth device: " + device.getName());
+                if (device == null || device.getAddress() == null) {
+                    return;
+                }
+                /* phones, headsets and other devices are not listed */
+                if (!RobotDirectory.isSumorobot(device.getName(), getMajorDeviceClass(device))) {
+                    return;
+                }
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) RobotDirectory.NO_RSSI);
+                boolean bonded = device.getBondState() == BluetoothDevice.BOND_BONDED;
+                /* a device found again with the same signal is not sent again */
+                if (robotDirectory.found(device.getAddress(), device.getName(), rssi, bonded, System.currentTimeMillis())) {
+                    Log.d(TAG, "found bluetooth device: " + device.getName() + " " + rssi + " dBm");
+                    try {
+                        JSONObject event = new JSONObject();
+                        event.put("event", "found");
+                        event.put("robot", getRobotJson(robotDirectory.get(device.getAddress())));
+                        sendDiscoveryEvent(event);
+                    } catch (JSONException e) {
+                        Log.d(TAG, "discovery event error: " + e.getMessage());
+                    }
+                    refreshSumorobotPicker();
                 }
             /* when bluetooth discovery has finished */
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                bluetoothAdapter.cancelDiscovery();
                 Log.d(TAG, "bluetooth device search finished");
-                cordova.getActivity().getApplicationContext().unregisterReceiver(mReceiver);
-                /* also include all paired devices */
-                bluetoothDevices.addAll(bluetoothAdapter.getBondedDevices());
-                /* send the bluetooth device names to the web frontend */
-                int index = 0;
-                String[] bluetoothDeviceNames = new String[bluetoothDevices.size()];
-                for (BluetoothDevice device : bluetoothDevices) {
-                    bluetoothDeviceNames[index++] = device.getName();
+                try {
+                    robotDirectory.save();
+                } catch (IOException e) {
+                    Log.d(TAG, "saving sumorobots error: " + e.getMessage());
                 }
-                /* notify frontend to stop showing activity */
-                webView.sendJavascript("app.stopShowingActivity()");
-                /* send the sumorobot names back to the frontend */
-                //webView.sendJavascript("app.showSumorobots('" + bluetoothDeviceNames + "')");
-                AlertDialog.Builder alertDialog = new AlertDialog.Builder(cordova.getActivity(), AlertDialog.THEME_DEVICE_DEFAULT_LIGHT);
-                alertDialog.setCancelable(true);
-                alertDialog.setTitle("Please select your Sumorobot");
-                alertDialog.setItems(bluetoothDeviceNames, new DialogInterface.OnClickListener() {
-                    public void onClick(DialogInterface dialog, int selectedIndex) {
-                        sumorobotAddress = bluetoothDevices.get(selectedIndex).getAddress();
-                        dialog.dismiss();
+                synchronized (Compiler.this) {
+                    unregisterDiscoveryReceiver();
+                    if (discoveryCallback != null) {
+                        discoveryCallback.sendPluginResult(new PluginResult(PluginResult.Status.OK, getDiscoveryEvent("finished")));
+                        discoveryCallback = null;
                     }
-                });
-                alertDialog.create();
-                alertDialog.show();
+                }
             }
         }
     };
@@ -453,118 +1145,294 @@ public class Compiler extends CordovaPlugin {
 
             final String arduinoLoopContent = args.getString(0);
             final boolean disconnectAfterUpload = args.getBoolean(1);
-            new Thread(new Runnable() {
+            final String verifyMode = args.optString(2, VERIFY_NONE);
+            final CallbackContext progress = callbackContext;
+            final UploadMetrics metrics = new UploadMetrics(sumorobotAddress);
+            getScheduler(sumorobotAddress).submit(CommandScheduler.PRIORITY_UPLOAD, null, new CommandScheduler.CancellableTask() {
+                @Override
+                public void cancelled() {
+                    /* the frontend still gets the final report */
+                    metrics.fail("cancelled before starting");
+                    finishUpload(progress, metrics);
+                }
+
                 @Override
                 public void run() {
                     /* notify frontend to start showing activity */
                     //webView.sendJavascript("app.startShowingActivity('Uploading program')");
-                    /* write everything to a Arduino sketch */
-                    writeProgram(ARDUINO_LIBRARIES + ARDUINO_SETUP_LOOP + arduinoLoopContent + ARDUINO_END);
-                    /* compile the Arduino sketch */
-                    executeCommand("/system/bin/sh " + EXTERNAL_STORAGE.getAbsolutePath() + "/sumodroid/make.sh");
-                    /* get the compiled program */
-                    byte[] program = readProgram("main.hex");
-                    /* connect to the Arduino */
-                    connectBluetooth();
-                    /* upload the program */
-                    uploadProgram(program);
+                    /* compile the Arduino sketch, unless it was compiled before */
+                    metrics.setPhase("compile");
+                    sendUploadProgress(progress, metrics, true);
+                    /* a cancel while compiling stops the upload before it connects */
+                    CancelToken cancelToken = addCancelToken(metrics.getAddress());
+                    byte[] program = compileProgram(arduinoLoopContent);
+                    if (program == null || cancelToken.isCancelled()) {
+                        removeCancelToken(metrics.getAddress(), cancelToken);
+                        metrics.fail(program == null ? "compiling failed" : "cancelled during compile");
+                        finishUpload(progress, metrics);
+                        return;
+                    }
+                    /* upload the program, connecting to the Arduino when needed */
+                    uploadProgram(program, verifyMode, metrics, progress, cancelToken);
+                    finishUpload(progress, metrics);
                     /* when disconnect after uploading */
                     if (disconnectAfterUpload) {
                         /* disconnect bluetooth */
-                        disconnectBluetooth();
+                        disconnectBluetooth(metrics.getAddress());
                     } else {
-                        webView.sendJavascript("app.querySensorValues()");
+                        webView.sendJavascript("app.startSensorStream()");
                     }
                     /* notify frontend to stop showing activity */
                     //webView.sendJavascript("app.stopShowingActivity()");
                 }
-            }).start();
+            });
             Log.d(TAG, "uplaoding program");
-            callbackContext.success("Uploading program");
+            /* the callback stays open for the progress events */
+            PluginResult result = new PluginResult(PluginResult.Status.OK, "Uploading program");
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+            return true;
+        } else if (action.equals("uploadProgramToFleet")) {
+            /* check if the compiler is installed */
+            File compiler = new File(EXTERNAL_STORAGE, "sumodroid/compiler");
+            if (!compiler.exists()) {
+                callbackContext.success("Please install the compiler first");
+                return true;
+            }
+            /* upload to the given sumorobots, or to all paired ones */
+            final List<String> addresses = new ArrayList<String>();
+            JSONArray selectedAddresses = args.optJSONArray(1);
+            if (selectedAddresses != null) {
+                for (int i = 0; i < selectedAddresses.length(); i++) {
+                    addresses.add(selectedAddresses.getString(i));
+                }
+            } else {
+                for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
+                    addresses.add(device.getAddress());
+                }
+            }
+            if (addresses.isEmpty()) {
+                callbackContext.success("No sumorobots to upload to");
+                return true;
+            }
+            final String arduinoLoopContent = args.getString(0);
+            final int maxParallel = Math.max(1, args.optInt(2, MAX_PARALLEL_UPLOADS));
+            final String verifyMode = args.optString(3, VERIFY_NONE);
+            final CallbackContext progress = callbackContext;
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    uploadProgramToFleet(arduinoLoopContent, addresses, maxParallel, verifyMode, progress);
+                }
+            });
+            Log.d(TAG, "uploading program to " + addresses.size() + " sumorobots");
+            PluginResult result = new PluginResult(PluginResult.Status.OK, "Uploading program");
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
             return true;
         } else if (action.equals("sendCommands")) {
+            final String address = sumorobotAddress;
             final String commands = args.getString(0);
-            new Thread(new Runnable() {
+            /* sensor queries are coalesced, other commands are all sent */
+            boolean query = commands.equals("p");
+            getScheduler(address).submit(query ? CommandScheduler.PRIORITY_SENSOR : CommandScheduler.PRIORITY_CONTROL,
+                    query ? "query" : null, new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        /* send the commands to the Sumorobot */
-                        bluetoothOutputStream.write(commands.getBytes());
-                        /* receive sensor values from the Sumorobot */
-                        int index = 0;
-                        int[] sensorValues = new int[] {0, 0, 0, 0, 0};
-                        while (true) {
-                            char value = (char) bluetoothInputStream.read();
-                            if (value == '[') {
-                                continue;
-                            } else if (value == ']') {
-                                break;
-                            } else if (value == ',') {
-                                index++;
-                            } else {
-                                sensorValues[index] = Integer.parseInt(String.valueOf(value)) + sensorValues[index] * 10;
-                            }
+                    int[] sensorValues = sendCommands(address, commands);
+                    if (sensorValues == null) {
+                        return;
+                    }
+                    /* the schedulers of different sumorobots run at the same time, so each reply builds its own */
+                    StringBuilder sensorJavascript = new StringBuilder(64);
+                    sensorJavascript.append("app.receiveSensorValues([");
+                    for (int i = 0; i < sensorValues.length; i++) {
+                        if (i > 0) {
+                            sensorJavascript.append(',');
                         }
-                        Log.d(TAG, "received sensor values from sumorobot: " + Arrays.toString(sensorValues));
-                        webView.sendJavascript("app.receiveSensorValues(" + Arrays.toString(sensorValues) + ")");
-                    } catch (Exception e) {
-                        Log.d(TAG, "sending commands error: " + e.getMessage());
+                        sensorJavascript.append(sensorValues[i]);
                     }
+                    sensorJavascript.append("])");
+                    webView.sendJavascript(sensorJavascript.toString());
                 }
-            }).start();
+            });
             Log.d(TAG, "sending commands to sumorobot");
             callbackContext.success();
             return true;
-        } else if (action.equals("cancelUploadingProgram")) {
-            new Thread(new Runnable() {
+        } else if (action.equals("sendCommandBatch")) {
+            final String address = sumorobotAddress;
+            /* the steps are [delay in ms, commands] pairs */
+            JSONArray steps = args.getJSONArray(0);
+            final int[] delays = new int[steps.length()];
+            final String[] commands = new String[steps.length()];
+            for (int i = 0; i < steps.length(); i++) {
+                JSONArray step = steps.getJSONArray(i);
+                delays[i] = Math.max(0, Math.min(CommandBatch.MAX_DELAY, step.getInt(0)));
+                commands[i] = step.getString(1);
+            }
+            final CallbackContext batchCallback = callbackContext;
+            getScheduler(address).submit(CommandScheduler.PRIORITY_CONTROL, null, new CommandScheduler.CancellableTask() {
+                @Override
+                public void run() {
+                    sendCommandBatch(address, delays, commands, batchCallback);
+                }
+
+                @Override
+                public void cancelled() {
+                    batchCallback.error("Sending the commands was cancelled");
+                }
+            });
+            Log.d(TAG, "sending " + commands.length + " commands to sumorobot");
+            return true;
+        } else if (action.equals("startSensorStream")) {
+            final int rate = Math.max(1, Math.min(MAX_SENSOR_RATE, args.getInt(0)));
+            final CallbackContext streamCallback = callbackContext;
+            /* replacing the callback stops the previous stream */
+            sensorStreamCallback = streamCallback;
+            cordova.getThreadPool().execute(new Runnable() {
                 @Override
                 public void run() {
-                    /* disconnect bluetooth */
-                    disconnectBluetooth();
+                    streamSensorValues(streamCallback, rate);
+                }
+            });
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+            return true;
+        } else if (action.equals("stopSensorStream")) {
+            sensorStreamCallback = null;
+            callbackContext.success();
+            return true;
+        } else if (action.equals("getSchedulerStats")) {
+            CommandScheduler scheduler = getScheduler(sumorobotAddress);
+            JSONObject stats = new JSONObject();
+            stats.put("depth", scheduler.getDepth());
+            stats.put("maxDepth", scheduler.getMaxDepth());
+            stats.put("completed", scheduler.getCompleted());
+            stats.put("coalesced", scheduler.getCoalesced());
+            stats.put("cancelled", scheduler.getCancelled());
+            stats.put("averageWait", scheduler.getAverageWait());
+            stats.put("maxWait", scheduler.getMaxWait());
+            stats.put("averageRun", scheduler.getAverageRun());
+            callbackContext.success(stats);
+            return true;
+        } else if (action.equals("getBridgeStats")) {
+            /* how well the sensor stream and progress events are batched on the way to the frontend */
+            NativeToJsMessageQueue queue = webView.getJsMessageQueue();
+            JSONObject stats = new JSONObject();
+            stats.put("depth", queue.getQueueDepth());
+            stats.put("maxDepth", queue.getMaxQueueDepth());
+            stats.put("messages", queue.getEnqueuedCount());
+            stats.put("notifications", queue.getBridgeNotificationCount());
+            stats.put("flushes", queue.getFlushCount());
+            stats.put("averageFlushLatency", queue.getAverageFlushLatencyMicros());
+            stats.put("maxFlushLatency", queue.getMaxFlushLatencyMicros());
+            JSONArray flushSizes = new JSONArray();
+            for (int count : queue.getFlushSizeHistogram()) {
+                flushSizes.put(count);
+            }
+            stats.put("flushSizes", flushSizes);
+            callbackContext.success(stats);
+            return true;
+        } else if (action.equals("getExecStats")) {
+            /* how long every action waited and ran, by plugin and action */
+            callbackContext.success(webView.pluginManager.getExecStats());
+            return true;
+        } else if (action.equals("getStartupTrace")) {
+            /* how long creating and initializing every plugin took */
+            callbackContext.success(webView.pluginManager.getStartupTrace());
+            return true;
+        } else if (action.equals("getSensorRecording")) {
+            /* the samples since the given time, averaged down for a chart */
+            long since = args.optLong(0, 0);
+            int maxPoints = Math.max(1, Math.min(MAX_RECORDING_POINTS, args.optInt(1, MAX_RECORDING_POINTS)));
+            long[] pointTimes = new long[maxPoints];
+            int[] pointValues = new int[maxPoints * SensorTelemetry.SENSOR_COUNT];
+            int points = sensorRecorder.query(since, maxPoints, pointTimes, pointValues);
+            JSONArray samples = new JSONArray();
+            for (int i = 0; i < points; i++) {
+                JSONArray sample = new JSONArray();
+                sample.put(pointTimes[i]);
+                for (int j = 0; j < SensorTelemetry.SENSOR_COUNT; j++) {
+                    sample.put(pointValues[i * SensorTelemetry.SENSOR_COUNT + j]);
                 }
-            }).start();
+                samples.put(sample);
+            }
+            JSONObject recording = new JSONObject();
+            recording.put("time", sensorRecorder.getTime());
+            recording.put("count", sensorRecorder.getCount());
+            recording.put("dropped", sensorRecorder.getDropped());
+            recording.put("samples", samples);
+            callbackContext.success(recording);
+            return true;
+        } else if (action.equals("exportSensorRecording")) {
+            /* runs on the serial exec lane, see config.xml */
+            String format = args.optString(0, SensorRecorder.FORMAT_CSV);
+            String extension = format.equals(SensorRecorder.FORMAT_BINARY) ? ".bin" : ".csv";
+            File file = new File(EXTERNAL_STORAGE, "sumodroid/recordings/sensors-" + System.currentTimeMillis() + extension);
+            try {
+                int written = sensorRecorder.export(file, format);
+                Log.d(TAG, "exported " + written + " sensor samples to " + file);
+                /* the file plugin can open the url */
+                JSONObject export = new JSONObject();
+                export.put("url", "file://" + file.getAbsolutePath());
+                export.put("samples", written);
+                callbackContext.success(export);
+            } catch (Exception e) {
+                Log.d(TAG, "exporting sensor recording error: " + e.getMessage());
+                callbackContext.error("Exporting the sensor recording failed");
+            }
+            return true;
+        } else if (action.equals("clearSensorRecording")) {
+            sensorRecorder.clear();
+            callbackContext.success();
+            return true;
+        } else if (action.equals("getCompileCacheStats")) {
+            JSONObject stats = new JSONObject();
+            stats.put("hits", compileCache.getHits());
+            stats.put("misses", compileCache.getMisses());
+            stats.put("savedMillis", compileCache.getSavedMillis());
+            callbackContext.success(stats);
+            return true;
+        } else if (action.equals("cancelUploadingProgram")) {
+            /* drop everything still waiting for the sumorobots */
+            int cancelled = 0;
+            synchronized (this) {
+                for (CommandScheduler scheduler : schedulers.values()) {
+                    cancelled += scheduler.cancelQueued(CommandScheduler.PRIORITY_UPLOAD);
+                }
+            }
+            Log.d(TAG, "cancelled " + cancelled + " queued jobs");
+            /* the running uploads stop after the page being written and leave programming mode */
+            synchronized (uploadCancelTokens) {
+                for (CancelToken cancelToken : uploadCancelTokens.values()) {
+                    cancelToken.cancel();
+                }
+            }
             callbackContext.success("Uploading program canceled");
             return true;
         } else if (action.equals("startSumorobotDiscovery")) {
-            /* notify frontend to start showing activity */
-            //webView.sendJavascript("app.startShowingActivity('Discovering sumorobots')");
-            /* start to search for bluetooth devices */
-            startBluetoothDiscovery();
-            callbackContext.success();
+            /* start to search for bluetooth devices, the callback receives the found ones */
+            startBluetoothDiscovery(callbackContext);
             return true;
         } else if (action.equals("selectSumorobot")) {
-            /* when no sumorobots were discovered yet */
-            if (bluetoothDevices.size() == 0) {
-                callbackContext.success("No sumorobots discovered yet");
+            String address = args.getString(0);
+            /* when no sumorobot was given */
+            if (address.equals("")) {
+                callbackContext.success("Please select a sumorobot first");
                 return true;
             }
-            int selectedSumorobotIndex = args.getInt(0);
-            /* get the selected sumorobot's bluetooth address */
-            sumorobotAddress = bluetoothDevices.get(selectedSumorobotIndex).getAddress();
-            Log.d(TAG, "selected sumorobot: " + bluetoothDevices.get(selectedSumorobotIndex).getName());
+            sumorobotAddress = address;
+            Log.d(TAG, "selected sumorobot: " + address);
             callbackContext.success();
             return true;
         } else if (action.equals("extractCompiler")) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    /* notify frontend to start showing activity */
-                    webView.sendJavascript("app.startShowingActivity('Extracting compiler')");
-                    /* extract the compiler */
-                    String external = EXTERNAL_STORAGE.getAbsolutePath();
-                    executeCommand(external + "/sumodroid/busybox tar -xzvf " + external + "/sumodroid/compiler.tar.gz -C " + external + "/sumodroid/");
-                    /* remove the compiler tarball */
-                    executeCommand(external + "/sumodroid/busybox rm " + external + "/sumodroid/compiler.tar.gz");
-                    /* notify frontend to stop showing activity */
-                    webView.sendJavascript("app.stopShowingActivity()");
-                    /* start sumorobot discovery */
-                    webView.sendJavascript("app.startSumorobotDiscovery()");
-                }
-            }).start();
+            /* runs on the thread pool, see config.xml, the callback gets progress events until it is done */
             Log.d(TAG, "extracting compiler");
-            callbackContext.success();
+            extractCompiler(callbackContext);
             return true;
         } else if (action.equals("createFolder")) {
+            /* runs on the serial exec lane, see config.xml */
             final String folderName = args.getString(0);
             /* create a folder on the external storage */
             File folder = new File(EXTERNAL_STORAGE, folderName);
@@ -0,0 +1,124 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.util.Arrays;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+
+/**
+ * This class remembers the flash contents last written to every Sumorobot,
+ * so the next upload only has to write the pages that changed.
+ */
+public class FlashImageStore {
+    private static final String SUFFIX = ".flash";
+    /* what an erased flash byte reads as */
+    private static final byte ERASED = (byte) 0xFF;
+
+    private final File directory;
+
+    public FlashImageStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the flash contents last written to the robot, or null when unknown.
+     */
+    public synchronized byte[] load(String address) {
+        File file = getFile(address);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            byte[] image = new byte[in.readInt()];
+            in.readFully(image);
+            return image;
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                /* nothing to do */
+            }
+        }
+    }
+
+    public synchronized void save(String address, byte[] image) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        File file = getFile(address);
+        File temporary = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeInt(image.length);
+            out.write(image);
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("could not store " + file);
+        }
+    }
+
+    /**
+     * Forgets the robot's flash contents, e.g. before an upload that might fail halfway.
+     */
+    public synchronized void forget(String address) {
+        getFile(address).delete();
+    }
+
+    /**
+     * Lists the pages of the new image that differ from the previous flash contents.
+     * The rest of the last page has to be erased, as writing it would leave it.
+     *
+     * @return how many page numbers were written to the dirty page list
+     */
+    public static int findDirtyPages(byte[] previous, byte[] image, int[] dirtyPages) {
+        int count = 0;
+        int pages = Stk500Programmer.getPageCount(image.length);
+        for (int page = 0; page < pages; page++) {
+            int start = page * Stk500Programmer.PAGE_SIZE;
+            int end = start + Stk500Programmer.PAGE_SIZE;
+            boolean dirty = end > previous.length;
+            for (int i = start; i < end && !dirty; i++) {
+                dirty = previous[i] != (i < image.length ? image[i] : ERASED);
+            }
+            if (dirty) {
+                dirtyPages[count++] = page;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the flash contents after writing the image over the previous contents.
+     */
+    public static byte[] merge(byte[] previous, byte[] image) {
+        /* the page write erases the rest of the last page */
+        int pagesEnd = Stk500Programmer.getPageCount(image.length) * Stk500Programmer.PAGE_SIZE;
+        byte[] merged = new byte[Math.max(pagesEnd, previous == null ? 0 : previous.length)];
+        if (previous != null) {
+            /* the tail of a longer previous program stays in the flash */
+            System.arraycopy(previous, 0, merged, 0, previous.length);
+        }
+        System.arraycopy(image, 0, merged, 0, image.length);
+        Arrays.fill(merged, image.length, pagesEnd, ERASED);
+        return merged;
+    }
+
+    private File getFile(String address) {
+        return new File(directory, address.replace(':', '_') + SUFFIX);
+    }
+}
@@ -0,0 +1,101 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * This class uploads one program to many Sumorobots at the same time,
+ * with at most a given number of uploads running at once.
+ */
+public class FleetUploader {
+    /**
+     * Uploads the program to one robot and finishes its metrics.
+     */
+    public interface Uploader {
+        /**
+         * @return false when the upload was cancelled, which cancels the robots not started yet
+         */
+        boolean upload(String address, UploadMetrics metrics);
+
+        /**
+         * Finishes the metrics of a robot whose upload was cancelled before it started.
+         */
+        void cancelled(String address, UploadMetrics metrics);
+    }
+
+    /**
+     * Runs a job for a robot, e.g. on the robot's command scheduler. The job
+     * is a CommandScheduler.CancellableTask, a dispatcher that drops it has
+     * to call cancelled() instead.
+     */
+    public interface Dispatcher {
+        void dispatch(String address, CommandScheduler.CancellableTask job);
+    }
+
+    private final Dispatcher dispatcher;
+    private final Uploader uploader;
+    private final int maxParallel;
+
+    public FleetUploader(Dispatcher dispatcher, Uploader uploader, int maxParallel) {
+        this.dispatcher = dispatcher;
+        this.uploader = uploader;
+        this.maxParallel = maxParallel;
+    }
+
+    /**
+     * Uploads to every address and waits until all uploads are done. The
+     * robots that were not dispatched yet are cancelled once the token is
+     * cancelled, which also happens when a job was dropped or an upload
+     * was cancelled.
+     *
+     * @return the metrics of every upload, in the order of the addresses
+     */
+    public List<UploadMetrics> run(List<String> addresses, final CancelToken cancelToken) throws InterruptedException {
+        final Semaphore slots = new Semaphore(maxParallel);
+        final CountDownLatch done = new CountDownLatch(addresses.size());
+        List<UploadMetrics> results = new ArrayList<UploadMetrics>();
+        for (final String address : addresses) {
+            final UploadMetrics metrics = new UploadMetrics(address);
+            results.add(metrics);
+            /* wait for a free slot, the bluetooth adapter can only keep a few links busy */
+            slots.acquire();
+            if (cancelToken.isCancelled()) {
+                uploader.cancelled(address, metrics);
+                slots.release();
+                done.countDown();
+                continue;
+            }
+            dispatcher.dispatch(address, new CommandScheduler.CancellableTask() {
+                @Override
+                public void run() {
+                    try {
+                        if (!uploader.upload(address, metrics)) {
+                            cancelToken.cancel();
+                        }
+                    } catch (RuntimeException e) {
+                        metrics.fail(e.toString());
+                        metrics.finish();
+                    } finally {
+                        slots.release();
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    cancelToken.cancel();
+                    try {
+                        uploader.cancelled(address, metrics);
+                    } finally {
+                        slots.release();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        return results;
+    }
+}
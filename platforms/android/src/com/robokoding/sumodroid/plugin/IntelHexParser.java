@@ -0,0 +1,168 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.Arrays;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class decodes Intel HEX files (as written by avr-objcopy) straight
+ * into a flash image.
+ *
+ * The record length is taken from every record and its checksum is checked.
+ * Bytes that no record covers are filled with 0xFF, the erased flash value.
+ * After construction the parser does not allocate, so it can be reused.
+ *
+ * The "hex parse 32 KB" rows of ProtocolBenchmark in bench/ compare it
+ * with the byte at a time decoder readProgram used before, on a full flash
+ * image read from a file.
+ */
+public class IntelHexParser {
+    /* the value of erased flash */
+    public static final byte GAP_FILL = (byte) 0xFF;
+    /* record types */
+    private static final int RECORD_DATA = 0x00;
+    private static final int RECORD_EOF = 0x01;
+    private static final int RECORD_EXTENDED_SEGMENT = 0x02;
+    private static final int RECORD_EXTENDED_LINEAR = 0x04;
+    /* byte count, address (2), type, up to 255 data bytes, checksum */
+    private static final int MAX_RECORD = 1 + 2 + 1 + 255 + 1;
+
+    private final byte[] image;
+    private final byte[] buffer = new byte[4096];
+    private final byte[] record = new byte[MAX_RECORD];
+
+    /**
+     * @param image the flash image to decode into, usually the size of the flash
+     */
+    public IntelHexParser(byte[] image) {
+        this.image = image;
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    /**
+     * Decodes the stream into the image.
+     *
+     * @return the program length, one past the highest address written
+     */
+    public int parse(InputStream inputStream) throws IOException {
+        Arrays.fill(image, GAP_FILL);
+        int length = 0;
+        int line = 1;
+        /* the number of record bytes decoded so far, -1 outside a record */
+        int recordIndex = -1;
+        /* the high nibble of the byte being decoded, -1 when none */
+        int highNibble = -1;
+        /* the address offset set by the extended address records */
+        int baseAddress = 0;
+
+        int read;
+        while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            for (int i = 0; i < read; i++) {
+                int c = buffer[i];
+                if (c == ':') {
+                    if (recordIndex != -1) {
+                        throw new IOException("line " + line + ": unexpected ':'");
+                    }
+                    recordIndex = 0;
+                    highNibble = -1;
+                } else if (c == '\n' || c == '\r') {
+                    if (recordIndex != -1) {
+                        int result = processRecord(recordIndex, highNibble, baseAddress, line);
+                        if (result == -1) {
+                            return length;
+                        }
+                        if (record[3] == RECORD_DATA) {
+                            length = Math.max(length, result);
+                        } else {
+                            baseAddress = result;
+                        }
+                        recordIndex = -1;
+                    }
+                    if (c == '\n') {
+                        line++;
+                    }
+                } else if (recordIndex != -1) {
+                    int nibble = hexValue(c);
+                    if (nibble == -1) {
+                        throw new IOException("line " + line + ": invalid character '" + (char) c + "'");
+                    }
+                    if (highNibble == -1) {
+                        highNibble = nibble;
+                    } else {
+                        if (recordIndex == MAX_RECORD) {
+                            throw new IOException("line " + line + ": record too long");
+                        }
+                        record[recordIndex++] = (byte) ((highNibble << 4) | nibble);
+                        highNibble = -1;
+                    }
+                } else if (c != ' ' && c != '\t') {
+                    throw new IOException("line " + line + ": data outside a record");
+                }
+            }
+        }
+        /* the last record may miss its line ending */
+        if (recordIndex != -1) {
+            int result = processRecord(recordIndex, highNibble, baseAddress, line);
+            if (result != -1 && record[3] == RECORD_DATA) {
+                length = Math.max(length, result);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Validates the record and copies its data into the image.
+     *
+     * @return -1 for the EOF record, the end address for data records,
+     *         otherwise the new base address
+     */
+    private int processRecord(int size, int highNibble, int baseAddress, int line) throws IOException {
+        if (highNibble != -1 || size < 5) {
+            throw new IOException("line " + line + ": truncated record");
+        }
+        int count = record[0] & 0xFF;
+        if (size != count + 5) {
+            throw new IOException("line " + line + ": expected " + count + " data bytes but found " + (size - 5));
+        }
+        int sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += record[i];
+        }
+        if ((sum & 0xFF) != 0) {
+            throw new IOException("line " + line + ": checksum mismatch");
+        }
+        int type = record[3];
+        if (type == RECORD_DATA) {
+            int address = baseAddress + (((record[1] & 0xFF) << 8) | (record[2] & 0xFF));
+            if (address + count > image.length) {
+                throw new IOException("line " + line + ": address 0x" + Integer.toHexString(address) + " outside the flash");
+            }
+            System.arraycopy(record, 4, image, address, count);
+            return address + count;
+        } else if (type == RECORD_EOF) {
+            return -1;
+        } else if ((type == RECORD_EXTENDED_SEGMENT || type == RECORD_EXTENDED_LINEAR) && count != 2) {
+            throw new IOException("line " + line + ": extended address record needs 2 data bytes");
+        } else if (type == RECORD_EXTENDED_SEGMENT) {
+            return (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 4;
+        } else if (type == RECORD_EXTENDED_LINEAR) {
+            return (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 16;
+        }
+        /* start address records do not matter for the flash image */
+        return baseAddress;
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,143 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Properties;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/**
+ * This class remembers how fast the link to every Sumorobot is, so an upload
+ * can start with the settings that worked last time.
+ *
+ * The round trip time and throughput are measured on every upload. The sync
+ * timeout follows the round trip time, so a quick link notices a lost answer
+ * early and a slow one does not give up on a late one. The throughput goes
+ * into the upload reports. Page frames are always sent one at a time, as
+ * optiboot drops bytes that come while it writes a page.
+ */
+public class LinkProfiles {
+    /* the shortest sync timeout, however quick the link */
+    private static final long MIN_SYNC_TIMEOUT = 10;
+
+    /**
+     * What is known about the link to one Sumorobot.
+     */
+    public static class Profile {
+        public final String address;
+        private double rttMillis = 0;
+        private double bytesPerSecond = 0;
+
+        Profile(String address) {
+            this.address = address;
+        }
+
+        public synchronized double getRttMillis() {
+            return rttMillis;
+        }
+
+        public synchronized double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /* a GET_SYNC answer takes a round trip, with room for a slow one */
+        public synchronized long getSyncTimeout() {
+            if (rttMillis == 0) {
+                return Stk500Programmer.DEFAULT_SYNC_TIMEOUT;
+            }
+            return Math.max(MIN_SYNC_TIMEOUT, (long) (rttMillis * 2));
+        }
+
+        /**
+         * Records the round trip time and throughput measured on this connection.
+         */
+        public synchronized void recordProbe(double rttMillis, double bytesPerSecond) {
+            this.rttMillis = rttMillis;
+            if (bytesPerSecond > 0) {
+                this.bytesPerSecond = bytesPerSecond;
+            }
+        }
+    }
+
+    private final File file;
+    private final Map<String, Profile> profiles = new HashMap<String, Profile>();
+    private boolean loaded = false;
+
+    public LinkProfiles(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the robot's profile, a new one when the robot was not seen before.
+     */
+    public synchronized Profile get(String address) {
+        load();
+        Profile profile = profiles.get(address);
+        if (profile == null) {
+            profile = new Profile(address);
+            profiles.put(address, profile);
+        }
+        return profile;
+    }
+
+    public synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        for (Profile profile : profiles.values()) {
+            synchronized (profile) {
+                properties.setProperty(profile.address + ".rtt", String.valueOf(profile.rttMillis));
+                properties.setProperty(profile.address + ".throughput", String.valueOf(profile.bytesPerSecond));
+            }
+        }
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temporary);
+        try {
+            properties.store(out, "sumorobot links");
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("could not store " + file);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            for (String key : properties.stringPropertyNames()) {
+                if (!key.endsWith(".rtt")) {
+                    continue;
+                }
+                String address = key.substring(0, key.length() - ".rtt".length());
+                Profile profile = new Profile(address);
+                profile.rttMillis = Double.parseDouble(properties.getProperty(key));
+                profile.bytesPerSecond = Double.parseDouble(properties.getProperty(address + ".throughput", "0"));
+                profiles.put(address, profile);
+            }
+        } catch (Exception e) {
+            /* start measuring again */
+            profiles.clear();
+        }
+    }
+}
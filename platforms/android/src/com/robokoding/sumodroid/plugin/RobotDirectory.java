@@ -0,0 +1,247 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+
+/**
+ * This class keeps the Sumorobots seen by discovery, one entry per address.
+ *
+ * The robots are remembered with the time they were last seen, so a picker
+ * can be filled before a new scan has found anything. Robots found by the
+ * running scan come first, the strongest signal first, followed by the
+ * remembered ones, the most recently seen first.
+ *
+ * Only devices that can be a Sumorobot are kept: the ones named Sumorobot
+ * and the serial modules, which report no device class. Robots that are not
+ * paired are forgotten when they have not been seen for MAX_AGE, and the
+ * last of them in picker order when there are more than MAX_ROBOTS.
+ */
+public class RobotDirectory {
+    /* the signal strength of a robot that was not found by the running scan */
+    public static final int NO_RSSI = Short.MIN_VALUE;
+    /* the major device classes of the serial modules, see BluetoothClass.Device.Major */
+    public static final int MAJOR_MISC = 0x0000;
+    public static final int MAJOR_UNCATEGORIZED = 0x1F00;
+    /* how many robots are kept at most */
+    public static final int MAX_ROBOTS = 32;
+    /* how long a robot that is not paired is remembered, 30 days */
+    public static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+    private static final String NAME_PREFIX = "sumorobot";
+
+    /**
+     * A robot seen by discovery.
+     */
+    public static class Robot {
+        public final String address;
+        public String name;
+        public int rssi = NO_RSSI;
+        public long lastSeen;
+        public boolean bonded;
+        /* whether the running scan has found the robot */
+        public boolean inRange = false;
+
+        Robot(String address, String name, long lastSeen, boolean bonded) {
+            this.address = address;
+            this.name = name;
+            this.lastSeen = lastSeen;
+            this.bonded = bonded;
+        }
+    }
+
+    private static final Comparator<Robot> ORDER = new Comparator<Robot>() {
+        @Override
+        public int compare(Robot first, Robot second) {
+            if (first.inRange != second.inRange) {
+                return first.inRange ? -1 : 1;
+            }
+            if (first.rssi != second.rssi) {
+                return second.rssi > first.rssi ? 1 : -1;
+            }
+            return second.lastSeen > first.lastSeen ? 1 : (second.lastSeen < first.lastSeen ? -1 : 0);
+        }
+    };
+
+    private final File file;
+    private final Map<String, Robot> robots = new LinkedHashMap<String, Robot>();
+    private boolean loaded = false;
+
+    public RobotDirectory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns whether a device with the given name and major device class
+     * can be a Sumorobot.
+     */
+    public static boolean isSumorobot(String name, int majorClass) {
+        if (name != null && name.toLowerCase().startsWith(NAME_PREFIX)) {
+            return true;
+        }
+        return majorClass == MAJOR_MISC || majorClass == MAJOR_UNCATEGORIZED;
+    }
+
+    /**
+     * Forgets what the previous scan found, the robots themselves are kept.
+     * The paired robots are added again with addBonded.
+     */
+    public synchronized void startScan() {
+        load();
+        for (Robot robot : robots.values()) {
+            robot.inRange = false;
+            robot.rssi = NO_RSSI;
+            robot.bonded = false;
+        }
+    }
+
+    /**
+     * Records a robot found by the running scan.
+     *
+     * @return true when the robot is new or its name or signal changed
+     */
+    public synchronized boolean found(String address, String name, int rssi, boolean bonded, long now) {
+        load();
+        Robot robot = robots.get(address);
+        if (robot == null) {
+            prune(now, MAX_ROBOTS - 1);
+        }
+        if (robot == null) {
+            robot = new Robot(address, name, now, bonded);
+            robots.put(address, robot);
+        }
+        boolean changed = !robot.inRange || robot.rssi != rssi || (name != null && !name.equals(robot.name));
+        if (name != null) {
+            robot.name = name;
+        }
+        robot.rssi = rssi;
+        robot.lastSeen = now;
+        robot.bonded |= bonded;
+        robot.inRange = true;
+        return changed;
+    }
+
+    /**
+     * Forgets the robots that are not paired and have not been seen since
+     * MAX_AGE, then the last of them in picker order until at most limit are left.
+     */
+    private void prune(long now, int limit) {
+        List<Robot> unpaired = new ArrayList<Robot>();
+        Iterator<Robot> iterator = robots.values().iterator();
+        while (iterator.hasNext()) {
+            Robot robot = iterator.next();
+            if (robot.bonded) {
+                continue;
+            }
+            if (!robot.inRange && now - robot.lastSeen > MAX_AGE) {
+                iterator.remove();
+            } else {
+                unpaired.add(robot);
+            }
+        }
+        Collections.sort(unpaired, ORDER);
+        for (int i = unpaired.size() - 1; i >= 0 && robots.size() > limit; --i) {
+            robots.remove(unpaired.get(i).address);
+        }
+    }
+
+    /**
+     * Adds a paired robot, without marking it as found.
+     */
+    public synchronized void addBonded(String address, String name) {
+        load();
+        Robot robot = robots.get(address);
+        if (robot == null) {
+            robots.put(address, new Robot(address, name, 0, true));
+        } else {
+            robot.bonded = true;
+            if (name != null) {
+                robot.name = name;
+            }
+        }
+    }
+
+    public synchronized Robot get(String address) {
+        load();
+        return robots.get(address);
+    }
+
+    /**
+     * Returns copies of the robots in picker order.
+     */
+    public synchronized List<Robot> getRobots() {
+        load();
+        List<Robot> list = new ArrayList<Robot>();
+        for (Robot robot : robots.values()) {
+            Robot copy = new Robot(robot.address, robot.name, robot.lastSeen, robot.bonded);
+            copy.rssi = robot.rssi;
+            copy.inRange = robot.inRange;
+            list.add(copy);
+        }
+        Collections.sort(list, ORDER);
+        return list;
+    }
+
+    public synchronized void save() throws IOException {
+        load();
+        prune(System.currentTimeMillis(), MAX_ROBOTS);
+        File temporary = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+        try {
+            for (Robot robot : robots.values()) {
+                String name = robot.name == null ? "" : robot.name.replace('\t', ' ').replace('\n', ' ');
+                writer.write(robot.address + "\t" + robot.lastSeen + "\t" + (robot.bonded ? 1 : 0) + "\t" + name + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("could not store " + file);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    robots.put(fields[0], new Robot(fields[0], fields[3].length() == 0 ? null : fields[3],
+                            Long.parseLong(fields[1]), fields[2].equals("1")));
+                }
+            }
+        } catch (Exception e) {
+            /* a damaged cache is only a slower picker */
+            robots.clear();
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                /* nothing to do */
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * This class owns the connection to one Sumorobot.
+ *
+ * The connection is opened lazily by the first lease and then kept open.
+ * Only one lease can hold the streams at a time. When a lease reports a
+ * failure the connection is dropped and reopened in the background, waiting
+ * longer after every failed attempt.
+ */
+public class RobotSession {
+    /* reconnect backoff limits */
+    private static final long MIN_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30000;
+
+    private final String address;
+    private final RobotTransport transport;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    /* whether the session should stay connected */
+    private volatile boolean wanted = false;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private long backoff = MIN_BACKOFF;
+    private boolean reconnectScheduled = false;
+    private int connectCount = 0;
+    /* what the program on the robot agreed to on this connection, only used by the lease holder */
+    private CommandBatch commandBatch = null;
+    private SensorTelemetry sensorTelemetry = null;
+
+    /**
+     * A handle to the streams, valid until it is released.
+     */
+    public class Lease {
+        private boolean released = false;
+
+        public InputStream getInputStream() throws IOException {
+            return transport.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return transport.getOutputStream();
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /* the command batching negotiated on this connection, null when not negotiated yet */
+        public CommandBatch getCommandBatch() {
+            return commandBatch;
+        }
+
+        public void setCommandBatch(CommandBatch commandBatch) {
+            RobotSession.this.commandBatch = commandBatch;
+        }
+
+        /* the sensor reply format negotiated on this connection, null when not negotiated yet */
+        public SensorTelemetry getSensorTelemetry() {
+            return sensorTelemetry;
+        }
+
+        public void setSensorTelemetry(SensorTelemetry sensorTelemetry) {
+            RobotSession.this.sensorTelemetry = sensorTelemetry;
+        }
+
+        /**
+         * Forgets what was negotiated, e.g. after the robot was reprogrammed.
+         */
+        public void resetNegotiation() {
+            commandBatch = null;
+            sensorTelemetry = null;
+        }
+
+        /**
+         * Drops the connection after an I/O error and starts reconnecting.
+         */
+        public void fail() {
+            transport.close();
+            scheduleReconnect();
+        }
+
+        public void release() {
+            if (!released) {
+                released = true;
+                lastUsed = System.currentTimeMillis();
+                lock.unlock();
+            }
+        }
+    }
+
+    RobotSession(String address, RobotTransport transport, ScheduledExecutorService scheduler) {
+        this.address = address;
+        this.transport = transport;
+        this.scheduler = scheduler;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public boolean isConnected() {
+        return transport.isConnected();
+    }
+
+    /* how many times the transport was connected */
+    public synchronized int getConnectCount() {
+        return connectCount;
+    }
+
+    /**
+     * Waits for the streams and connects when needed.
+     */
+    public Lease acquire(long timeoutMillis) throws IOException, InterruptedException {
+        if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new IOException("timed out waiting for " + address);
+        }
+        try {
+            wanted = true;
+            if (!transport.isConnected()) {
+                connect();
+            }
+        } catch (IOException e) {
+            lock.unlock();
+            scheduleReconnect();
+            throw e;
+        }
+        return new Lease();
+    }
+
+    /**
+     * Drops the current connection and opens a new one.
+     */
+    public void reconnect() throws IOException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            wanted = true;
+            transport.close();
+            connect();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection and stops reconnecting. This does not wait for
+     * the current lease, so it also aborts a blocked read or write.
+     */
+    public void close() {
+        wanted = false;
+        transport.close();
+    }
+
+    private void connect() throws IOException {
+        transport.connect();
+        /* the new streams need a new negotiation */
+        commandBatch = null;
+        sensorTelemetry = null;
+        synchronized (this) {
+            connectCount++;
+            backoff = MIN_BACKOFF;
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (!wanted || reconnectScheduled) {
+            return;
+        }
+        reconnectScheduled = true;
+        long delay = backoff;
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RobotSession.this) {
+                    reconnectScheduled = false;
+                }
+                /* a lease holder will connect by itself */
+                if (!wanted || !lock.tryLock()) {
+                    return;
+                }
+                try {
+                    if (!transport.isConnected()) {
+                        connect();
+                    }
+                } catch (IOException e) {
+                    scheduleReconnect();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks an idle connection, called periodically by the session manager.
+     */
+    void keepAlive(long idleMillis) {
+        if (!wanted || System.currentTimeMillis() - lastUsed < idleMillis || !lock.tryLock()) {
+            return;
+        }
+        try {
+            if (transport.isConnected()) {
+                /* a dead RFCOMM socket fails on available() */
+                transport.getInputStream().available();
+            } else {
+                scheduleReconnect();
+            }
+            lastUsed = System.currentTimeMillis();
+        } catch (IOException e) {
+            transport.close();
+            scheduleReconnect();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * This class keeps one session per Sumorobot address and checks the idle
+ * ones in the background.
+ */
+public class RobotSessionManager {
+    /* how often and after how much idle time connections are checked */
+    private static final long KEEP_ALIVE_INTERVAL = 10000;
+
+    private final RobotTransport.Factory transportFactory;
+    private final Map<String, RobotSession> sessions = new HashMap<String, RobotSession>();
+    private final ScheduledExecutorService scheduler;
+
+    public RobotSessionManager(RobotTransport.Factory transportFactory) {
+        this.transportFactory = transportFactory;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "robot-sessions");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (RobotSession session : snapshot()) {
+                    session.keepAlive(KEEP_ALIVE_INTERVAL);
+                }
+            }
+        }, KEEP_ALIVE_INTERVAL, KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the session for the address, creating it when needed.
+     * No connection is made until the session is first acquired.
+     */
+    public synchronized RobotSession getSession(String address) {
+        RobotSession session = sessions.get(address);
+        if (session == null) {
+            session = new RobotSession(address, transportFactory.create(address), scheduler);
+            sessions.put(address, session);
+        }
+        return session;
+    }
+
+    public synchronized void closeSession(String address) {
+        RobotSession session = sessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Closes every session and stops the background checks.
+     */
+    public void shutdown() {
+        for (RobotSession session : snapshot()) {
+            session.close();
+        }
+        synchronized (this) {
+            sessions.clear();
+        }
+        scheduler.shutdownNow();
+    }
+
+    private synchronized RobotSession[] snapshot() {
+        return sessions.values().toArray(new RobotSession[sessions.size()]);
+    }
+}
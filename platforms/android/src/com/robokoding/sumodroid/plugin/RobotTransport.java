@@ -0,0 +1,29 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a single Sumorobot.
+ */
+public interface RobotTransport {
+    /**
+     * Creates transports for robot addresses.
+     */
+    interface Factory {
+        RobotTransport create(String address);
+    }
+
+    /* blocks until the connection is up */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    boolean isConnected();
+
+    /* closes the connection, never throws */
+    void close();
+}
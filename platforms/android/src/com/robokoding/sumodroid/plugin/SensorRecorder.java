@@ -0,0 +1,243 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.DataOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedOutputStream;
+
+/**
+ * This class records the Sumorobot's sensor values, so a match can be looked
+ * at afterwards. The samples go into preallocated arrays, when they are full
+ * the oldest samples are overwritten.
+ *
+ * Every sample gets the milliseconds since the recorder was created, from
+ * System.nanoTime, so the times do not jump when the clock is set. The
+ * recording can be exported as CSV or in a compact binary format:
+ *
+ *     "SUMO" | version | sensor count | start time (ms since 1970) | sample count
+ *     sample count times: time (ms) | sensor count values (uint16)
+ *
+ * where every field is big endian, the version and sensor count are bytes,
+ * the start time is a long and the rest are ints.
+ */
+public class SensorRecorder {
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_BINARY = "binary";
+    private static final byte[] MAGIC = {'S', 'U', 'M', 'O'};
+    private static final int VERSION = 1;
+    /* how many samples are copied at a time while exporting */
+    private static final int EXPORT_CHUNK = 256;
+    /* where the sample count is in the binary format */
+    private static final int COUNT_OFFSET = 14;
+
+    private final int capacity;
+    private final int sensorCount;
+    private final long[] times;
+    private final int[] values;
+    private final long startNanos = System.nanoTime();
+    private final long startTime = System.currentTimeMillis();
+    /* how many samples were ever recorded, the newest is at (recorded - 1) % capacity */
+    private long recorded = 0;
+    /* where the recording starts after a clear */
+    private long first = 0;
+
+    public SensorRecorder(int capacity, int sensorCount) {
+        this.capacity = capacity;
+        this.sensorCount = sensorCount;
+        this.times = new long[capacity];
+        this.values = new int[capacity * sensorCount];
+    }
+
+    public synchronized void record(int[] sample) {
+        int index = (int) (recorded % capacity);
+        times[index] = (System.nanoTime() - startNanos) / 1000000;
+        System.arraycopy(sample, 0, values, index * sensorCount, sensorCount);
+        recorded++;
+    }
+
+    public synchronized void clear() {
+        first = recorded;
+    }
+
+    /* how many samples are in the recording */
+    public synchronized int getCount() {
+        return (int) (recorded - getOldest());
+    }
+
+    /* how many samples were overwritten because the recording was full */
+    public synchronized long getDropped() {
+        return getOldest() - first;
+    }
+
+    /* milliseconds since the recorder was created, the time base of the samples */
+    public long getTime() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Averages the samples recorded from the given time on down to at most
+     * maxPoints points, e.g. for drawing a chart.
+     *
+     * @param since the time of the oldest sample to include
+     * @param pointTimes receives the time of every point's first sample
+     * @param pointValues receives sensorCount values per point
+     * @return how many points were written
+     */
+    public synchronized int query(long since, int maxPoints, long[] pointTimes, int[] pointValues) {
+        long start = findFirst(since);
+        long count = recorded - start;
+        if (count == 0 || maxPoints < 1) {
+            return 0;
+        }
+        /* the number of samples per point, rounded up */
+        long bucket = (count + maxPoints - 1) / maxPoints;
+        int points = 0;
+        long[] sums = new long[sensorCount];
+        for (long sample = start; sample < recorded; sample += bucket) {
+            long end = Math.min(sample + bucket, recorded);
+            for (int i = 0; i < sensorCount; i++) {
+                sums[i] = 0;
+            }
+            for (long j = sample; j < end; j++) {
+                int offset = (int) (j % capacity) * sensorCount;
+                for (int i = 0; i < sensorCount; i++) {
+                    sums[i] += values[offset + i];
+                }
+            }
+            pointTimes[points] = times[(int) (sample % capacity)];
+            for (int i = 0; i < sensorCount; i++) {
+                pointValues[points * sensorCount + i] = (int) (sums[i] / (end - sample));
+            }
+            points++;
+        }
+        return points;
+    }
+
+    /**
+     * Writes the recording to the file. Samples are copied out in chunks, so
+     * recording goes on while the file is written. Samples overwritten in the
+     * meantime are left out.
+     *
+     * @return how many samples were written
+     */
+    public int export(File file, String format) throws IOException {
+        boolean binary = format.equals(FORMAT_BINARY);
+        if (!binary && !format.equals(FORMAT_CSV)) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        long next;
+        long end;
+        synchronized (this) {
+            next = getOldest();
+            end = recorded;
+        }
+        int header = (int) (end - next);
+        long[] chunkTimes = new long[EXPORT_CHUNK];
+        int[] chunkValues = new int[EXPORT_CHUNK * sensorCount];
+        int written = 0;
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary));
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            Writer writer = new OutputStreamWriter(out, "US-ASCII");
+            StringBuilder line = new StringBuilder();
+            if (binary) {
+                data.write(MAGIC);
+                data.writeByte(VERSION);
+                data.writeByte(sensorCount);
+                data.writeLong(startTime);
+                /* corrected at the end when samples are overwritten while exporting */
+                data.writeInt(header);
+            } else {
+                writer.write("time");
+                for (int i = 0; i < sensorCount; i++) {
+                    writer.write(",sensor" + i);
+                }
+                writer.write('\n');
+            }
+            while (next < end) {
+                int count;
+                synchronized (this) {
+                    /* skip what was overwritten since the last chunk */
+                    next = Math.max(next, getOldest());
+                    count = (int) Math.max(0, Math.min(EXPORT_CHUNK, end - next));
+                    for (int j = 0; j < count; j++) {
+                        int index = (int) ((next + j) % capacity);
+                        chunkTimes[j] = times[index];
+                        System.arraycopy(values, index * sensorCount, chunkValues, j * sensorCount, sensorCount);
+                    }
+                }
+                for (int j = 0; j < count; j++) {
+                    if (binary) {
+                        data.writeInt((int) chunkTimes[j]);
+                        for (int i = 0; i < sensorCount; i++) {
+                            data.writeShort(chunkValues[j * sensorCount + i]);
+                        }
+                    } else {
+                        line.setLength(0);
+                        line.append(chunkTimes[j]);
+                        for (int i = 0; i < sensorCount; i++) {
+                            line.append(',').append(chunkValues[j * sensorCount + i]);
+                        }
+                        line.append('\n');
+                        writer.write(line.toString());
+                    }
+                }
+                if (count == 0) {
+                    /* the recording was cleared */
+                    break;
+                }
+                next += count;
+                written += count;
+            }
+            writer.flush();
+            data.flush();
+        } finally {
+            out.close();
+        }
+        if (binary && written != header) {
+            /* correct the sample count */
+            RandomAccessFile random = new RandomAccessFile(temporary, "rw");
+            try {
+                random.seek(COUNT_OFFSET);
+                random.writeInt(written);
+            } finally {
+                random.close();
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("could not store " + file);
+        }
+        return written;
+    }
+
+    /* the sequence number of the oldest sample still in the arrays */
+    private long getOldest() {
+        return Math.max(first, recorded - capacity);
+    }
+
+    /* the sequence number of the first sample at or after the given time */
+    private long findFirst(long since) {
+        long low = getOldest();
+        long high = recorded;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (times[(int) (middle % capacity)] < since) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
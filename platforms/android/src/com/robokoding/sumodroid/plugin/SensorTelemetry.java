@@ -0,0 +1,165 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class reads the Sumorobot's sensor replies.
+ *
+ * By default the Sumorobot answers a sensor query with ASCII text like
+ * "[12,34,567,890,12]". Firmware that understands the BINARY_REQUEST
+ * command switches to binary frames instead:
+ *
+ *     0xA5 | length | length bytes of little endian uint16 fields | CRC-8
+ *
+ * where the CRC-8 (polynomial 0x07) covers the length and the fields.
+ * The robot confirms the switch with an empty frame. Reading a reply
+ * does not allocate in either format.
+ */
+public class SensorTelemetry {
+    /* enemy left, enemy right, line left, line middle, line right */
+    public static final int SENSOR_COUNT = 5;
+    public static final int FRAME_SYNC = 0xA5;
+    /* asks the robot to answer with binary frames */
+    public static final int BINARY_REQUEST = 'B';
+    /* how long to wait for the robot to confirm binary frames */
+    private static final long NEGOTIATION_TIMEOUT = 300;
+    /* the ASCII reply can not be longer than this */
+    private static final int MAX_ASCII_LENGTH = 64;
+
+    private final int[] values = new int[SENSOR_COUNT];
+    private final byte[] payload = new byte[255];
+    private boolean binary = false;
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Falls back to ASCII replies, e.g. when the robot was reprogrammed.
+     */
+    public void reset() {
+        binary = false;
+    }
+
+    /**
+     * Asks the robot for binary frames and waits for the confirmation.
+     * Robots that do not answer keep using ASCII.
+     *
+     * @return whether binary frames were agreed on
+     */
+    public boolean negotiate(InputStream inputStream, OutputStream outputStream) throws IOException, InterruptedException {
+        binary = false;
+        /* drop anything left over from before */
+        while (inputStream.available() > 0) {
+            inputStream.read();
+        }
+        outputStream.write(BINARY_REQUEST);
+        outputStream.flush();
+        long deadline = System.currentTimeMillis() + NEGOTIATION_TIMEOUT;
+        while (inputStream.available() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        if (inputStream.available() >= 3 && inputStream.read() == FRAME_SYNC) {
+            int length = inputStream.read();
+            int crc = inputStream.read();
+            binary = length == 0 && crc == crc8(payload, 0, 0, crc8(length));
+        }
+        /* drop the confirmation or whatever else came */
+        while (inputStream.available() > 0) {
+            inputStream.read();
+        }
+        return binary;
+    }
+
+    /**
+     * Reads one sensor reply in the agreed format.
+     *
+     * @return the sensor values, the array is reused by the next read
+     */
+    public int[] read(InputStream inputStream) throws IOException {
+        if (binary) {
+            readFrame(inputStream);
+        } else {
+            readAscii(inputStream);
+        }
+        return values;
+    }
+
+    public int[] getValues() {
+        return values;
+    }
+
+    private void readFrame(InputStream inputStream) throws IOException {
+        while (true) {
+            /* find the start of the frame */
+            while (readByte(inputStream) != FRAME_SYNC) {
+                /* skip */
+            }
+            int length = readByte(inputStream);
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) readByte(inputStream);
+            }
+            int crc = readByte(inputStream);
+            /* resynchronize on a corrupted frame */
+            if (crc != crc8(payload, 0, length, crc8(length))) {
+                continue;
+            }
+            for (int i = 0; i < SENSOR_COUNT; i++) {
+                int offset = i * 2;
+                values[i] = offset + 1 < length ? (payload[offset] & 0xFF) | ((payload[offset + 1] & 0xFF) << 8) : 0;
+            }
+            return;
+        }
+    }
+
+    private void readAscii(InputStream inputStream) throws IOException {
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            values[i] = 0;
+        }
+        int index = 0;
+        int count = 0;
+        while (true) {
+            int value = readByte(inputStream);
+            if (value == '[') {
+                continue;
+            } else if (value == ']') {
+                return;
+            } else if (value == ',') {
+                index++;
+            } else if (value >= '0' && value <= '9' && index < SENSOR_COUNT) {
+                values[index] = values[index] * 10 + (value - '0');
+            }
+            if (++count > MAX_ASCII_LENGTH) {
+                throw new IOException("sensor reply too long");
+            }
+        }
+    }
+
+    private static int readByte(InputStream inputStream) throws IOException {
+        int value = inputStream.read();
+        if (value == -1) {
+            throw new IOException("connection closed");
+        }
+        return value;
+    }
+
+    private static int crc8(int value) {
+        int crc = value & 0xFF;
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Continues a CRC-8 (polynomial 0x07) over the given bytes.
+     */
+    public static int crc8(byte[] data, int offset, int length, int crc) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = crc8(crc ^ (data[i] & 0xFF));
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,72 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * This class writes source files made of a fixed header, the user's code and
+ * a fixed footer. The fixed parts are encoded to UTF-8 once, every write only
+ * encodes the user's code and goes through a buffered stream. The template
+ * is not compiled ahead, the compiler still gets the whole source.
+ */
+public class SketchTemplate {
+    private static final String CHARSET = "UTF-8";
+
+    private final String header;
+    private final String footer;
+    private final byte[] headerBytes;
+    private final byte[] footerBytes;
+    private final int headerLines;
+
+    public SketchTemplate(String header, String footer) {
+        this.header = header;
+        this.footer = footer;
+        this.headerBytes = encode(header);
+        this.footerBytes = encode(footer);
+        int lines = 0;
+        for (int i = 0; i < header.length(); i++) {
+            if (header.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        this.headerLines = lines;
+    }
+
+    /**
+     * Returns the whole source, e.g. for identifying it in the compile cache.
+     */
+    public String getSource(String code) {
+        return header + code + footer;
+    }
+
+    /**
+     * Returns how many lines come before the user's code, for mapping compiler
+     * diagnostics back to the user's lines.
+     */
+    public int getHeaderLines() {
+        return headerLines;
+    }
+
+    public void write(File file, String code) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(headerBytes);
+            out.write(code.getBytes(CHARSET));
+            out.write(footerBytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class flashes a program to the Sumorobot over the STK500v1 protocol
+ * spoken by the optiboot bootloader.
+ *
+ * Every page is sent as one LOAD_ADDRESS + PROG_PAGE frame in a single write,
+ * the acknowledgements are checked by a reader thread and up to a window of
+ * frames can be in flight at the same time.
+ *
+ * Writing pages can be cancelled with a CancelToken. The frames already sent
+ * are acknowledged first, so the bootloader is left in sync and the upload
+ * can later go on from the first page that was not written.
+ */
+public class Stk500Programmer {
+    /* STK500v1 responses */
+    public static final int STK_OK = 0x10;
+    public static final int STK_INSYNC = 0x14;
+    public static final int CRC_EOP = 0x20;
+    /* STK500v1 commands */
+    public static final int STK_GET_SYNC = 0x30;
+    public static final int STK_GET_PARAMETER = 0x41;
+    public static final int STK_ENTER_PROGMODE = 0x50;
+    public static final int STK_LEAVE_PROGMODE = 0x51;
+    public static final int STK_LOAD_ADDRESS = 0x55;
+    public static final int STK_PROG_PAGE = 0x64;
+    public static final int STK_READ_PAGE = 0x74;
+    public static final int STK_READ_SIGN = 0x75;
+    /* STK500v1 parameters */
+    public static final int STK_SW_MAJOR = 0x81;
+    public static final int STK_SW_MINOR = 0x82;
+    /* flash memory type for the page commands */
+    public static final int MEMTYPE_FLASH = 0x46;
+    /* ATmega328P flash size and page size in bytes */
+    public static final int FLASH_SIZE = 32768;
+    public static final int PAGE_SIZE = 128;
+    /* the most optiboot reads back with one READ_PAGE */
+    public static final int MAX_READ = 256;
+    /* optiboot can not buffer a second frame while it writes the flash */
+    public static final int DEFAULT_WINDOW = 1;
+    /* how long to wait for a reply before giving up */
+    private static final long ACK_TIMEOUT = 5000;
+    /* how long to wait for the bootloader to answer the first sync, unless measured */
+    public static final long DEFAULT_SYNC_TIMEOUT = 50;
+
+    /**
+     * Gets told about every acknowledged page, on the reader thread.
+     */
+    public interface PageListener {
+        void onPageWritten(int page, int bytes, long rttNanos);
+    }
+
+    /* receives the replies of pipelined reads, on the reader thread */
+    private interface ReadHandler {
+        void onRead(int index, int offset, byte[] data, int size);
+    }
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private int window = DEFAULT_WINDOW;
+    private PageListener pageListener = null;
+    private long syncTimeout = DEFAULT_SYNC_TIMEOUT;
+    private long syncRtt = 0;
+    private CancelToken cancelToken = null;
+    /* how many entries of the page list the last programPages got acknowledged */
+    private volatile int writtenPages = 0;
+    /* the first error seen by the reader thread */
+    private volatile IOException readerError;
+    /* the first byte address verifyPages found different, -1 when none */
+    private volatile int firstMismatch = -1;
+
+    public Stk500Programmer(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Sets how many page frames may be sent before their acks arrive.
+     */
+    public void setWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        this.window = window;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setPageListener(PageListener pageListener) {
+        this.pageListener = pageListener;
+    }
+
+    /**
+     * Sets the token checked before every page is sent.
+     */
+    public void setCancelToken(CancelToken cancelToken) {
+        this.cancelToken = cancelToken;
+    }
+
+    /**
+     * Returns how many entries of the page list given to programPages were
+     * acknowledged, also when it failed or was cancelled. The pages are
+     * acknowledged in order, so these are the first entries.
+     */
+    public int getWrittenPages() {
+        return writtenPages;
+    }
+
+    /**
+     * Sets how long the first sync attempt waits for an answer, later attempts wait longer.
+     */
+    public void setSyncTimeout(long syncTimeout) {
+        this.syncTimeout = syncTimeout;
+    }
+
+    /**
+     * Returns the round trip time of the answered sync in nanoseconds.
+     */
+    public long getSyncRtt() {
+        return syncRtt;
+    }
+
+    /**
+     * Sends GET_SYNC until the bootloader answers, discarding stale replies.
+     *
+     * @return the number of attempts it took
+     */
+    public int sync(int attempts) throws IOException, InterruptedException {
+        long firstSentAt = System.nanoTime();
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            long sentAt = System.nanoTime();
+            outputStream.write(new byte[] {STK_GET_SYNC, CRC_EOP});
+            outputStream.flush();
+            /* returns as soon as the answer is there instead of always waiting the timeout */
+            long deadline = sentAt + syncTimeout * attempt * 1000000L;
+            int previous = -1;
+            while (System.nanoTime() < deadline) {
+                if (inputStream.available() == 0) {
+                    Thread.sleep(1);
+                    continue;
+                }
+                /* stale replies come before the answer, the answer is the last INSYNC OK pair */
+                int value = inputStream.read();
+                if (previous == STK_INSYNC && value == STK_OK && inputStream.available() == 0) {
+                    long answeredAt = System.nanoTime();
+                    if (attempt == 1) {
+                        syncRtt = answeredAt - sentAt;
+                        return attempt;
+                    }
+                    /* no answer takes longer than this one, so the other attempts are answered by then */
+                    long quietAt = sentAt + (answeredAt - firstSentAt);
+                    Thread.sleep(Math.max(0, (quietAt - System.nanoTime()) / 1000000L + 1));
+                    while (inputStream.available() > 0) {
+                        inputStream.read();
+                    }
+                    /* it is not known which attempt was answered, time one more */
+                    long start = System.nanoTime();
+                    command(STK_GET_SYNC, "sync");
+                    syncRtt = System.nanoTime() - start;
+                    return attempt;
+                }
+                previous = value;
+            }
+        }
+        throw new IOException("no sync after " + attempts + " attempts");
+    }
+
+    /**
+     * Measures how many bytes per second the link carries, by timing a short
+     * and a long READ_PAGE. The difference is the transfer time of the extra
+     * bytes, without the round trip.
+     */
+    public double measureThroughput() throws IOException {
+        byte[] data = new byte[MAX_READ];
+        long start = System.nanoTime();
+        readFlash(0, data, 0, 1);
+        long shortRead = System.nanoTime() - start;
+        start = System.nanoTime();
+        readFlash(0, data, 0, MAX_READ);
+        long longRead = System.nanoTime() - start;
+        if (longRead <= shortRead) {
+            /* too fast to tell */
+            return 0;
+        }
+        return (MAX_READ - 1) * 1000000000.0 / (longRead - shortRead);
+    }
+
+    public int getParameter(int parameter) throws IOException {
+        outputStream.write(new byte[] {STK_GET_PARAMETER, (byte) parameter, CRC_EOP});
+        outputStream.flush();
+        expect(STK_INSYNC, "get parameter");
+        int value = readByte();
+        expect(STK_OK, "get parameter");
+        return value;
+    }
+
+    public void enterProgrammingMode() throws IOException {
+        command(STK_ENTER_PROGMODE, "enter programming mode");
+    }
+
+    public void leaveProgrammingMode() throws IOException {
+        command(STK_LEAVE_PROGMODE, "leave programming mode");
+    }
+
+    public byte[] readSignature() throws IOException {
+        outputStream.write(new byte[] {STK_READ_SIGN, CRC_EOP});
+        outputStream.flush();
+        expect(STK_INSYNC, "read signature");
+        byte[] signature = new byte[3];
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = (byte) readByte();
+        }
+        expect(STK_OK, "read signature");
+        return signature;
+    }
+
+    /**
+     * Writes the first length bytes of the image to the flash, starting from address 0.
+     */
+    public void program(byte[] image, int length) throws IOException, InterruptedException {
+        int[] pages = new int[getPageCount(length)];
+        for (int page = 0; page < pages.length; page++) {
+            pages[page] = page;
+        }
+        programPages(image, length, pages, pages.length);
+    }
+
+    /**
+     * Writes only the listed pages of the image to the flash.
+     *
+     * @param pageList page numbers in ascending order
+     * @param count how many entries of the page list to write
+     */
+    public void programPages(final byte[] image, final int length, final int[] pageList, final int count) throws IOException, InterruptedException {
+        final Semaphore inFlight = new Semaphore(window);
+        /* the reader only waits for the acks of frames that were sent */
+        final Semaphore sent = new Semaphore(0);
+        final AtomicInteger sentCount = new AtomicInteger(count);
+        final PageListener listener = pageListener;
+        /* when every frame was sent, for the round trip times */
+        final AtomicLongArray sentAt = new AtomicLongArray(count);
+        readerError = null;
+        writtenPages = 0;
+
+        /* the reader thread returns a window slot for every acknowledged frame */
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int page = 0; page < count; page++) {
+                        sent.acquireUninterruptibly();
+                        if (page >= sentCount.get()) {
+                            /* cancelled, every frame that was sent is acknowledged */
+                            break;
+                        }
+                        /* LOAD_ADDRESS and PROG_PAGE are both answered with INSYNC OK */
+                        for (int reply = 0; reply < 2; reply++) {
+                            int insync = readByte();
+                            int ok = readByte();
+                            if (insync != STK_INSYNC || ok != STK_OK) {
+                                throw new IOException("not in sync at page address 0x"
+                                        + Integer.toHexString(pageList[page] * PAGE_SIZE));
+                            }
+                        }
+                        if (listener != null) {
+                            int offset = pageList[page] * PAGE_SIZE;
+                            listener.onPageWritten(pageList[page], Math.min(PAGE_SIZE, length - offset), System.nanoTime() - sentAt.get(page));
+                        }
+                        writtenPages = page + 1;
+                        inFlight.release();
+                    }
+                } catch (IOException e) {
+                    readerError = e;
+                    /* wake up the writer */
+                    inFlight.release(count + window);
+                }
+            }
+        }, "stk500-ack-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        byte[] frame = new byte[9 + PAGE_SIZE + 1];
+        boolean cancelled = false;
+        int page = 0;
+        try {
+            for (; page < count; page++) {
+                acquire(inFlight, 1);
+                if (cancelToken != null && cancelToken.isCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+                int offset = pageList[page] * PAGE_SIZE;
+                int size = Math.min(PAGE_SIZE, length - offset);
+                /* the bootloader expects word addresses */
+                int address = offset / 2;
+                frame[0] = STK_LOAD_ADDRESS;
+                frame[1] = (byte) (address & 0xFF);
+                frame[2] = (byte) ((address >> 8) & 0xFF);
+                frame[3] = CRC_EOP;
+                frame[4] = STK_PROG_PAGE;
+                frame[5] = (byte) ((size >> 8) & 0xFF);
+                frame[6] = (byte) (size & 0xFF);
+                frame[7] = MEMTYPE_FLASH;
+                System.arraycopy(image, offset, frame, 8, size);
+                frame[8 + size] = CRC_EOP;
+                sentAt.set(page, System.nanoTime());
+                outputStream.write(frame, 0, 9 + size);
+                outputStream.flush();
+                sent.release();
+            }
+        } finally {
+            if (page < count) {
+                /* stop the reader after the frames that were sent */
+                sentCount.set(page);
+                sent.release();
+            }
+        }
+        /* wait until every frame has been acknowledged, the cancelled loop holds one slot */
+        acquire(inFlight, cancelled ? window - 1 : window);
+        reader.join(ACK_TIMEOUT);
+        if (cancelled) {
+            throw new CancelToken.CancelledException("cancelled after " + writtenPages + " of " + count + " pages");
+        }
+    }
+
+    /**
+     * Reads length bytes (at most 256) of flash from the byte address into the buffer.
+     */
+    public void readFlash(int offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        if (length < 1 || length > MAX_READ) {
+            throw new IllegalArgumentException("can read 1 to 256 bytes at once");
+        }
+        int address = offset / 2;
+        outputStream.write(new byte[] {
+            STK_LOAD_ADDRESS, (byte) (address & 0xFF), (byte) ((address >> 8) & 0xFF), CRC_EOP,
+            STK_READ_PAGE, (byte) ((length >> 8) & 0xFF), (byte) (length & 0xFF), MEMTYPE_FLASH, CRC_EOP
+        });
+        outputStream.flush();
+        expect(STK_INSYNC, "load address");
+        expect(STK_OK, "load address");
+        expect(STK_INSYNC, "read page");
+        for (int i = 0; i < length; i++) {
+            buffer[bufferOffset + i] = (byte) readByte();
+        }
+        expect(STK_OK, "read page");
+    }
+
+    /**
+     * Reads back the listed pages and compares them with the image.
+     *
+     * @param pageList page numbers in ascending order
+     * @param count how many entries of the page list to check
+     * @param badPages receives the numbers of the pages that differ
+     * @return how many pages differ
+     */
+    public int verifyPages(final byte[] image, final int length, final int[] pageList, int count, final int[] badPages) throws IOException, InterruptedException {
+        int[] offsets = new int[count];
+        for (int page = 0; page < count; page++) {
+            offsets[page] = pageList[page] * PAGE_SIZE;
+        }
+        final int[] badCount = new int[1];
+        firstMismatch = -1;
+        readPipelined(offsets, count, PAGE_SIZE, length, new ReadHandler() {
+            @Override
+            public void onRead(int index, int offset, byte[] data, int size) {
+                for (int i = 0; i < size; i++) {
+                    if (data[i] != image[offset + i]) {
+                        if (firstMismatch == -1) {
+                            firstMismatch = offset + i;
+                        }
+                        badPages[badCount[0]++] = pageList[index];
+                        break;
+                    }
+                }
+            }
+        });
+        return badCount[0];
+    }
+
+    /**
+     * Returns the first byte address the last verifyPages found different, -1 when none.
+     */
+    public int getFirstMismatch() {
+        return firstMismatch;
+    }
+
+    /**
+     * Checks the listed pages by a CRC-32 of the flash. The pages are read
+     * back in the largest chunks the bootloader allows, so a chunk can also
+     * cover the unlisted page after a listed one, and nothing is compared
+     * byte by byte, which makes this the quick check.
+     *
+     * @param pageList page numbers in ascending order
+     * @param count how many entries of the page list to check
+     * @return whether the flash has the image's bytes in those pages
+     */
+    public boolean checkPagesCrc(byte[] image, int length, int[] pageList, int count) throws IOException, InterruptedException {
+        int[] offsets = new int[count];
+        int chunks = 0;
+        CRC32 expected = new CRC32();
+        for (int page = 0; page < count; page++) {
+            int offset = pageList[page] * PAGE_SIZE;
+            if (chunks > 0 && offset < offsets[chunks - 1] + MAX_READ) {
+                continue;
+            }
+            offsets[chunks++] = offset;
+            expected.update(image, offset, Math.min(MAX_READ, length - offset));
+        }
+        final CRC32 crc = new CRC32();
+        /* the replies arrive in order, so the checksum can be updated as they come */
+        readPipelined(offsets, chunks, MAX_READ, length, new ReadHandler() {
+            @Override
+            public void onRead(int index, int offset, byte[] data, int size) {
+                crc.update(data, 0, size);
+            }
+        });
+        return crc.getValue() == expected.getValue();
+    }
+
+    /* sends LOAD_ADDRESS + READ_PAGE frames for the offsets, up to a window at a time */
+    private void readPipelined(final int[] offsets, final int count, final int chunkSize, final int length,
+            final ReadHandler handler) throws IOException, InterruptedException {
+        final Semaphore inFlight = new Semaphore(window);
+        readerError = null;
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = new byte[chunkSize];
+                try {
+                    for (int index = 0; index < count; index++) {
+                        int size = Math.min(chunkSize, length - offsets[index]);
+                        if (readByte() != STK_INSYNC || readByte() != STK_OK || readByte() != STK_INSYNC) {
+                            throw new IOException("not in sync reading address 0x" + Integer.toHexString(offsets[index]));
+                        }
+                        for (int i = 0; i < size; i++) {
+                            data[i] = (byte) readByte();
+                        }
+                        if (readByte() != STK_OK) {
+                            throw new IOException("not in sync reading address 0x" + Integer.toHexString(offsets[index]));
+                        }
+                        handler.onRead(index, offsets[index], data, size);
+                        inFlight.release();
+                    }
+                } catch (IOException e) {
+                    readerError = e;
+                    /* wake up the writer */
+                    inFlight.release(count + window);
+                }
+            }
+        }, "stk500-read-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        byte[] frame = new byte[9];
+        for (int index = 0; index < count; index++) {
+            acquire(inFlight, 1);
+            int size = Math.min(chunkSize, length - offsets[index]);
+            int address = offsets[index] / 2;
+            frame[0] = STK_LOAD_ADDRESS;
+            frame[1] = (byte) (address & 0xFF);
+            frame[2] = (byte) ((address >> 8) & 0xFF);
+            frame[3] = CRC_EOP;
+            frame[4] = STK_READ_PAGE;
+            frame[5] = (byte) ((size >> 8) & 0xFF);
+            frame[6] = (byte) (size & 0xFF);
+            frame[7] = MEMTYPE_FLASH;
+            frame[8] = CRC_EOP;
+            outputStream.write(frame);
+            outputStream.flush();
+        }
+        /* wait until every reply has been read */
+        acquire(inFlight, window);
+        reader.join(ACK_TIMEOUT);
+    }
+
+    public static int getPageCount(int length) {
+        return (length + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    private void acquire(Semaphore inFlight, int permits) throws IOException, InterruptedException {
+        if (!inFlight.tryAcquire(permits, ACK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new IOException("timed out waiting for the bootloader");
+        }
+        if (readerError != null) {
+            throw readerError;
+        }
+    }
+
+    private void command(int command, String name) throws IOException {
+        outputStream.write(new byte[] {(byte) command, CRC_EOP});
+        outputStream.flush();
+        expect(STK_INSYNC, name);
+        expect(STK_OK, name);
+    }
+
+    private void expect(int expected, String name) throws IOException {
+        int value = readByte();
+        if (value != expected) {
+            throw new IOException(name + ": expected 0x" + Integer.toHexString(expected)
+                    + " but received 0x" + Integer.toHexString(value));
+        }
+    }
+
+    private int readByte() throws IOException {
+        int value = inputStream.read();
+        if (value == -1) {
+            throw new IOException("connection closed");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,477 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedInputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class extracts a tar.gz archive into a directory.
+ *
+ * The entries are extracted into a staging directory first and moved into
+ * place only when the whole archive was extracted, so a half-extracted
+ * toolchain never looks installed. Every finished entry is recorded in the
+ * staging directory, an interrupted extraction skips writing those entries
+ * again. The record becomes the manifest the installed files can be checked
+ * against.
+ */
+public class TarExtractor {
+    /* the size of the tar headers and blocks */
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final String EXTRACTED = ".extracted";
+
+    /**
+     * Receives the extraction progress.
+     */
+    public interface ProgressListener {
+        /**
+         * @param entries how many entries were extracted so far
+         * @param bytes how many bytes of the archive were read so far
+         * @param totalBytes the size of the archive
+         */
+        void onProgress(int entries, long bytes, long totalBytes);
+    }
+
+    /* counts the compressed bytes read */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private final File archive;
+    private final File directory;
+    private final File manifest;
+    private final File staging;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private ProgressListener progressListener = null;
+    private int skippedEntries = 0;
+
+    /**
+     * @param archive the tar.gz archive
+     * @param directory where the archive's entries are installed
+     * @param manifest where the list of installed files is kept
+     */
+    public TarExtractor(File archive, File directory, File manifest) {
+        this.archive = archive;
+        this.directory = directory;
+        this.manifest = manifest;
+        this.staging = new File(directory, "." + archive.getName() + STAGING_SUFFIX);
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /* how many entries a resumed extraction did not have to write again */
+    public int getSkippedEntries() {
+        return skippedEntries;
+    }
+
+    /**
+     * Extracts the archive and moves the entries into place.
+     *
+     * @return how many entries the archive has
+     */
+    public int extract() throws IOException {
+        if (!staging.exists() && !staging.mkdirs()) {
+            throw new IOException("could not create " + staging);
+        }
+        File extractedFile = new File(staging, EXTRACTED);
+        Map<String, Long> extracted = readManifest(extractedFile);
+        skippedEntries = 0;
+        List<String[]> links = new ArrayList<String[]>();
+        long totalBytes = archive.length();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE));
+        InputStream in = new GZIPInputStream(counter, BUFFER_SIZE);
+        Writer record = new OutputStreamWriter(new FileOutputStream(extractedFile, true), "UTF-8");
+        int entries = 0;
+        try {
+            String longName = null;
+            while (readFully(in, header, BLOCK_SIZE)) {
+                if (isEmptyBlock(header)) {
+                    /* two empty blocks end the archive */
+                    break;
+                }
+                if (!checksumMatches(header)) {
+                    throw new IOException("corrupt tar header after " + entries + " entries");
+                }
+                char type = (char) header[156];
+                long size = parseOctal(header, 124, 12);
+                String name = longName != null ? longName : getName(header);
+                longName = null;
+                if (type == 'L') {
+                    /* gnu long name of the next entry */
+                    longName = readString(in, size);
+                    continue;
+                } else if (type == 'x') {
+                    /* pax header, only the path is used */
+                    longName = getPaxPath(readString(in, size));
+                    continue;
+                } else if (type == 'g') {
+                    skip(in, size);
+                    continue;
+                }
+                File file = getStagingFile(name);
+                if (type == '5') {
+                    if (!file.isDirectory() && !file.mkdirs()) {
+                        throw new IOException("could not create " + file);
+                    }
+                } else if (type == '1' || type == '2') {
+                    /* links are copied once everything is extracted */
+                    String target = getString(header, 157, 100);
+                    links.add(new String[] {name, type == '1' ? target : resolve(name, target)});
+                } else if (type == '0' || type == '\0' || type == '7') {
+                    Long extractedSize = extracted.get(name);
+                    if (extractedSize != null && extractedSize == size && file.length() == size) {
+                        skip(in, size);
+                        skippedEntries++;
+                    } else {
+                        writeEntry(in, file, size);
+                        if ((parseOctal(header, 100, 8) & 0111) != 0) {
+                            file.setExecutable(true, false);
+                        }
+                        record.write(size + " " + name + "\n");
+                        record.flush();
+                    }
+                } else {
+                    skip(in, size);
+                }
+                entries++;
+                if (progressListener != null) {
+                    progressListener.onProgress(entries, counter.count, totalBytes);
+                }
+            }
+            for (String[] link : links) {
+                File file = getStagingFile(link[0]);
+                copy(getStagingFile(link[1]), file);
+                if (file.isFile()) {
+                    record.write(file.length() + " " + link[0] + "\n");
+                }
+            }
+        } finally {
+            record.close();
+            in.close();
+        }
+        install(extractedFile);
+        return entries;
+    }
+
+    /**
+     * Checks the installed files against the manifest.
+     *
+     * @return the files that are missing or have the wrong size, empty when
+     *         everything is installed, null when there is no manifest
+     */
+    public List<String> verify() throws IOException {
+        if (!manifest.exists()) {
+            return null;
+        }
+        List<String> broken = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : readManifest(manifest).entrySet()) {
+            File file = new File(directory, entry.getKey());
+            if (!file.isFile() || file.length() != entry.getValue()) {
+                broken.add(entry.getKey());
+            }
+        }
+        return broken;
+    }
+
+    /* moves the extracted entries from the staging directory into place */
+    private void install(File extractedFile) throws IOException {
+        /* without a manifest a swap that was interrupted halfway shows up as not installed */
+        manifest.delete();
+        File[] entries = staging.listFiles();
+        for (File entry : entries) {
+            if (entry.getName().equals(EXTRACTED)) {
+                continue;
+            }
+            File installed = new File(directory, entry.getName());
+            if (installed.exists()) {
+                File old = new File(directory, "." + entry.getName() + ".old");
+                deleteRecursively(old);
+                if (!installed.renameTo(old)) {
+                    throw new IOException("could not replace " + installed);
+                }
+                deleteRecursively(old);
+            }
+            if (!entry.renameTo(installed)) {
+                throw new IOException("could not install " + installed);
+            }
+        }
+        if (!extractedFile.renameTo(manifest)) {
+            throw new IOException("could not write " + manifest);
+        }
+        deleteRecursively(staging);
+    }
+
+    private void writeEntry(InputStream in, File file, long size) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("could not create " + parent);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("archive ends in " + file.getName());
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            out.close();
+        }
+        skipPadding(in, size);
+    }
+
+    private File getStagingFile(String name) throws IOException {
+        for (String part : name.split("/")) {
+            if (part.equals("..")) {
+                throw new IOException("entry outside the archive: " + name);
+            }
+        }
+        return new File(staging, name);
+    }
+
+    private void skip(InputStream in, long size) throws IOException {
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("archive ends early");
+            }
+            remaining -= read;
+        }
+        skipPadding(in, size);
+    }
+
+    private void skipPadding(InputStream in, long size) throws IOException {
+        int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        if (padding > 0 && !readFully(in, buffer, padding)) {
+            throw new IOException("archive ends early");
+        }
+    }
+
+    private String readString(InputStream in, long size) throws IOException {
+        byte[] data = new byte[(int) size];
+        if (!readFully(in, data, data.length)) {
+            throw new IOException("archive ends early");
+        }
+        skipPadding(in, size);
+        return getString(data, 0, data.length);
+    }
+
+    /* returns false at the end of the stream, before anything was read */
+    private static boolean readFully(InputStream in, byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read == -1) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new IOException("archive ends early");
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    private static boolean isEmptyBlock(byte[] block) {
+        for (byte value : block) {
+            if (value != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* the checksum is the sum of the header bytes, with the checksum field read as spaces */
+    private static boolean checksumMatches(byte[] block) {
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (block[i] & 0xFF);
+        }
+        return sum == parseOctal(block, 148, 8);
+    }
+
+    private static String getName(byte[] block) {
+        String name = getString(block, 0, 100);
+        /* ustar splits long names into a prefix and a name */
+        if (getString(block, 257, 5).equals("ustar")) {
+            String prefix = getString(block, 345, 155);
+            if (prefix.length() > 0) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static String getPaxPath(String records) {
+        for (String record : records.split("\n")) {
+            int start = record.indexOf(" path=");
+            if (start != -1) {
+                return record.substring(start + 6);
+            }
+        }
+        return null;
+    }
+
+    private static String getString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        try {
+            return new String(data, offset, end - offset, "UTF-8");
+        } catch (IOException e) {
+            return new String(data, offset, end - offset);
+        }
+    }
+
+    private static long parseOctal(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] >= '0' && data[i] <= '7') {
+                value = value * 8 + (data[i] - '0');
+            } else if (data[i] == 0 || (data[i] == ' ' && value > 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /* the path of a symbolic link's target, relative to the archive */
+    private static String resolve(String name, String target) {
+        if (target.startsWith("/")) {
+            return target.substring(1);
+        }
+        int slash = name.lastIndexOf('/');
+        String path = slash == -1 ? target : name.substring(0, slash + 1) + target;
+        List<String> parts = new ArrayList<String>();
+        for (String part : path.split("/")) {
+            if (part.equals("..") && !parts.isEmpty()) {
+                parts.remove(parts.size() - 1);
+            } else if (!part.equals(".") && part.length() > 0) {
+                parts.add(part);
+            }
+        }
+        StringBuilder resolved = new StringBuilder();
+        for (String part : parts) {
+            if (resolved.length() > 0) {
+                resolved.append('/');
+            }
+            resolved.append(part);
+        }
+        return resolved.toString();
+    }
+
+    private void copy(File source, File target) throws IOException {
+        if (source.isDirectory()) {
+            if (!target.isDirectory() && !target.mkdirs()) {
+                throw new IOException("could not create " + target);
+            }
+            for (File child : source.listFiles()) {
+                copy(child, new File(target, child.getName()));
+            }
+            return;
+        }
+        if (!source.isFile()) {
+            /* a link to something outside the archive */
+            return;
+        }
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("could not create " + parent);
+        }
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (source.canExecute()) {
+            target.setExecutable(true, false);
+        }
+    }
+
+    private static Map<String, Long> readManifest(File file) throws IOException {
+        Map<String, Long> entries = new HashMap<String, Long>();
+        if (!file.exists()) {
+            return entries;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    try {
+                        entries.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+                    } catch (NumberFormatException e) {
+                        /* a line cut off by an interruption */
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
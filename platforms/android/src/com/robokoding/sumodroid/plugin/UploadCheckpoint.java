@@ -0,0 +1,46 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.util.Arrays;
+
+/**
+ * This class remembers how far a cancelled or failed upload got, so uploading
+ * the same program again only writes the pages that were not acknowledged.
+ */
+public class UploadCheckpoint {
+    private final byte[] program;
+    private final int[] pages;
+    private final int pageCount;
+    private final int writtenPages;
+
+    /**
+     * @param pages the pages the upload was writing, in the order they were sent
+     * @param writtenPages how many entries of the page list were acknowledged
+     */
+    public UploadCheckpoint(byte[] program, int[] pages, int pageCount, int writtenPages) {
+        this.program = program;
+        this.pages = pages;
+        this.pageCount = pageCount;
+        this.writtenPages = writtenPages;
+    }
+
+    public boolean matches(byte[] program) {
+        return Arrays.equals(this.program, program);
+    }
+
+    public int[] getPages() {
+        return pages;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public int getWrittenPages() {
+        return writtenPages;
+    }
+
+    /* the page to read back before trusting the checkpoint, -1 when nothing was written */
+    public int getLastWrittenPage() {
+        return writtenPages > 0 ? pages[writtenPages - 1] : -1;
+    }
+}
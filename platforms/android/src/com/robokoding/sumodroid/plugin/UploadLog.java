@@ -0,0 +1,41 @@
+package com.robokoding.sumodroid.plugin;
+
+import java.io.File;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * This class appends one line per upload to a log file. When the file gets
+ * too big it is renamed to file.1 (replacing the older one) and a new file
+ * is started.
+ */
+public class UploadLog {
+    private final File file;
+    private final long maxLength;
+
+    public UploadLog(File file, long maxLength) {
+        this.file = file;
+        this.maxLength = maxLength;
+    }
+
+    public synchronized void append(String line) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        if (file.length() + line.length() > maxLength) {
+            File previous = new File(file.getPath() + ".1");
+            previous.delete();
+            file.renameTo(previous);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        try {
+            writer.write(line);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.robokoding.sumodroid.plugin;
+
+/**
+ * This class collects the numbers of one upload: how long connecting and
+ * syncing took, the round trip time of every page, the throughput, what
+ * verifying found and where the upload failed.
+ */
+public class UploadMetrics {
+    /* upper bounds of the page round trip histogram buckets in milliseconds, the last bucket is open */
+    public static final int[] RTT_BUCKETS = new int[] {10, 20, 50, 100, 200, 500};
+
+    private final String address;
+    private final long startTime = System.currentTimeMillis();
+    private String phase = "start";
+    private long connectMillis = 0;
+    private int syncAttempts = 0;
+    private double linkRttMillis = 0;
+    private double linkBytesPerSecond = 0;
+    private int window = 0;
+    private int pages = 0;
+    private int totalPages = 0;
+    private long bytes = 0;
+    private long programMillis = 0;
+    private long totalMillis = 0;
+    private long verifyMillis = 0;
+    private int rewrittenPages = 0;
+    private int resumedPages = 0;
+    private final int[] rttHistogram = new int[RTT_BUCKETS.length + 1];
+    private long rttTotalMicros = 0;
+    private long rttMaxMicros = 0;
+    private String failurePhase = null;
+    private String failure = null;
+    private long lastReportTime = 0;
+
+    public UploadMetrics(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public synchronized void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public synchronized String getPhase() {
+        return phase;
+    }
+
+    public synchronized void setConnectMillis(long connectMillis) {
+        this.connectMillis = connectMillis;
+    }
+
+    public synchronized long getConnectMillis() {
+        return connectMillis;
+    }
+
+    public synchronized void setSyncAttempts(int syncAttempts) {
+        this.syncAttempts = syncAttempts;
+    }
+
+    public synchronized int getSyncAttempts() {
+        return syncAttempts;
+    }
+
+    /* what the link measured and the window chosen for it */
+    public synchronized void setLink(double rttMillis, double bytesPerSecond, int window) {
+        this.linkRttMillis = rttMillis;
+        this.linkBytesPerSecond = bytesPerSecond;
+        this.window = window;
+    }
+
+    public synchronized double getLinkRttMillis() {
+        return linkRttMillis;
+    }
+
+    public synchronized double getLinkBytesPerSecond() {
+        return linkBytesPerSecond;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /* how many pages this upload is going to write */
+    public synchronized void setTotalPages(int totalPages) {
+        this.totalPages = totalPages;
+    }
+
+    public synchronized int getTotalPages() {
+        return totalPages;
+    }
+
+    public synchronized void addPage(int pageBytes, long rttNanos) {
+        pages++;
+        bytes += pageBytes;
+        long rttMicros = rttNanos / 1000;
+        rttTotalMicros += rttMicros;
+        rttMaxMicros = Math.max(rttMaxMicros, rttMicros);
+        int bucket = 0;
+        while (bucket < RTT_BUCKETS.length && rttMicros >= RTT_BUCKETS[bucket] * 1000L) {
+            bucket++;
+        }
+        rttHistogram[bucket]++;
+    }
+
+    public synchronized int getPages() {
+        return pages;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int[] getRttHistogram() {
+        return rttHistogram.clone();
+    }
+
+    public synchronized double getAverageRtt() {
+        return pages == 0 ? 0 : rttTotalMicros / 1000.0 / pages;
+    }
+
+    public synchronized double getMaxRtt() {
+        return rttMaxMicros / 1000.0;
+    }
+
+    public synchronized void setProgramMillis(long programMillis) {
+        this.programMillis = programMillis;
+    }
+
+    public synchronized long getProgramMillis() {
+        return programMillis;
+    }
+
+    /* the page bytes written per second while programming */
+    public synchronized double getBytesPerSecond() {
+        return programMillis == 0 ? 0 : bytes * 1000.0 / programMillis;
+    }
+
+    public synchronized void setVerifyMillis(long verifyMillis) {
+        this.verifyMillis = verifyMillis;
+    }
+
+    public synchronized long getVerifyMillis() {
+        return verifyMillis;
+    }
+
+    /* pages written again because verifying found them different */
+    public synchronized void addRewrittenPages(int count) {
+        rewrittenPages += count;
+    }
+
+    public synchronized int getRewrittenPages() {
+        return rewrittenPages;
+    }
+
+    /* pages a cancelled or failed upload had already written */
+    public synchronized void setResumedPages(int resumedPages) {
+        this.resumedPages = resumedPages;
+    }
+
+    public synchronized int getResumedPages() {
+        return resumedPages;
+    }
+
+    /**
+     * Records where the upload failed, in the current phase.
+     */
+    public synchronized void fail(String message) {
+        failurePhase = phase;
+        failure = message;
+    }
+
+    public synchronized boolean isFailed() {
+        return failure != null;
+    }
+
+    public synchronized String getFailurePhase() {
+        return failurePhase;
+    }
+
+    public synchronized String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Rate limits progress reports.
+     *
+     * @return true when the last report is at least the interval ago
+     */
+    public synchronized boolean claimReport(long interval) {
+        long now = System.currentTimeMillis();
+        if (now - lastReportTime < interval) {
+            return false;
+        }
+        lastReportTime = now;
+        return true;
+    }
+
+    public synchronized void finish() {
+        totalMillis = System.currentTimeMillis() - startTime;
+    }
+
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    public synchronized long getTotalMillis() {
+        return totalMillis;
+    }
+}